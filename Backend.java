@@ -0,0 +1,398 @@
+
+// Util imports
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+// SQL imports
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Where the database lives and how to talk to it. DBInterface picks one from
+ * auth.cfg (backend=sqlserver, the default, or backend=sqlite) or --local.
+ *
+ * Everything we send is written for SQL Server: the catalog's queries,
+ * populate.sql and the rebuild's own DDL. A backend translates that into its
+ * own dialect just before it goes out, and says which parts of a rebuild it
+ * can do.
+ */
+interface Backend {
+
+    // For messages ("SQL Server on uranium.cs.umanitoba.ca")
+    String description();
+
+    // Opens a new connection. Works as a ConnectionFactory (backend::open).
+    Connection open() throws SQLException;
+
+    // A SQL Server statement in this backend's dialect, or null if it doesn't
+    // apply here at all (USE on a local database)
+    String translate(String sql);
+
+    // query's SQL in this backend's dialect
+    default String querySql(QueryDefinition query) {
+        return translate(query.sql);
+    }
+
+    // True for a database on this machine. There's no login, and it gets built
+    // from populate.sql the first time it's opened.
+    boolean isLocal();
+
+    // Rebuild handling. Most connections worth loading tables on at once, and
+    // whether shadow rebuilds (DatabaseRebuilder) and snapshot restores
+    // (DatabaseSnapshot's bulk copy) work here.
+    int maxLoadConnections();
+    boolean supportsShadowRebuild();
+    boolean supportsBulkCopy();
+
+    // Whether the server can report per-query IO and time statistics and the
+    // actual plan (SET STATISTICS), for the slow query log
+    boolean supportsStatistics();
+
+}
+
+// The course's SQL Server. Everything is already in its dialect.
+class SqlServerBackend implements Backend {
+
+    static final String HOST = "uranium.cs.umanitoba.ca";
+
+    // For code that only needs the dialect (a rebuilder nobody gave a backend).
+    // It can't open connections.
+    static final SqlServerBackend DIALECT = new SqlServerBackend(null, null);
+
+    private final String connectionUrl;
+
+    SqlServerBackend(String username, String password) {
+        this.connectionUrl = username == null ? null
+                : "jdbc:sqlserver://" + HOST + ":1433;"
+                        + "database=cs3380;"
+                        + "user=" + username + ";"
+                        + "password=" + password + ";"
+                        + "encrypt=false;"
+                        + "trustServerCertificate=false;"
+                        + "loginTimeout=30;";
+    }
+
+    @Override
+    public String description() {
+        return "SQL Server on " + HOST;
+    }
+
+    @Override
+    public Connection open() throws SQLException {
+        if (connectionUrl == null) {
+            throw new SQLException("No username and password for " + description());
+        }
+        return DriverManager.getConnection(connectionUrl);
+    }
+
+    @Override
+    public String translate(String sql) {
+        return sql;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public int maxLoadConnections() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean supportsShadowRebuild() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsBulkCopy() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsStatistics() {
+        return true;
+    }
+
+}
+
+/*
+ * A SQLite file on this machine, through the sqlite-jdbc driver (it has to be on
+ * the classpath, see make run-local). Good for running and timing the queries
+ * without the network in the way.
+ *
+ * The translation only knows about what our SQL actually uses:
+ * - USE is dropped, there's only one database
+ * - SELECT TOP n becomes LIMIT n on the end (only for the outermost SELECT)
+ * - DATEDIFF(unit, a, b) counts unit boundaries between a and b, same as SQL
+ *   Server, using whole seconds since the epoch
+ * - FORMAT(x, 'Nd') becomes printf('%.df', x) (no thousands separators)
+ * - (SELECT ...) UNION ALL (SELECT ...) loses the brackets, SQLite doesn't take them
+ * - CREATE TABLE: date and datetime2 columns are stored as TEXT (they're already
+ *   'yyyy-mm-dd hh:mm:ss', which sorts and compares fine as text, and the driver
+ *   can't read every format back as a date), and text columns are COLLATE NOCASE
+ *   to compare like SQL Server's default collation does
+ * - CREATE NONCLUSTERED INDEX is just CREATE INDEX, without the INCLUDE columns
+ * SQL Server averages integers as integers (truncated), SQLite gives a real. The
+ * queries in INTEGER_AVERAGES average integers, so their AVGs get cast back.
+ *
+ * Rebuilds run in place on one connection, since SQLite only has one writer at
+ * a time and no schemas to shadow the tables in.
+ */
+class SqliteBackend implements Backend {
+
+    static final String URL_PREFIX = "jdbc:sqlite:";
+
+    // Catalog queries whose AVG is over integers
+    static final HashSet<String> INTEGER_AVERAGES = new HashSet<String>(Arrays.asList("12", "15"));
+
+    static final Pattern USE_PATTERN = Pattern.compile("USE\\s+\\w+\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+    static final Pattern TOP_PATTERN = Pattern.compile("^(\\s*(?:--[^\\n]*\\n\\s*)*SELECT\\s+(?:DISTINCT\\s+)?)TOP\\s+(\\d+)\\s+",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern FORMAT_N_PATTERN = Pattern.compile("'N(\\d+)'", Pattern.CASE_INSENSITIVE);
+    static final Pattern DATE_COLUMN_PATTERN = Pattern.compile(
+            "((?:^|[(,])\\s*\\w+\\s+)(?:date|datetime|datetime2)(?:\\s*\\(\\s*\\d+\\s*\\))?(?=[\\s,)])",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern TEXT_COLUMN_PATTERN = Pattern.compile(
+            "((?:^|[(,])\\s*\\w+\\s+(?:n?varchar|n?char|text)(?:\\s*\\(\\s*(?:\\d+|max)\\s*\\))?)(?=[\\s,)])",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern NONCLUSTERED_PATTERN = Pattern.compile("CREATE\\s+NONCLUSTERED\\s+INDEX",
+            Pattern.CASE_INSENSITIVE);
+    static final Pattern INCLUDE_PATTERN = Pattern.compile("\\s+INCLUDE\\s*\\([^)]*\\)", Pattern.CASE_INSENSITIVE);
+    static final Pattern COMPOUND_PATTERN = Pattern.compile("(?:UNION(?:\\s+ALL)?|EXCEPT|INTERSECT)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final Path file;
+
+    // Translations are cached, the catalog's queries get translated every time they run
+    private final ConcurrentHashMap<String, String> translated = new ConcurrentHashMap<String, String>();
+
+    SqliteBackend(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public String description() {
+        return "SQLite database " + file;
+    }
+
+    // Foreign keys are off in SQLite unless asked for. WAL lets the menu keep
+    // reading while a rebuild writes.
+    @Override
+    public Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(URL_PREFIX + file);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA foreign_keys = ON");
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA busy_timeout = 30000");
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    @Override
+    public String querySql(QueryDefinition query) {
+        String sql = translate(query.sql);
+        if (INTEGER_AVERAGES.contains(query.id)) {
+            sql = replaceCalls(sql, "AVG", arguments -> "CAST(AVG(" + arguments.get(0) + ") AS INTEGER)");
+        }
+        return sql;
+    }
+
+    @Override
+    public String translate(String sql) {
+        if (USE_PATTERN.matcher(sql).matches()) {
+            return null;
+        }
+        return translated.computeIfAbsent(sql, SqliteBackend::translateUncached);
+    }
+
+    private static String translateUncached(String sql) {
+
+        Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(sql);
+        if (create.matches()) {
+            String body = DATE_COLUMN_PATTERN.matcher(create.group(2)).replaceAll("$1TEXT");
+            body = TEXT_COLUMN_PATTERN.matcher(body).replaceAll("$1 COLLATE NOCASE");
+            return "CREATE TABLE " + create.group(1) + " (" + body + ")";
+        }
+
+        if (NONCLUSTERED_PATTERN.matcher(sql).lookingAt()) {
+            return INCLUDE_PATTERN.matcher(NONCLUSTERED_PATTERN.matcher(sql).replaceFirst("CREATE INDEX")).replaceAll("");
+        }
+
+        Matcher top = TOP_PATTERN.matcher(sql);
+        if (top.find()) {
+            String rest = sql.substring(top.end()).stripTrailing();
+            if (rest.endsWith(";")) {
+                rest = rest.substring(0, rest.length() - 1);
+            }
+            sql = top.group(1) + rest + "\nLIMIT " + top.group(2);
+        }
+
+        sql = replaceCalls(sql, "DATEDIFF", arguments -> {
+            long seconds = unitSeconds(arguments.get(0).trim());
+            return "(CAST(strftime('%s', " + arguments.get(2) + ") AS INTEGER) / " + seconds
+                    + " - CAST(strftime('%s', " + arguments.get(1) + ") AS INTEGER) / " + seconds + ")";
+        });
+
+        sql = replaceCalls(sql, "FORMAT", arguments -> {
+            Matcher format = FORMAT_N_PATTERN.matcher(arguments.get(1).trim());
+            if (!format.matches()) {
+                throw new IllegalArgumentException("Can't translate FORMAT(" + String.join(",", arguments) + ")");
+            }
+            return "printf('%." + format.group(1) + "f', " + arguments.get(0) + ")";
+        });
+
+        return unwrapCompoundSelects(sql);
+    }
+
+    // Seconds in a DATEDIFF unit
+    private static long unitSeconds(String unit) {
+        switch (unit.toLowerCase()) {
+            case "second":
+            case "ss":
+            case "s":
+                return 1;
+            case "minute":
+            case "mi":
+            case "n":
+                return 60;
+            case "hour":
+            case "hh":
+                return 3600;
+            case "day":
+            case "dd":
+            case "d":
+                return 86400;
+            default:
+                throw new IllegalArgumentException("Can't translate DATEDIFF by " + unit);
+        }
+    }
+
+    // Replaces every call to function (any case) with replacement(its arguments).
+    // Arguments are split on the commas that aren't inside brackets or quotes.
+    static String replaceCalls(String sql, String function, Function<List<String>, String> replacement) {
+
+        Pattern call = Pattern.compile("\\b" + function + "\\s*\\(", Pattern.CASE_INSENSITIVE);
+        StringBuilder result = new StringBuilder();
+        int from = 0;
+        Matcher matcher = call.matcher(sql);
+
+        while (matcher.find(from)) {
+            int close = closingBracket(sql, matcher.end() - 1);
+            if (close < 0) {
+                break;
+            }
+            ArrayList<String> arguments = new ArrayList<String>();
+            int depth = 0;
+            boolean quoted = false;
+            int start = matcher.end();
+            for (int i = start; i < close; i++) {
+                char c = sql.charAt(i);
+                if (c == '\'') {
+                    quoted = !quoted;
+                } else if (!quoted && c == '(') {
+                    depth++;
+                } else if (!quoted && c == ')') {
+                    depth--;
+                } else if (!quoted && depth == 0 && c == ',') {
+                    arguments.add(sql.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            arguments.add(sql.substring(start, close));
+
+            // Calls nested in the arguments get replaced too
+            for (int i = 0; i < arguments.size(); i++) {
+                arguments.set(i, replaceCalls(arguments.get(i), function, replacement));
+            }
+
+            result.append(sql, from, matcher.start()).append(replacement.apply(arguments));
+            from = close + 1;
+        }
+
+        return result.append(sql.substring(from)).toString();
+    }
+
+    // Takes the brackets off (SELECT ...) when it's one side of a UNION, EXCEPT or
+    // INTERSECT. A bracketed SELECT anywhere else (a derived table) is left alone.
+    static String unwrapCompoundSelects(String sql) {
+
+        StringBuilder result = new StringBuilder(sql);
+        for (int open = result.indexOf("("); open >= 0; open = result.indexOf("(", open + 1)) {
+
+            String after = result.substring(open + 1).stripLeading();
+            if (!after.regionMatches(true, 0, "SELECT", 0, 6)) {
+                continue;
+            }
+            int close = closingBracket(result.toString(), open);
+            if (close < 0) {
+                continue;
+            }
+
+            String before = result.substring(0, open).stripTrailing();
+            String following = result.substring(close + 1).stripLeading();
+            Matcher previous = Pattern.compile("(?:UNION(?:\\s+ALL)?|EXCEPT|INTERSECT)$", Pattern.CASE_INSENSITIVE)
+                    .matcher(before);
+            if (previous.find() || COMPOUND_PATTERN.matcher(following).lookingAt()) {
+                result.setCharAt(close, ' ');
+                result.setCharAt(open, ' ');
+            }
+        }
+        return result.toString();
+    }
+
+    // Index of the bracket closing the one at open, or -1
+    private static int closingBracket(CharSequence sql, int open) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = open; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public int maxLoadConnections() {
+        return 1;
+    }
+
+    @Override
+    public boolean supportsShadowRebuild() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsBulkCopy() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsStatistics() {
+        return false;
+    }
+
+}
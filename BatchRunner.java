@@ -0,0 +1,433 @@
+// Util imports
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+// SQL imports
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/*
+ * Runs catalog queries without the menu (--batch), for cron jobs and scripts.
+ *
+ * The requests are read up front, one per line: a query id (as on the help
+ * screen, e.g. 7 or 2.1) and its parameters, separated by spaces. Parameters
+ * with spaces in them go in double quotes ("Air Canada"), and # starts a
+ * comment.
+ *
+ *   7 CYWG
+ *   9 "Air Canada"
+ *   14.5
+ *
+ * The requests don't depend on each other, so they run in parallel, one per
+ * pool connection, with a few more queued so a connection never waits for
+ * the next one to be handed out. Each worker writes the rows straight from
+ * the ResultSet into text (no QueryResults, no boxes), and the results go out
+ * in the order they were asked for, each as soon as the ones before it are
+ * out.
+ *
+ * Formats:
+ * - JSONL: one line per row, {"request": 1, "query": "7", "row": {...}}.
+ *   A request that fails gets a line with "error" instead.
+ * - CSV: each result starts with a header row (request, query, then its
+ *   columns), then its rows. Failures only go in the report.
+ */
+class BatchRunner {
+
+    enum Format {
+        CSV, JSONL
+    }
+
+    // Requests queued per connection on top of the one running
+    static final int QUEUED_PER_CONNECTION = 1;
+
+    private final QueryCatalog catalog;
+    private final ConnectionPool pool;
+    private final int connections;
+
+    Format format = Format.JSONL;
+    Backend backend = SqlServerBackend.DIALECT;
+    int fetchSize = 100;
+
+    // Timings go in here (and slow ones in the log) same as from the menu, if set
+    QueryMetrics metrics = null;
+    SlowQueryLog slowLog = null;
+
+    // Totals, for the report
+    int requestsRun = 0;
+    int requestsFailed = 0;
+    long rowsWritten = 0;
+    long bytesWritten = 0;
+    long elapsedNanos = 0;
+    final ArrayList<String> failures = new ArrayList<String>();
+
+    BatchRunner(QueryCatalog catalog, ConnectionPool pool, int connections) {
+        this.catalog = catalog;
+        this.pool = pool;
+        this.connections = Math.max(1, connections);
+    }
+
+    // Parses the requests in input. Throws IllegalArgumentException saying which line
+    // is wrong if any of them is.
+    List<BatchRequest> readRequests(BufferedReader input) throws IOException {
+
+        ArrayList<BatchRequest> requests = new ArrayList<BatchRequest>();
+        String line;
+        int lineNumber = 0;
+
+        while ((line = input.readLine()) != null) {
+            lineNumber++;
+            try {
+                ArrayList<String> fields = split(line);
+                if (fields.isEmpty()) {
+                    continue;
+                }
+
+                QueryDefinition query = catalog.get(fields.get(0));
+                if (query == null) {
+                    throw new IllegalArgumentException("no query " + fields.get(0));
+                }
+                if (fields.size() - 1 != query.parameters.size()) {
+                    throw new IllegalArgumentException("query " + query.id + " takes " + query.parameters.size()
+                            + " parameter(s), got " + (fields.size() - 1));
+                }
+
+                Object[] values = new Object[query.parameters.size()];
+                for (int i = 0; i < values.length; i++) {
+                    try {
+                        values[i] = query.parameters.get(i).parse(fields.get(i + 1));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(query.parameters.get(i).name + " must be a number");
+                    }
+                }
+                requests.add(new BatchRequest(requests.size() + 1, query, values));
+
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        return requests;
+    }
+
+    // Splits a request line into fields, see above
+    static ArrayList<String> split(String line) {
+
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder field = null;
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"'); // "" is a quote
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (field != null) {
+                    fields.add(field.toString());
+                    field = null;
+                }
+            } else if (c == '#' && field == null) {
+                break;
+            } else {
+                if (field == null) {
+                    field = new StringBuilder();
+                }
+                if (c == '"') {
+                    quoted = true;
+                } else {
+                    field.append(c);
+                }
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("missing closing quote");
+        }
+        if (field != null) {
+            fields.add(field.toString());
+        }
+        return fields;
+    }
+
+    // Runs requests and writes their results to out, in order. A failed request is
+    // counted and reported, and the rest still run.
+    void run(List<BatchRequest> requests, OutputStream out) throws IOException {
+
+        ExecutorService workers = Executors.newFixedThreadPool(connections, task -> {
+            Thread thread = new Thread(task, "batch-query");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int maxInFlight = connections * (1 + QUEUED_PER_CONNECTION);
+        ArrayDeque<Future<BatchResult>> inFlight = new ArrayDeque<Future<BatchResult>>();
+
+        long start = System.nanoTime();
+        try {
+            for (BatchRequest request : requests) {
+                // Full up, so wait for the oldest before queueing another
+                if (inFlight.size() >= maxInFlight) {
+                    write(inFlight.poll(), out);
+                }
+                inFlight.add(workers.submit(() -> execute(request)));
+
+                // Anything finished at the front can go out now
+                while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                    write(inFlight.poll(), out);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.poll(), out);
+            }
+            out.flush();
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+            workers.shutdownNow();
+        }
+    }
+
+    private void write(Future<BatchResult> pending, OutputStream out) throws IOException {
+
+        BatchResult result;
+        try {
+            result = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a query");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // execute() catches the SQLExceptions
+        }
+
+        requestsRun++;
+        if (result.error != null) {
+            requestsFailed++;
+            failures.add("Request " + result.request.number + " (query " + result.request.query.id + "): "
+                    + result.error);
+            if (format == Format.JSONL) {
+                result.text.append("{\"request\": ").append(result.request.number).append(", \"query\": ")
+                        .append(QueryMetrics.quote(result.request.query.id)).append(", \"error\": ")
+                        .append(QueryMetrics.quote(result.error)).append("}\n");
+            }
+        }
+
+        byte[] bytes = result.text.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        rowsWritten += result.rows;
+        bytesWritten += bytes.length;
+    }
+
+    // Runs on a worker. Never throws, a failure ends up in the result's error.
+    private BatchResult execute(BatchRequest request) {
+
+        BatchResult result = new BatchResult(request);
+        QueryDefinition query = request.query;
+
+        try (PooledConnection pooled = pool.borrow()) {
+
+            long prepareStart = System.nanoTime();
+            PreparedStatement statement = pooled.prepare(query.id, backend.querySql(query));
+            query.bind(statement, request.values);
+            statement.setFetchSize(fetchSize);
+            long prepareNanos = System.nanoTime() - prepareStart;
+
+            long start = System.nanoTime();
+            long executeNanos;
+            long firstRowNanos = -1;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                executeNanos = System.nanoTime() - start;
+
+                ResultSetMetaData metadata = resultSet.getMetaData();
+                int columns = metadata.getColumnCount();
+                String[] names = new String[columns];
+                int[] types = new int[columns];
+                for (int i = 0; i < columns; i++) {
+                    names[i] = metadata.getColumnLabel(i + 1);
+                    types[i] = metadata.getColumnType(i + 1);
+                }
+
+                if (format == Format.CSV) {
+                    result.text.append("request,query");
+                    for (String name : names) {
+                        result.text.append(',');
+                        appendCsv(result.text, name);
+                    }
+                    result.text.append('\n');
+                }
+
+                while (resultSet.next()) {
+                    if (firstRowNanos < 0) {
+                        firstRowNanos = System.nanoTime() - start;
+                    }
+                    if (format == Format.CSV) {
+                        appendCsvRow(result, resultSet, columns);
+                    } else {
+                        appendJsonRow(result, resultSet, names, types);
+                    }
+                    result.rows++;
+                }
+            }
+            long fetchNanos = System.nanoTime() - start - executeNanos;
+
+            if (metrics != null) {
+                metrics.recordQuery(query.id, query.title, prepareNanos, executeNanos, firstRowNanos, fetchNanos,
+                        result.rows, result.text.length());
+            }
+            long totalNanos = prepareNanos + executeNanos + fetchNanos;
+            if (slowLog != null && slowLog.isSlow(totalNanos)) {
+                SlowQuery slow = new SlowQuery(query, request.values);
+                slow.source = "batch";
+                slow.prepareNanos = prepareNanos;
+                slow.executeNanos = executeNanos;
+                slow.firstRowNanos = firstRowNanos;
+                slow.fetchNanos = fetchNanos;
+                slow.totalNanos = totalNanos;
+                slow.rows = result.rows;
+                slow.bytes = result.text.length();
+                slowLog.log(slow);
+            }
+
+        } catch (SQLException e) {
+            // Whatever it wrote before failing isn't worth keeping
+            result.text.setLength(0);
+            result.rows = 0;
+            result.error = e.getMessage();
+        }
+
+        return result;
+    }
+
+    private void appendCsvRow(BatchResult result, ResultSet resultSet, int columns) throws SQLException {
+
+        StringBuilder text = result.text;
+        text.append(result.request.number).append(',');
+        appendCsv(text, result.request.query.id);
+        for (int i = 1; i <= columns; i++) {
+            text.append(',');
+            String value = resultSet.getString(i);
+            if (value != null) {
+                appendCsv(text, value);
+            }
+        }
+        text.append('\n');
+    }
+
+    // Quotes value if it has anything CSV cares about in it
+    static void appendCsv(StringBuilder text, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (quote) {
+            text.append('"').append(value.replace("\"", "\"\"")).append('"');
+        } else {
+            text.append(value);
+        }
+    }
+
+    private void appendJsonRow(BatchResult result, ResultSet resultSet, String[] names, int[] types)
+            throws SQLException {
+
+        StringBuilder text = result.text;
+        text.append("{\"request\": ").append(result.request.number).append(", \"query\": ")
+                .append(QueryMetrics.quote(result.request.query.id)).append(", \"row\": {");
+
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(QueryMetrics.quote(names[i])).append(": ");
+
+            String value = resultSet.getString(i + 1);
+            if (value == null) {
+                text.append("null");
+            } else if (isNumber(types[i])) {
+                text.append(value);
+            } else if (types[i] == Types.BIT || types[i] == Types.BOOLEAN) {
+                text.append(resultSet.getBoolean(i + 1));
+            } else {
+                text.append(QueryMetrics.quote(value));
+            }
+        }
+
+        text.append("}}\n");
+    }
+
+    static boolean isNumber(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Throughput and failures, for after the run
+    ArrayList<String> summary() {
+
+        ArrayList<String> lines = new ArrayList<String>();
+        double seconds = elapsedNanos / 1e9;
+        lines.add(String.format("\tRan %d requests (%d failed) on up to %d connections in %.2f s", requestsRun,
+                requestsFailed, connections, seconds));
+        lines.add(String.format("\t%.1f requests/s, %.0f rows/s, %d rows and %.1f KB written as %s", requestsRun
+                / seconds, rowsWritten / seconds, rowsWritten, bytesWritten / 1024.0, format.name()));
+        for (String failure : failures) {
+            lines.add("\t" + failure);
+        }
+        return lines;
+    }
+
+}
+
+// One line of a batch: which query, with what
+class BatchRequest {
+
+    final int number; // 1-based, in the order they were read
+    final QueryDefinition query;
+    final Object[] values;
+
+    BatchRequest(int number, QueryDefinition query, Object[] values) {
+        this.number = number;
+        this.query = query;
+        this.values = values;
+    }
+
+}
+
+// A request's output, ready to be written once it's its turn
+class BatchResult {
+
+    final BatchRequest request;
+    final StringBuilder text = new StringBuilder();
+    long rows = 0;
+    String error = null;
+
+    BatchResult(BatchRequest request) {
+        this.request = request;
+    }
+
+}
@@ -0,0 +1,12 @@
+
+// SQL imports
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// Opens a new connection to the database. DBInterface::openConnection is the
+// usual one.
+interface ConnectionFactory {
+
+    Connection open() throws SQLException;
+
+}
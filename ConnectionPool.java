@@ -0,0 +1,154 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+// SQL imports
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/*
+ * A small pool of database connections. Connections are opened lazily (up to
+ * maxConnections) and reused, so a menu round-trip doesn't pay for a new login.
+ *
+ * Each connection keeps the PreparedStatements made on it, keyed by query id, so
+ * running the same menu query again skips the prepare round-trip. Hit and miss
+ * counts are kept across the whole pool.
+ *
+ * Usage:
+ *   try (PooledConnection pooled = pool.borrow()) {
+ *       PreparedStatement statement = pooled.prepare("7", sql);
+ *       ...
+ *   } // back in the pool
+ */
+class ConnectionPool implements AutoCloseable {
+
+    private final ConnectionFactory factory;
+    private final int maxConnections;
+
+    // Connections not currently borrowed. Most recently used first, so we keep
+    // reusing the same (warm) connection when only one is needed at a time.
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final ArrayList<PooledConnection> all = new ArrayList<PooledConnection>();
+
+    final AtomicLong prepareHits = new AtomicLong();
+    final AtomicLong prepareMisses = new AtomicLong();
+
+    ConnectionPool(ConnectionFactory factory, int maxConnections) {
+        this.factory = factory;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    // Takes a connection from the pool, opening a new one if they're all in use and
+    // we're under the limit, otherwise waiting for one to be returned.
+    PooledConnection borrow() throws SQLException {
+
+        PooledConnection pooled = idle.pollFirst();
+        if (pooled != null) {
+            return pooled;
+        }
+
+        synchronized (all) {
+            if (all.size() < maxConnections) {
+                pooled = new PooledConnection(this, factory.open());
+                all.add(pooled);
+                return pooled;
+            }
+        }
+
+        try {
+            return idle.takeFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        idle.addFirst(pooled);
+    }
+
+    // Number of connections opened so far
+    int size() {
+        synchronized (all) {
+            return all.size();
+        }
+    }
+
+    // Closes every connection (and its cached statements). Only call this when
+    // nothing is borrowed any more.
+    @Override
+    public void close() throws SQLException {
+
+        SQLException firstError = null;
+
+        synchronized (all) {
+            for (PooledConnection pooled : all) {
+                try {
+                    pooled.closeConnection();
+                } catch (SQLException e) {
+                    if (firstError == null) {
+                        firstError = e;
+                    }
+                }
+            }
+            all.clear();
+            idle.clear();
+        }
+
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+}
+
+// A connection borrowed from a ConnectionPool. close() gives it back to the pool.
+class PooledConnection implements AutoCloseable {
+
+    final Connection connection;
+    private final ConnectionPool pool;
+
+    // Prepared statements made on this connection, by query id
+    private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    // The prepared statement for queryId, preparing sql if this connection hasn't
+    // seen the query before. Don't close the statement, it belongs to the cache.
+    PreparedStatement prepare(String queryId, String sql) throws SQLException {
+
+        PreparedStatement statement = statements.get(queryId);
+        if (statement != null && !statement.isClosed()) {
+            pool.prepareHits.incrementAndGet();
+            statement.clearParameters();
+            return statement;
+        }
+
+        pool.prepareMisses.incrementAndGet();
+        statement = connection.prepareStatement(sql);
+        statements.put(queryId, statement);
+        return statement;
+    }
+
+    // Gives the connection back to the pool
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    // Actually closes the connection. Only the pool calls this.
+    void closeConnection() throws SQLException {
+        for (PreparedStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        connection.close();
+    }
+
+}
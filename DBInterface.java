@@ -1,19 +1,23 @@
 
 // Util imports
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
 // SQL imports
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 
@@ -33,17 +37,113 @@ public class DBInterface {
     private ProgramState state = ProgramState.MAIN_MENU;
     private int querySelection;
 
-    // SQL database connection object
-    private Connection connection;
+    // Every query we can run, and the menu built from them
+    final QueryCatalog catalog = new QueryCatalog();
+
+    // Pool of SQL database connections. Each connection also caches the prepared
+    // statements for the menu queries.
+    private ConnectionPool pool;
 
     // Scanner for taking user input
     Scanner sc = new Scanner(System.in);
 
+    // Everything gets printed into this and written to the terminal one whole screen
+    // at a time, when flush() is called (right before we wait for input).
+    static final TerminalFrame screen = TerminalFrame.STDOUT;
+
     // File name which contains the SQL to rebuild the database
     String REBUILD_FILE_NAME = "populate.sql";
 
-    // Constructor. Used to set up the database connection.
-    public DBInterface() {
+    // Where the rebuild keeps fingerprints of REBUILD_FILE_NAME, so an incremental
+    // rebuild can tell which tables changed
+    String REBUILD_STATE_FILE_NAME = "populate.state";
+
+    // Binary copy of REBUILD_FILE_NAME (see DatabaseSnapshot), made with --snapshot-create
+    String SNAPSHOT_DIR_NAME = "populate.snapshot";
+
+    // Where the local database goes unless auth.cfg says otherwise (sqliteFile)
+    String LOCAL_DATABASE_FILE_NAME = "local.db";
+
+    // Where the metrics screen saves the metrics as JSON
+    String METRICS_FILE_NAME = "metrics.json";
+
+    // Where [E] on the results screen writes its files (see ResultExporter)
+    String EXPORT_DIR_NAME = "exports";
+
+    // Slow query log settings (see SlowQueryLog), all overridable in auth.cfg. Queries
+    // taking at least slowQueryMs are logged (negative turns the log off). The file
+    // is rotated at slowQueryLogKB, keeping slowQueryLogFiles old ones.
+    // slowQueryStatistics is none, io or plan.
+    int slowQueryMs = 1000;
+    String slowQueryLogFile = "slow-queries.log";
+    int slowQueryLogKB = 1024;
+    int slowQueryLogFiles = 5;
+    SlowQueryLog.Statistics slowQueryStatistics = SlowQueryLog.Statistics.NONE;
+
+    // Streaming result settings (used for raw table dumps). The fetch size is how
+    // many rows we ask the driver for per round-trip, the window is the most rows
+    // we keep in memory at once. Both can be overridden in auth.cfg.
+    int streamFetchSize = 100;
+    int streamWindowRows = 1000;
+
+    // How many pages ahead raw table browsing fetches in the background while the
+    // current one is shown (0 for none), and the most memory the fetched pages can
+    // use, in kilobytes (see TablePager). Also overridable in auth.cfg.
+    int pageReadAhead = 2;
+    int pageCacheKB = 1024;
+
+    // The CREATE TABLEs from REBUILD_FILE_NAME, for the primary keys raw table
+    // browsing pages on. Read the first time it's needed.
+    private ScriptSchema rawTableSchema = null;
+
+    // Most connections used at once to load tables during a rebuild. Also
+    // overridable in auth.cfg.
+    int rebuildConnections = 4;
+
+    // Whether a rebuild builds IndexProvisioner's indexes (and times the queries
+    // they serve) after loading. Also overridable in auth.cfg.
+    boolean provisionIndexes = true;
+
+    // Whether a rebuild loads into shadow tables and swaps them in at the end (see
+    // DatabaseRebuilder), so a failed rebuild leaves the old data in place. Also
+    // overridable in auth.cfg.
+    boolean shadowRebuild = true;
+
+    // Most connections kept open for running menu queries. Also overridable in auth.cfg.
+    int poolSize = 2;
+
+    // Bounds on the result cache, in entries and megabytes. Also overridable in auth.cfg.
+    int resultCacheEntries = 50;
+    int resultCacheMB = 64;
+
+    // Results of recent cacheable queries, by query id and parameters. Cleared
+    // whenever the database is rebuilt.
+    private ResultCache resultCache;
+
+    // Timings of every query and rebuild this session (see QueryMetrics)
+    private final QueryMetrics metrics = new QueryMetrics();
+
+    // Null if slowQueryMs is negative
+    private SlowQueryLog slowLog = null;
+
+    // What the queries run on (see Backend). Picked from auth.cfg in the constructor,
+    // used whenever we need a new connection.
+    private Backend backend;
+
+    // Only set when running with --memory. Then every query is answered from
+    // populate.sql loaded into memory, and there's no pool or server at all.
+    private MemoryDatabase memory = null;
+    private MemoryQueries memoryQueries = null;
+
+    // Load the in-memory database from SNAPSHOT_DIR_NAME instead of the script
+    private boolean memoryFromSnapshot = false;
+
+    // Constructor. Used to set up the database connection, or load the in-memory
+    // database if inMemory (from the snapshot if memoryFromSnapshot). local uses the
+    // local SQLite database whatever auth.cfg says.
+    public DBInterface(boolean inMemory, boolean memoryFromSnapshot, boolean local) {
+
+        this.memoryFromSnapshot = memoryFromSnapshot;
 
         // Set up the database connection. Throw and error and panic if it fails.
         // This code taken from Rob Guderian's SQLServerDemo.java file.
@@ -56,44 +156,461 @@ public class DBInterface {
             prop.load(configFile);
             configFile.close();
         } catch (FileNotFoundException ex) {
-            System.out.println("Cound not find config file.");
-            System.exit(1);
+            // The in-memory and local databases don't need a login, so just use the defaults
+            if (!inMemory && !local) {
+                screen.println("Cound not find config file.");
+                screen.flush();
+                System.exit(1);
+            }
         } catch (IOException ex) {
-            System.out.println("Error reading config file.");
+            screen.println("Error reading config file.");
+            screen.flush();
             System.exit(1);
         }
 
         String username = prop.getProperty("username");
         String password = prop.getProperty("password");
 
-        if (username == null || password == null) {
-            System.out.println("Username or password not provided.");
+        String backendName = local ? "sqlite" : prop.getProperty("backend", "sqlserver").trim().toLowerCase();
+        if (backendName.equals("sqlite")) {
+            backend = new SqliteBackend(Path.of(prop.getProperty("sqliteFile", LOCAL_DATABASE_FILE_NAME)));
+        } else if (backendName.equals("sqlserver")) {
+            backend = new SqlServerBackend(username, password);
+        } else {
+            screen.println("Unknown backend " + backendName + " in config file (sqlserver or sqlite).");
+            screen.flush();
+            System.exit(1);
+        }
+
+        if (!inMemory && !backend.isLocal() && (username == null || password == null)) {
+            screen.println("Username or password not provided.");
+            screen.flush();
+            System.exit(1);
+        }
+
+        try {
+            streamFetchSize = Integer.parseInt(prop.getProperty("streamFetchSize", "" + streamFetchSize));
+            streamWindowRows = Integer.parseInt(prop.getProperty("streamWindowRows", "" + streamWindowRows));
+            rebuildConnections = Integer.parseInt(prop.getProperty("rebuildConnections", "" + rebuildConnections));
+            poolSize = Integer.parseInt(prop.getProperty("poolSize", "" + poolSize));
+            resultCacheEntries = Integer.parseInt(prop.getProperty("resultCacheEntries", "" + resultCacheEntries));
+            resultCacheMB = Integer.parseInt(prop.getProperty("resultCacheMB", "" + resultCacheMB));
+            pageReadAhead = Integer.parseInt(prop.getProperty("pageReadAhead", "" + pageReadAhead));
+            pageCacheKB = Integer.parseInt(prop.getProperty("pageCacheKB", "" + pageCacheKB));
+            provisionIndexes = Boolean.parseBoolean(prop.getProperty("provisionIndexes", "" + provisionIndexes));
+            shadowRebuild = Boolean.parseBoolean(prop.getProperty("shadowRebuild", "" + shadowRebuild));
+            slowQueryMs = Integer.parseInt(prop.getProperty("slowQueryMs", "" + slowQueryMs));
+            slowQueryLogFile = prop.getProperty("slowQueryLog", slowQueryLogFile);
+            slowQueryLogKB = Integer.parseInt(prop.getProperty("slowQueryLogKB", "" + slowQueryLogKB));
+            slowQueryLogFiles = Integer.parseInt(prop.getProperty("slowQueryLogFiles", "" + slowQueryLogFiles));
+        } catch (NumberFormatException e) {
+            screen.println("Invalid streamFetchSize, streamWindowRows, rebuildConnections, poolSize, resultCacheEntries,"
+                    + " resultCacheMB, pageReadAhead, pageCacheKB, slowQueryMs, slowQueryLogKB or slowQueryLogFiles in"
+                    + " config file.");
+            screen.flush();
+            System.exit(1);
+        }
+
+        try {
+            slowQueryStatistics = SlowQueryLog.Statistics.valueOf(prop.getProperty("slowQueryStatistics",
+                    slowQueryStatistics.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            screen.println("Invalid slowQueryStatistics in config file (none, io or plan).");
+            screen.flush();
+            System.exit(1);
+        }
+
+        if (slowQueryMs >= 0) {
+            // Only a server can tell us its side, in memory there's just our timings
+            SlowQueryLog.Statistics statistics = !inMemory && backend.supportsStatistics() ? slowQueryStatistics
+                    : SlowQueryLog.Statistics.NONE;
+            slowLog = new SlowQueryLog(Path.of(slowQueryLogFile), slowQueryMs, slowQueryLogKB * 1024L,
+                    slowQueryLogFiles, statistics);
+        }
+
+        resultCache = new ResultCache(resultCacheEntries, resultCacheMB * 1024L * 1024L);
+
+        if (inMemory) {
+            loadMemoryDatabase();
+            return;
+        }
+
+        try {
+            pool = new ConnectionPool(this::openConnection, poolSize);
+
+            // Open the first connection now so we find out straight away if the server
+            // isn't reachable
+            pool.borrow().close();
+        } catch (SQLException e) {
+            if (backend.isLocal()) {
+                screen.println("Error opening the " + backend.description()
+                        + "! Is the sqlite-jdbc jar on the classpath (make run-local)?");
+            } else {
+                screen.println("Error connecting to SQL server! Are you on the CS network?");
+            }
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+
+        if (backend.isLocal()) {
+            buildLocalDatabaseIfEmpty();
+        }
+
+    }
+
+    // Opens a new connection to the database
+    Connection openConnection() throws SQLException {
+        return backend.open();
+    }
+
+    // A new local database has no tables, so build it from REBUILD_FILE_NAME first
+    private void buildLocalDatabaseIfEmpty() {
+
+        try (PooledConnection pooled = pool.borrow()) {
+            try (ResultSet tables = pooled.connection.getMetaData().getTables(null, null, QueryCatalog.RAW_TABLES[0],
+                    null)) {
+                if (tables.next()) {
+                    return;
+                }
+            }
+
+            screen.println("\tThe " + backend.description() + " is empty, building it from " + REBUILD_FILE_NAME
+                    + "...");
+            screen.flush();
+            RebuildReport report = rebuildDatabase(pooled.connection, true, false, false);
+            screen.println(String.format("\tBuilt in %.2f s", report.elapsedNanos / 1e9));
+            screen.flush();
+        } catch (SQLException e) {
+            screen.println("\nError: something went wrong when attempting to build the local database.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+    }
+
+    // Reads REBUILD_FILE_NAME (or SNAPSHOT_DIR_NAME) into memory (again, if it was
+    // already loaded)
+    private void loadMemoryDatabase() {
+        String source = memoryFromSnapshot ? SNAPSHOT_DIR_NAME : REBUILD_FILE_NAME;
+        try {
+            memory = memoryFromSnapshot ? MemoryDatabase.loadSnapshot(Path.of(source))
+                    : MemoryDatabase.load(Path.of(source));
+            memoryQueries = new MemoryQueries(memory);
+        } catch (IOException e) {
+            screen.println("Error: unable to load " + source + " into memory.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+    }
+
+    // Runs every query on the server and in memory and prints whether they agree.
+    // Exits with 1 if any of them didn't.
+    private void runParityCheck() {
+
+        loadMemoryDatabase();
+        screen.println("\tComparing " + backend.description() + " results with in-memory results...\n");
+        screen.flush();
+
+        try {
+            ParityCheck check = new ParityCheck(catalog, memory, pool);
+            check.backend = backend;
+            for (String line : check.run()) {
+                screen.println(line);
+            }
+            screen.flush();
+            shutdown();
+            System.exit(check.failed == 0 ? 0 : 1);
+        } catch (SQLException e) {
+            screen.println("\nError: something went wrong attempting to execute the SQL query.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+    }
+
+    // Runs the requests in input (a file, or - for stdin) with BatchRunner and exits.
+    // The rows go to output (stdout if null), so everything else goes to stderr.
+    private void runBatch(String input, BatchRunner.Format format, String output) {
+
+        if (memory != null) {
+            System.err.println("Batch mode runs on a database, not with --memory.");
+            System.exit(1);
+        }
+
+        BatchRunner runner = new BatchRunner(catalog, pool, poolSize);
+        runner.format = format;
+        runner.backend = backend;
+        runner.fetchSize = streamFetchSize;
+        runner.metrics = metrics;
+        runner.slowLog = slowLog;
+
+        List<BatchRequest> requests = null;
+        try (BufferedReader reader = input.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(input), StandardCharsets.UTF_8)) {
+            requests = runner.readRequests(reader);
+        } catch (IOException e) {
+            System.err.println("Error reading the batch requests from " + input + ".");
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error in the batch requests, " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            OutputStream out = output == null ? new BufferedOutputStream(System.out, 1 << 16)
+                    : new BufferedOutputStream(Files.newOutputStream(Path.of(output)), 1 << 16);
+            runner.run(requests, out);
+            if (output != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing the batch results" + (output == null ? "." : " to " + output + "."));
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        for (String line : runner.summary()) {
+            System.err.println(line);
+        }
+        System.err.println();
+        for (String line : metrics.summary()) {
+            System.err.println(line);
+        }
+        shutdown();
+        System.exit(runner.requestsFailed == 0 ? 0 : 1);
+    }
+
+    // Times the ways of answering the layover query, prints them and exits. Without
+    // a server (--memory) only the in-memory timings are run.
+    private void runLayoverBenchmark() {
+
+        if (memory == null) {
+            loadMemoryDatabase();
+        }
+        screen.println("\tTiming the layover query...\n");
+        screen.flush();
+
+        try {
+            LayoverBenchmark benchmark = new LayoverBenchmark(memory, catalog, pool);
+            benchmark.backend = backend;
+            for (String line : benchmark.run()) {
+                screen.println(line);
+            }
+            screen.flush();
+            shutdown();
+            System.exit(0);
+        } catch (SQLException e) {
+            screen.println("\nError: something went wrong attempting to execute the SQL query.");
+            screen.println(e.getMessage());
+            screen.flush();
             System.exit(1);
         }
+    }
+
+    // Moves an existing database to SchemaMigration's typed columns, prints the
+    // before and after query timings and exits. A rebuild does this anyway.
+    private void runSchemaMigration() {
+
+        if (backend.isLocal()) {
+            screen.println("\tNothing to migrate, the " + backend.description()
+                    + " is always built with the typed columns.");
+            screen.flush();
+            shutdown();
+            System.exit(0);
+        }
+
+        screen.println("\tMigrating the schema...\n");
+        screen.flush();
+
+        try (PooledConnection pooled = pool.borrow()) {
+            for (String line : new SchemaMigration(pooled.connection, catalog).migrate()) {
+                screen.println(line);
+            }
+        } catch (SQLException e) {
+            screen.println("\nError: something went wrong when attempting to migrate the schema.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+
+        // Anything cached came from the old columns
+        resultCache.invalidateAll();
+        screen.flush();
+        shutdown();
+        System.exit(0);
+    }
+
+    // Writes the in-memory database to SNAPSHOT_DIR_NAME and exits
+    private void runSnapshotCreate() {
+
+        screen.println("\tWriting the snapshot...\n");
+        screen.flush();
 
         try {
-            // final String CONNECTION_URL = "jdbc:sqlite:officialData.db";
-            final String CONNECTION_URL = "jdbc:sqlserver://uranium.cs.umanitoba.ca:1433;"
-                    + "database=cs3380;"
-                    + "user=" + username + ";"
-                    + "password=" + password + ";"
-                    + "encrypt=false;"
-                    + "trustServerCertificate=false;"
-                    + "loginTimeout=30;";
-
-            connection = DriverManager.getConnection(CONNECTION_URL);
+            long start = System.nanoTime();
+            long bytes = DatabaseSnapshot.write(memory, Path.of(SNAPSHOT_DIR_NAME));
+            screen.println(String.format("\tWrote %,d rows to %s (%,d bytes, %s is %,d bytes) in %.2f s",
+                    memory.rowsLoaded, SNAPSHOT_DIR_NAME, bytes, REBUILD_FILE_NAME,
+                    Files.size(Path.of(REBUILD_FILE_NAME)), (System.nanoTime() - start) / 1e9));
+        } catch (IOException e) {
+            screen.println("\nError: unable to write the snapshot.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+
+        screen.flush();
+        shutdown();
+        System.exit(0);
+    }
+
+    // Restores the server's database from SNAPSHOT_DIR_NAME, prints the rebuild
+    // summary and exits
+    private void runSnapshotRestore() {
+
+        screen.println("\tRestoring the database from " + SNAPSHOT_DIR_NAME + "...\n");
+        screen.flush();
+
+        boolean failed = false;
+        try (PooledConnection pooled = pool.borrow()) {
+            RebuildReport report = rebuildDatabase(pooled.connection, true, false, true);
+            for (String line : report.summary()) {
+                screen.println(line);
+            }
+            failed = report.failure != null;
         } catch (SQLException e) {
-            System.out.println("Error connecting to SQL server! Are you on the CS network?");
-            System.out.println(e.getMessage());
+            screen.println("\nError: something went wrong when attempting to restore the snapshot.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        }
+
+        screen.flush();
+        shutdown();
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Times restoring from the snapshot against the script, prints it and exits.
+    // Without a server (--memory) only the in-memory timings are run.
+    private void runSnapshotBenchmark() {
+
+        screen.println("\tTiming the snapshot against the script...\n");
+        screen.flush();
+
+        PooledConnection pooled = null;
+        try {
+            // (Only the SQL server can restore a snapshot)
+            if (pool != null && backend.supportsBulkCopy()) {
+                pooled = pool.borrow();
+            }
+            SnapshotBenchmark benchmark = new SnapshotBenchmark(Path.of(REBUILD_FILE_NAME), Path.of(SNAPSHOT_DIR_NAME),
+                    pooled == null ? null : pooled.connection, this::openConnection);
+            benchmark.loadConnections = rebuildConnections;
+            for (String line : benchmark.run()) {
+                screen.println(line);
+            }
+        } catch (IOException | SQLException e) {
+            screen.println("\nError: something went wrong when timing the snapshot.");
+            screen.println(e.getMessage());
+            screen.flush();
             System.exit(1);
+        } finally {
+            if (pooled != null) {
+                pooled.close();
+            }
         }
 
+        // The server's tables were replaced, so nothing cached can be trusted
+        resultCache.invalidateAll();
+        screen.flush();
+        shutdown();
+        System.exit(0);
     }
 
+    // With no arguments, runs against the SQL server (or whatever backend auth.cfg picks).
+    // --local runs against the local SQLite database instead, building it first if it's new.
+    // --memory runs against populate.sql loaded into memory instead, no server needed.
+    // --parity checks the two give the same answers, then exits.
+    // --bench-layovers times the layover query (in memory only with --memory), then exits.
+    // --migrate-schema moves a database built before the typed columns over to them, then exits.
+    // --snapshot-create writes populate.sql to the binary snapshot, then exits.
+    // --snapshot-restore restores the server from the snapshot, then exits. With --memory it
+    // loads the in-memory database from the snapshot instead, and carries on as normal.
+    // --bench-snapshot times the snapshot against the script (in memory only with --memory), then exits.
+    // --batch FILE runs the queries listed in FILE (- for stdin) without the menu, writing their rows
+    // to stdout (or --out FILE) as --format jsonl (the default) or csv, then exits. See BatchRunner.
     public static void main(String[] args) {
 
+        boolean inMemory = false;
+        boolean local = false;
+        boolean parity = false;
+        boolean benchLayovers = false;
+        boolean migrateSchema = false;
+        boolean snapshotCreate = false;
+        boolean snapshotRestore = false;
+        boolean benchSnapshot = false;
+        String batchInput = null;
+        String batchOutput = null;
+        BatchRunner.Format batchFormat = BatchRunner.Format.JSONL;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if (arg.equals("--memory")) {
+                inMemory = true;
+            } else if (arg.equals("--local")) {
+                local = true;
+            } else if (arg.equals("--parity")) {
+                parity = true;
+            } else if (arg.equals("--bench-layovers")) {
+                benchLayovers = true;
+            } else if (arg.equals("--migrate-schema")) {
+                migrateSchema = true;
+            } else if (arg.equals("--snapshot-create")) {
+                snapshotCreate = true;
+            } else if (arg.equals("--snapshot-restore")) {
+                snapshotRestore = true;
+            } else if (arg.equals("--bench-snapshot")) {
+                benchSnapshot = true;
+            } else if (arg.equals("--batch") && hasValue) {
+                batchInput = args[++i];
+            } else if (arg.equals("--out") && hasValue) {
+                batchOutput = args[++i];
+            } else if (arg.equals("--format") && hasValue
+                    && (args[i + 1].equalsIgnoreCase("csv") || args[i + 1].equalsIgnoreCase("jsonl"))) {
+                batchFormat = BatchRunner.Format.valueOf(args[++i].toUpperCase());
+            } else {
+                screen.println("Usage: java DBInterface [--memory | --local] [--parity | --bench-layovers | --migrate-schema"
+                        + " | --snapshot-create | --snapshot-restore | --bench-snapshot"
+                        + " | --batch FILE [--format jsonl|csv] [--out FILE]]");
+                screen.flush();
+                System.exit(1);
+            }
+        }
+
         // DBInterface object
-        DBInterface db = new DBInterface();
+        // (Creating a snapshot only needs populate.sql in memory, no server)
+        DBInterface db = new DBInterface((inMemory && !parity && !migrateSchema) || snapshotCreate,
+                inMemory && snapshotRestore, local);
+
+        if (parity) {
+            db.runParityCheck();
+        } else if (benchLayovers) {
+            db.runLayoverBenchmark();
+        } else if (migrateSchema) {
+            db.runSchemaMigration();
+        } else if (snapshotCreate) {
+            db.runSnapshotCreate();
+        } else if (snapshotRestore && !inMemory) {
+            db.runSnapshotRestore();
+        } else if (benchSnapshot) {
+            db.runSnapshotBenchmark();
+        } else if (batchInput != null) {
+            db.runBatch(batchInput, batchFormat, batchOutput);
+        }
 
         // This is the main program loop. The program is ALWAYS somewhere in here.
         while (true) {
@@ -109,7 +626,8 @@ public class DBInterface {
                     break;
                 case QUIT:
                     db.shutdown();
-                    System.out.print("\033[H\033[2J");
+                    screen.print("\033[H\033[2J");
+                    screen.flush();
                     System.exit(0);
                     break;
             }
@@ -125,29 +643,15 @@ public class DBInterface {
 
         clearTerminal();
 
-        // Update this if you add or remove numeric options to the menu
-        final int NUMBER_OF_OPTIONS = 17;
-
-        System.out.println("\t[ 1] Track pilot's journey in a day");
-        System.out.println("\t[ 2] Passengers on layover");
-        System.out.println("\t[ 3] Most productive employees");
-        System.out.println("\t[ 4] Most popular airlines");
-        System.out.println("\t[ 5] Passengers flying home");
-        System.out.println("\t[ 6] Top plane models requiring servicing");
-        System.out.println("\t[ 7] All flights departing from airport");
-        System.out.println("\t[ 8] All luggage owned by passenger");
-        System.out.println("\t[ 9] All flights from airport");
-        System.out.println("\t[10] Most common destination airport based on origin airport");
-        System.out.println("\t[11] Average age of aircraft in airline fleet");
-        System.out.println("\t[12] Average number of bags per passenger on flight");
-        System.out.println("\t[13] Employee's completed jobs");
-        System.out.println("\t[14] List all or some employees");
-        System.out.println("\t[15] Average flight length from origin and destination");
-        System.out.println("\t[16] Raw table information");
-        System.out.println("\t[17] Rebuild database");
-
-        System.out.println("\n\t[Q] To exit program.");
-        System.out.println("\n\t[H] For help.\n");
+        // The menu comes from the query catalog
+        final int NUMBER_OF_OPTIONS = catalog.menu().size();
+
+        for (MenuEntry entry : catalog.menu()) {
+            screen.println(entry.menuLine());
+        }
+
+        screen.println("\n\t[Q] To exit program.");
+        screen.println("\n\t[H] For help.\n");
 
         // Get user input. Keep asking until their input is a valid int.
 
@@ -155,7 +659,8 @@ public class DBInterface {
         String userInput = "";
 
         while (!validInput) {
-            System.out.print("\tEnter selection >>> ");
+            screen.print("\tEnter selection >>> ");
+            screen.flush();
             userInput = sc.nextLine().trim().toLowerCase();
 
             if (userInput.equals("q")) {
@@ -179,10 +684,10 @@ public class DBInterface {
                 // Do nothing. validInput remains false, the loop continues.
             }
 
-            System.out.println("\tPlease enter a valid input!");
+            screen.println("\tPlease enter a valid input!");
             // ANSI spaghetti. This sends the cursor up 2 lines so that we don't run off the
             // screen if the user spams bad inputs
-            System.out.print("\033[1A\033[1A\033[2K\r");
+            screen.print("\033[1A\033[1A\033[2K\r");
 
         }
 
@@ -193,77 +698,37 @@ public class DBInterface {
 
         clearTerminal();
 
-        String helpText = """
-        \tDescription of commands:
-
-        \t[ 1] Track pilot's journey in a day
-        \t\tNo parameters
-        \t\tReturns all flights that a pilot operated during the day.\n
-        \t[ 2] Passengers on layover
-        \t\tParameter: Airport ICAO code
-        \t\tReturns the number of passengers laid over at this airport (i.e. arrived and immediately departed).\n
-        \t[ 3] Most productive employees
-        \t\tNo parameters
-        \t\tReturns all employees who completed the most jobs, of any type.\n
-        \t[ 4] Most popular airlines
-        \t\tNo parameters
-        \t\tReturns the top 10 airlines with the most bookings.\n
-        \t[ 5] Passengers flying home
-        \t\tNo parameters
-        \t\tReturns the amount of passengers flying to their country of citizenship, grouped by country.\n
-        \t[ 6] Top plane models requiring servicing
-        \t\tNo parameters
-        \t\tReturns the aircraft models that have the most service records.\n
-        \t[ 7] All flights departing from airport
-        \t\tParameter: Airport ICAO code
-        \t\tReturns all flights that departed from the input airport.\n
-        \t[ 8] All luggage owned by passenger
-        \t\tParameter: Passenger phone number
-        \t\tReturns all pieces of luggage owned by a passenger.\n
-        \t[ 9] All flights by an airline
-        \t\tParameter: Airline name
-        \t\tReturns all flights operated by a specific airline.\n
-        \t[10] Most common destination airport based on origin airport
-        \t\tParameter: Origin airport ICAO code
-        \t\tReturns the most common destination airports given an origin airport.\n
-        \t[11] Average age of aircraft in airline fleet
-        \t\tNo parameters
-        \t\tReturns the average age of all aircraft in airline's fleets, grouped by airline.\n
-        \t[12] Average number of bags per passenger on flight
-        \t\tParameter: Flight number
-        \t\tReturns the average number of bags per passenger on a given flight.\n
-        \t[13] Employee's completed jobs
-        \t\tParameter: Employee SIN
-        \t\tReturns all jobs completed by an employee.\n
-        \t[14] List all or some employees
-        \t\tSubqueries: Select type of employee, or all
-        \t\tReturns all employees of a given type, or all employees.\n
-        \t[15] Average flight length from origin and destination
-        \t\tParameter: Origin airport ICAO code
-        \t\tParameter: Destination airport ICAO code
-        \t\tReturns the average duration of all flights from the origin airport to the destination airport.\n
-        \t[16] Raw table information
-        \t\tSubqueries: Choose an individual table
-        \t\tReturns an entire table, based on selection.\n
-        \t[17] Rebuild database
-        \t\tNo parameters
-        \t\tRebuilds the entire database server-side. Will ask for confirmation.\n
-        """;
-
-        System.out.print(helpText);
-        System.out.print("\n\tPress any key to return to main menu... ");
+        String helpText = catalog.helpText();
+
+        screen.print(helpText);
+        screen.print("\n\tPress any key to return to main menu... ");
+        screen.flush();
         sc.nextLine();
 
         this.state = ProgramState.MAIN_MENU;
     }
 
     // Displays a query based on what the user wants.
-    // First ingests the query into the rows 2D array list and also some metadata
+    // First ingests the query into a QueryResults and also some metadata
     // useful later.
     public void displayQuery() {
+
+        // Connection for this query. Given back to the pool as soon as we're done with
+        // it (straight after reading the results, unless they're being streamed).
+        PooledConnection pooled = null;
+
+        // Only set when paging through a raw table. Uses pooled's connection, so has to
+        // be closed before it goes back.
+        TablePager pager = null;
+
         try {
 
+            if (memory == null) {
+                pooled = pool.borrow();
+            }
+
             // Build the query based on the desired selection from the user.
+            MenuEntry entry = catalog.menuEntry(this.querySelection);
             String sql = "";
 
             PreparedStatement statement = null; // Scary but shouldn't cause issues. This won't stay null.
@@ -271,355 +736,165 @@ public class DBInterface {
             String sqlQuery = ""; // To be used in conjunction with Statement, PreparedStatement doesn't need this
 
             Boolean rebuilt = false;
+            ArrayList<String> rebuildSummary = null;
+            boolean rebuildFailed = false; // Only a shadow rebuild can fail without exiting
+            Boolean streaming = false; // Stream rows from the cursor instead of loading them all up front
+            String runningTitle = ""; // Shown while the query runs
+            int timeoutSeconds = QueryCatalog.DEFAULT_TIMEOUT_SECONDS;
+
+            // Set if the results came out of the result cache or the in-memory database, so
+            // there's nothing to run
+            QueryResults queryResults = null;
+            boolean fromCache = false;
+            long memoryNanos = -1;
+            // Set if the results should go into the result cache once they're read
+            QueryDefinition cacheQuery = null;
+            Object[] cacheValues = null;
+            // Set if the query being run is a catalog one, so its timings are recorded
+            QueryDefinition timedQuery = null;
+            Object[] timedValues = null;
+            long prepareNanos = -1;
+            // What [E] exports, either a catalog query with its parameters or a raw table
+            QueryDefinition exportQuery = null;
+            Object[] exportValues = null;
+            String exportTable = null;
 
-            String tempString = "";
             int tempInt = -1;
-
-            switch (this.querySelection) {
-
-                // Track pilot's journey in a day
-                case 1:
-                    sql = """
-                            SELECT Flights.flightNum, Flights.origin, Flights.schedDep, Flights.destination, Flights.schedArr FROM Fly
-                            JOIN Flights ON Fly.flightNum = Flights.flightNum
-                            WHERE SIN = ?
-                            ORDER BY Flights.schedDep ASC
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempInt = getUserIntInput("Enter pilot SIN");
-                    statement.setInt(1, tempInt);
-                    break;
-
-                // Number of passengers on layover at a given airport
-                // SEE HELP MENU FOR CLARIFICATION
-                case 2:
-                    sql = """
-                            -- Get all passengers who arrived at the airport at some point during day
-                            WITH arrivingPassengers AS
-                            (
-                                SELECT Passenger.passNum, Flights.flightNum, Flights.schedArr FROM Passenger
-                                JOIN Book ON Passenger.passNum = Book.passNum
-                                JOIN Flights ON Book.flightNum = Flights.flightNum
-                                JOIN Airports ON Flights.destination = Airports.ICAO
-                                WHERE Airports.icao = ?
-                            )
-
-                            -- Find any of those passengers who got on a flight later than the arrival time in arrivingPassengers
-                            SELECT COUNT(*) as noOfPassengersOnLayover FROM arrivingPassengers
-                            WHERE EXISTS
-                            (
-                                SELECT * FROM Flights
-                                JOIN Book ON Flights.flightNum = Book.flightNum
-                                JOIN Passenger ON Book.passNum = Passenger.passNum
-                                WHERE Flights.schedDep > arrivingPassengers.schedArr
-                                AND Passenger.passNum = arrivingPassengers.passNum
-                            )
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempString = getUserStringInput("Enter airport ICAO code").toUpperCase();
-                    statement.setString(1, tempString);
-                    break;
-
-                // Most productive employees
-                case 3:
-                    sql = """
-                            SELECT CAST(Employee.SIN AS VARCHAR(50)) as SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, COUNT(*) as jobsCompleted
-                            FROM Employee JOIN
-
-                            (SELECT Service.SIN FROM Service
-                            UNION ALL
-                            SELECT Guide.SIN FROM Guide
-                            UNION ALL
-                            SELECT Fly.SIN FROM Fly
-                            UNION ALL
-                            SELECT Attend.SIN FROM Attend) temp_table
-
-                            ON Employee.SIN = temp_table.SIN
-                            GROUP BY CAST(Employee.SIN AS VARCHAR(50)), CAST(Employee.first AS VARCHAR(50)), CAST(Employee.last AS VARCHAR(50))
-                            ORDER BY COUNT(*) DESC, last ASC
-                            """;
-                    statementBasic = connection.createStatement();
-                    sqlQuery = sql;
-                    break;
-
-                // Most popular airlines
-                case 4:
-                    sql = """
-                            SELECT TOP 10 Book.airline, COUNT(*) as bookings FROM Book
-                            GROUP BY Book.airline
-                            ORDER BY bookings DESC
-                            """;
-                    statementBasic = connection.createStatement();
-                    sqlQuery = sql;
-                    break;
-
-                // Get number of passengers flying home
-                case 5:
-                    sql = """
-                            SELECT COUNT(*) AS numPassengersFlyingHome, CAST(Passenger.citizen AS VARCHAR(10)) AS country FROM Passenger
-                            JOIN Book ON Passenger.passNum = Book.passNum
-                            JOIN Flights ON Book.flightNum = Flights.flightNum
-                            JOIN Airports ON Flights.destination = Airports.icao
-                            WHERE CAST(Airports.country AS VARCHAR(10)) = CAST(Passenger.citizen AS VARCHAR(10))
-                            GROUP BY CAST(Passenger.citizen AS VARCHAR(10))
-                            ORDER BY numPassengersFlyingHome DESC
-                            """;
-                    statementBasic = connection.createStatement();
-                    sqlQuery = sql;
-                    break;
-
-                // Get most serviced plane models
-                case 6:
-                    sql = """
-                            SELECT CAST(Planes.manufacturer AS VARCHAR(200)) as manufacturer, CAST(Planes.model AS VARCHAR(200)) as model, COUNT(*) as numberOfServices FROM Service
-                            JOIN Planes ON Service.tailNum = Planes.tailNum
-                            WHERE Planes.model IS NOT NULL
-                            GROUP BY CAST(Planes.model AS VARCHAR(200)), CAST(Planes.manufacturer AS VARCHAR(200))
-                            ORDER BY numberOfServices DESC
-                            """;
-                    statementBasic = connection.createStatement();
-                    sqlQuery = sql;
-                    break;
-
-                // All flights departing from an airport
-                case 7:
-                    sql = """
-                            SELECT flightNum, origin, destination, Airlines.airlineName
-                            FROM Flights f
-                            JOIN Airports a
-                            ON f.origin = a.icao
-                            JOIN Planes p
-                            ON f.tailNum = p.tailNum
-                            JOIN Airlines
-                            ON Airlines.airlineName = p.airline
-                            WHERE origin = ?
-                            ORDER BY Airlines.airlineName, f.flightNum
-                            ASC
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempString = getUserStringInput("Enter airport ICAO code").toUpperCase();
-                    statement.setString(1, tempString);
-                    break;
-
-                // Get all luggage belonging to a passenger, based on phone number
-                case 8:
-                    sql = """
-                            SELECT Luggage.ID, Luggage.type FROM Passenger
-                            JOIN Luggage on Passenger.passNum = Luggage.passNum
-                            WHERE CAST(Passenger.phoneNum AS VARCHAR(50)) = ?
-                            ORDER BY Luggage.ID ASC
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempString = getUserStringInput("Enter passenger phone number (with hyphens)");
-                    statement.setString(1, tempString);
-                    break;
-
-                // All flights from an airline
-                case 9:
-                    sql = """
-                            SELECT Flights.* FROM Airlines 
-                            JOIN Planes ON Airlines.airlineName = Planes.airline
-                            JOIN Flights ON Planes.tailNum = Flights.tailNum
-                            WHERE Airlines.airlineName = ?
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    statement.setString(1, getUserStringInput("Enter airline name").toUpperCase());
-                    break;
-
-                // Get most common destination airport given an origin airport code
-                case 10:
-                    sql = """
-                            SELECT Flights.destination as airportCode, CAST(Airports.airportName AS VARCHAR(200)) as airportName, COUNT(*) as numberOfFlights FROM Flights
-                            JOIN Airports ON Flights.destination = Airports.icao
-                            WHERE Flights.origin = ?
-                            GROUP BY Flights.destination, CAST(Airports.airportName AS VARCHAR(200))
-                            ORDER BY numberOfFlights DESC
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempString = getUserStringInput("Enter airport ICAO code").toUpperCase();
-                    statement.setString(1, tempString);
-                    break;
-
-                // Average age of aircraft in airline fleet
-                case 11:
-                    sql = """
-                            SELECT Airlines.airlineName, FORMAT(AVG(2025 - 1.0 * Planes.year), 'N2') as averageAge FROM Planes
-                            JOIN Airlines ON Planes.airline = Airlines.airlineName
-                            GROUP BY Airlines.airlineName
-                            HAVING AVG(2025 - Planes.year) IS NOT NULL
-                            ORDER BY AVG(2025 - Planes.year) DESC
-                            """;
-                    statementBasic = connection.createStatement();
-                    sqlQuery = sql;
-                    break;
-
-                // Average number of bags per passenger on a flight
-                case 12:
-                    sql = """
-                            SELECT AVG(numBags) as avgBagsPerPassenger FROM
-                            (SELECT Passenger.passNum, COUNT(*) as numBags FROM Luggage
-                            JOIN Passenger ON Luggage.passNum = Passenger.passNum
-                            JOIN Book ON Passenger.passNum = Book.passNum
-                            WHERE Book.flightNum = ?
-                            GROUP BY Passenger.passNum
-                            ) temp
-                            HAVING AVG(numBags) IS NOT NULL
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempString = getUserStringInput("Enter flight number").toUpperCase();
-                    statement.setString(1, tempString);
-                    break;
-
-                // Employee's completed jobs
-                case 13:
-                    sql = """
-                            WITH flyJobs AS
-
-                            ((SELECT 'Service' AS jobType, Service.SIN, Service.tailNum AS tailOrFlightNumber FROM Service)
-                            UNION ALL
-                            (SELECT 'Guide' AS jobType, Guide.SIN, Guide.tailNum AS tailOrFlightNumber FROM Guide)
-                            UNION ALL
-                            (SELECT 'Fly' AS jobType, Fly.SIN, Fly.flightNum AS tailOrFlightNumber FROM Fly)
-                            UNION ALL
-                            (SELECT 'Attend' AS jobType, Attend.SIN, Attend.flightNum AS tailOrFlightNumber FROM Attend))
-
-                            SELECT jobType, tailOrFlightNumber FROM flyJobs WHERE flyJobs.SIN = ?
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempInt = getUserIntInput("Enter employee SIN");
-                    statement.setInt(1, tempInt);
-
-                    break;
-
-                // Get all employees of a specific type
-                case 14:
-
-                    clearTerminal();
-
-                    // This is a special case with some suboptions
-                    System.out.println("\tSelect the type of employee to list.\n");
-                    System.out.println("\t[1] Pilots");
-                    System.out.println("\t[2] Maintenance staff");
-                    System.out.println("\t[3] Air Traffic Controllers");
-                    System.out.println("\t[4] Flight Attendants");
-                    System.out.println("\t[5] All employees\n");
-
-                    tempInt = getUserIntInput("Enter selection (1-5)", 1, 5);
-
-                    // I seriously hate MS SQL Server. So many CASTs to get this to work. SQLite is better.
-                    if (tempInt == 1) {
-                        sql = """
-                                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, Employee.airline FROM Employee
-                                JOIN Fly ON Employee.SIN = Fly.SIN
-                                ORDER BY last, first, Employee.SIN ASC
-                              """;
-                    } else if (tempInt == 2) {
-                        sql = """
-                                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) AS last, Employee.icao AS airport FROM Employee
-                                JOIN Service ON Employee.SIN = Service.SIN
-                                ORDER BY last, first, Employee.SIN ASC
-                              """;
-                    } else if (tempInt == 3) {
-                        sql = """
-                                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, Employee.icao AS airport FROM Employee
-                                JOIN Guide ON Employee.SIN = Guide.SIN
-                                ORDER BY last, first, Employee.SIN ASC
-                              """;
-                    } else if (tempInt == 4) {
-                        sql = """
-                                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, Employee.airline FROM Employee
-                                JOIN Attend ON Employee.SIN = Attend.SIN
-                                ORDER BY last, first, Employee.SIN ASC  
-                              """;
-                    } else if (tempInt == 5) {
-                        sql = """
-                                WITH allEmployees AS (
-                                    SELECT 'Pilot' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
-                                    JOIN Fly ON Employee.SIN = Fly.SIN
-                                    UNION ALL
-                                    SELECT 'Maintenance' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
-                                    JOIN Service ON Employee.SIN = Service.SIN
-                                    UNION ALL
-                                    SELECT 'ATC' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
-                                    JOIN Guide ON Employee.SIN = Guide.SIN
-                                    UNION ALL
-                                    SELECT 'Attendant' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
-                                    JOIN Attend ON Employee.SIN = Attend.SIN
-                                )
-
-                                SELECT DISTINCT allEmployees.type, CAST(allEmployees.last AS VARCHAR(50)) as last, CAST(allEmployees.first AS VARCHAR(50)) as first, allEmployees.SIN FROM allEmployees
-                                ORDER BY last, first, allEmployees.SIN ASC
-                              """;
+            boolean coalesceInserts = true;
+            boolean incremental = false;
+            boolean fromSnapshot = false;
+
+            switch (entry.kind) {
+
+                // One of the catalog queries. Ask for a sub-option if it has them, then for
+                // its parameters.
+                case QUERY:
+                    QueryDefinition query = chooseVariant(entry);
+                    Object[] values = askParameters(query);
+                    exportQuery = query;
+                    exportValues = values;
+
+                    if (memory != null) {
+                        long start = System.nanoTime();
+                        queryResults = memoryQueries.run(query, values);
+                        memoryNanos = System.nanoTime() - start;
+                        metrics.recordQuery(query.id, query.title, -1, memoryNanos, -1, -1, queryResults.noRows,
+                                queryResults.estimatedBytes());
+                        if (slowLog != null && slowLog.isSlow(memoryNanos)) {
+                            SlowQuery slow = new SlowQuery(query, values);
+                            slow.source = "memory";
+                            slow.executeNanos = memoryNanos;
+                            slow.totalNanos = memoryNanos;
+                            slow.rows = queryResults.noRows;
+                            slow.bytes = queryResults.estimatedBytes();
+                            slowLog.log(slow);
+                        }
+                        break;
                     }
 
-                    statementBasic = connection.createStatement();
-                    sqlQuery = sql;
-
-                    break;
+                    // Same query with the same parameters since the last rebuild? Then we
+                    // already have the answer.
+                    if (query.cacheable) {
+                        queryResults = resultCache.get(query.id, values);
+                        if (queryResults != null) {
+                            fromCache = true;
+                            metrics.query(query.id, query.title).cacheHits.increment();
+                            break;
+                        }
+                        cacheQuery = query;
+                        cacheValues = values;
+                    }
 
-                // Get average length of flight between origin and destination
-                case 15:
-                    sql = """
-                            SELECT AVG(flightTime) as "avgFlightTime (mins)" FROM (
-                            SELECT *, DATEDIFF(minute, Flights.schedDep, Flights.schedArr) AS flightTime FROM Flights
-                            WHERE Flights.origin = ? AND Flights.destination = ?) temp
-                            """;
-                    statement = connection.prepareStatement(sql);
-                    tempString = getUserStringInput("Enter origin airport ICAO code").toUpperCase();
-                    statement.setString(1, tempString);
-                    tempString = getUserStringInput("Enter destination airport ICAO code").toUpperCase();
-                    statement.setString(2, tempString);
+                    long prepareStart = System.nanoTime();
+                    statement = pooled.prepare(query.id, backend.querySql(query));
+                    query.bind(statement, values);
+                    prepareNanos = System.nanoTime() - prepareStart;
+                    timedQuery = query;
+                    timedValues = values;
+                    runningTitle = query.title;
+                    timeoutSeconds = query.timeoutSeconds;
                     break;
 
                 // Raw table information
-                case 16:
+                case RAW_TABLE:
 
                     clearTerminal();
 
                     // This is a special case with some suboptions
-                    System.out.println("\tSelect a table to dump.\n");
-                    System.out.println("\t[ 1] Airlines");
-                    System.out.println("\t[ 2] Airports");
-                    System.out.println("\t[ 3] Attend");
-                    System.out.println("\t[ 4] Book");
-                    System.out.println("\t[ 5] CreditCards");
-                    System.out.println("\t[ 6] Employee");
-                    System.out.println("\t[ 7] Flights");
-                    System.out.println("\t[ 8] Fly");
-                    System.out.println("\t[ 9] Guide");
-                    System.out.println("\t[10] Luggage");
-                    System.out.println("\t[11] Passenger");
-                    System.out.println("\t[12] Planes");
-                    System.out.println("\t[13] Runways");
-                    System.out.println("\t[14] Service\n");
-
-                    tempInt = getUserIntInput("Enter selection (1-14)", 1, 14);
-
-                    // When we get here, userTableSelection is an int between 1 and 5 (inclusive)
-                    String[] tableMap = { "", "Airlines", "Airports", "Attend", "Book", "CreditCards", "Employee",
-                            "Flights", "Fly", "Guide", "Luggage", "Passenger", "Planes", "Runways", "Service" };
-                    String tableName = tableMap[tempInt];
+                    screen.println("\tSelect a table to dump.\n");
+                    for (int i = 0; i < QueryCatalog.RAW_TABLES.length; i++) {
+                        screen.println(String.format("\t[%2d] %s", i + 1, QueryCatalog.RAW_TABLES[i]));
+                    }
+                    screen.println();
+
+                    tempInt = getUserIntInput("Enter selection (1-" + QueryCatalog.RAW_TABLES.length + ")", 1,
+                            QueryCatalog.RAW_TABLES.length);
+                    String tableName = QueryCatalog.RAW_TABLES[tempInt - 1];
+                    exportTable = tableName;
+
+                    if (memory != null) {
+                        long start = System.nanoTime();
+                        queryResults = memoryQueries.rawTable(tableName);
+                        memoryNanos = System.nanoTime() - start;
+                        break;
+                    }
+
+                    // Raw tables can be big, so page through them on the server, one page at a
+                    // time, by primary key
+                    TableDefinition definition = rawTableSchema().get(tableName);
+                    if (TablePager.canPage(definition)) {
+                        pager = new TablePager(pooled.connection, backend, definition, 15, pageReadAhead,
+                                pageCacheKB * 1024L);
+                        queryResults = pager.first();
+                        break;
+                    }
 
+                    // No primary key to page on, so use a forward-only cursor and only pull rows
+                    // as the user scrolls to them.
                     sql = "SELECT * FROM " + tableName;
-                    statementBasic = connection.createStatement();
+                    statementBasic = pooled.connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                            ResultSet.CONCUR_READ_ONLY);
+                    statementBasic.setFetchSize(streamFetchSize);
+                    statementBasic.setQueryTimeout(timeoutSeconds);
                     sqlQuery = sql;
+                    runningTitle = tableName;
+                    streaming = true;
 
                     break;
 
                 // Rebuild database
-                case 17:
+                case REBUILD:
 
                     while (true) {
 
                         clearTerminal();
-                        System.out.println("\tAre you sure you want to rebuild the database?");
-                        System.out.println(
-                                "\t[Y] to proceed with rebuild, [M] to return to menu, [Q] to quit\n");
+                        screen.println("\tAre you sure you want to rebuild the database?");
+                        screen.println(
+                                "\t[Y] to proceed with rebuild, [M] to return to menu, [Q] to quit");
+                        screen.println(
+                                "\t[I] to reload only the tables that changed in " + REBUILD_FILE_NAME + " since the last rebuild");
+                        if (canRestoreSnapshot()) {
+                            screen.println("\t[R] to restore from the binary snapshot in " + SNAPSHOT_DIR_NAME
+                                    + " instead of the script");
+                        }
+                        screen.println(
+                                "\t[S] to rebuild one INSERT at a time (slow, for comparing rebuild times)\n");
 
-                        System.out.print("\t>>> ");
+                        screen.print("\t>>> ");
+                        screen.flush();
                         String uIn = sc.nextLine().trim().toLowerCase();
 
                         if (uIn.equals("y")) {
+                            coalesceInserts = true;
+                            break;
+                        } else if (uIn.equals("i")) {
+                            incremental = true;
+                            break;
+                        } else if (uIn.equals("r") && canRestoreSnapshot()) {
+                            fromSnapshot = true;
+                            break;
+                        } else if (uIn.equals("s")) {
+                            coalesceInserts = false;
                             break;
                         } else if (uIn.equals("m")) {
                             this.state = ProgramState.MAIN_MENU;
@@ -628,181 +903,580 @@ public class DBInterface {
                             this.state = ProgramState.QUIT;
                             return;
                         } else {
-                            System.out.println("\tPlease enter a valid input!");
+                            screen.println("\tPlease enter a valid input!");
                             // ANSI spaghetti. This sends the cursor up 2 lines so that we don't run off the
                             // screen if the user spams bad inputs
-                            System.out.print("\033[1A\033[1A\033[2K\r");
+                            screen.print("\033[1A\033[1A\033[2K\r");
                         }
 
                     }
 
-                    System.out.println("\tRebuilding database...");
-                    rebuildDatabase();
+                    screen.println("\tRebuilding database...");
+                    screen.flush();
+                    if (memory != null) {
+                        // Nothing on a server to rebuild, just reload the script
+                        resultCache.invalidateAll();
+                        loadMemoryDatabase();
+                        rebuildSummary = memory.summary();
+                    } else {
+                        RebuildReport report = rebuildDatabase(pooled.connection, coalesceInserts, incremental,
+                                fromSnapshot);
+                        rebuildSummary = report.summary();
+                        rebuildFailed = report.failure != null;
+                    }
                     rebuilt = true;
                     break;
 
-                default:
-                    // Placeholder during development. This should never run in practice.
-                    this.state = ProgramState.MAIN_MENU;
+                // Query metrics
+                case METRICS:
+                    showMetrics();
                     return;
 
             }
 
             if (!rebuilt) { // A query is to be executed
-                // Execute the query and gather some metadata on it
-                ResultSet resultSet;
-
-                if (statement != null) {
-                    resultSet = statement.executeQuery();
-                } else { // statement is null, so statementBasic guaranteed to NOT be null
-                    resultSet = statementBasic.executeQuery(sqlQuery);
-                }
+                if (queryResults != null) {
+                    // Nothing to run, so the connection (if any) can go straight back. Except
+                    // when paging, the pager needs it for the other pages.
+                    if (pooled != null && pager == null) {
+                        pooled.close();
+                        pooled = null;
+                    }
+                } else {
+                    // Execute the query and read the results in the background, so the user can
+                    // see it's still going and cancel it. Streaming results only hold the first
+                    // batch at this point, the rest is fetched as the user scrolls.
+                    final PreparedStatement prepared = statement;
+                    final Statement basic = statementBasic;
+                    final String basicSql = sqlQuery;
+                    final boolean stream = streaming;
+                    // Execute, first row and fetch times, filled in by the query's thread
+                    final long[] timings = { -1, -1, -1 };
+                    // Filled in as well in case the query turns out to be slow. Any server
+                    // statistics have to be asked for before it runs.
+                    final SlowQuery slow = slowLog != null && timedQuery != null
+                            ? new SlowQuery(timedQuery, timedValues)
+                            : null;
+                    final Connection connection = pooled.connection;
+                    RunningQuery running = new RunningQuery(prepared != null ? prepared : basic, timeoutSeconds,
+                            rowsFetched -> {
+                                if (slow != null) {
+                                    slowLog.serverStatistics(connection, true);
+                                }
+                                try {
+                                    long start = System.nanoTime();
+                                    ResultSet resultSet = prepared != null ? prepared.executeQuery()
+                                            : basic.executeQuery(basicSql);
+                                    timings[0] = System.nanoTime() - start;
+                                    if (stream) {
+                                        return new QueryResults(resultSet, Math.max(streamFetchSize, 15),
+                                                streamWindowRows);
+                                    }
+                                    QueryResults results = new QueryResults(resultSet, rowsFetched);
+                                    resultSet.close();
+                                    timings[1] = results.firstRowAt == 0 ? -1 : results.firstRowAt - start;
+                                    timings[2] = System.nanoTime() - start - timings[0];
+                                    if (slow != null) {
+                                        slowLog.readServerStatistics(prepared, slow);
+                                    }
+                                    return results;
+                                } finally {
+                                    if (slow != null) {
+                                        slowLog.serverStatistics(connection, false);
+                                    }
+                                }
+                            });
+
+                    queryResults = waitForQuery(running, runningTitle);
+                    if (queryResults == null) { // Cancelled or timed out, and the user has been told
+                        if (timedQuery != null) {
+                            QueryStats stats = metrics.query(timedQuery.id, timedQuery.title);
+                            if (running.wasCancelled()) {
+                                stats.cancelled.increment();
+                            } else {
+                                stats.timedOut.increment();
+                            }
+                        }
+                        if (slow != null) {
+                            slow.outcome = running.wasCancelled() ? "cancelled" : "timed out";
+                            slow.prepareNanos = prepareNanos;
+                            slow.totalNanos = prepareNanos + running.elapsedNanos();
+                            slow.rows = running.rowsFetched.get();
+                            logIfSlow(slow);
+                        }
+                        return;
+                    }
+                    if (timedQuery != null) {
+                        metrics.recordQuery(timedQuery.id, timedQuery.title, prepareNanos, timings[0], timings[1],
+                                timings[2], queryResults.noRows, queryResults.estimatedBytes());
+                    }
+                    if (slow != null) {
+                        slow.prepareNanos = prepareNanos;
+                        slow.executeNanos = timings[0];
+                        slow.firstRowNanos = timings[1];
+                        slow.fetchNanos = timings[2];
+                        slow.totalNanos = prepareNanos + timings[0] + timings[2];
+                        slow.rows = queryResults.noRows;
+                        slow.bytes = queryResults.estimatedBytes();
+                        logIfSlow(slow);
+                    }
 
-                ResultSetMetaData metadata = resultSet.getMetaData();
-                int noColumns = metadata.getColumnCount();
+                    if (!streaming) {
+                        // Everything has been read, so hand the connection back now rather than
+                        // holding it while the user scrolls. The statement itself stays open in the
+                        // connection's cache.
+                        pooled.close();
+                        pooled = null;
 
-                // The following code prints the actual query to the screen.
-                clearTerminal();
+                        if (cacheQuery != null) {
+                            resultCache.put(cacheQuery.id, cacheValues, queryResults);
+                        }
+                    }
 
-                // Create a QueryResults object from the ResultSet.
-                QueryResults queryResults = new QueryResults(resultSet);
-                System.out.println("\tSQL Query successful. Retrieved " + noColumns + " columns.\n");
+                    // The following code prints the actual query to the screen.
+                    clearTerminal();
+                    screen.println(String.format("\tSQL Query successful. Retrieved %d columns in %.2f s.\n",
+                            queryResults.noColumns, running.elapsedNanos() / 1e9));
+                }
 
                 // Print the QueryResults nicely.
                 int currentRow = 1;
+                String exportStatus = ""; // How the last [E] went
 
                 while (true) {
 
+                    // The whole page (banner, table and prompt) goes out in one write
                     clearTerminal();
-                    queryResults.printFields(currentRow, 15);
-                    System.out.println(
-                            "\t[B] to scroll up a row, [N] to scroll down a row, [M] to return to menu, [Q] to quit\n");
+                    queryResults.printFields(screen, currentRow, 15);
+                    if (pager != null) {
+                        screen.println(String.format("\tShowing rows %d-%d of %s%s. Last page fetched in %.3f ms\n",
+                                queryResults.firstStoredRow, queryResults.noRows, pager.table.name,
+                                pager.hasNext() ? " (more available)" : "", pager.lastFetchNanos / 1e6));
+                        screen.println(String.format("\tPage cache: %d pages (%.1f KB), %d pages fetched, %d shown"
+                                + " straight from the cache\n", pager.cachedPages(), pager.cachedBytes() / 1024.0,
+                                pager.pagesFetched, pager.cacheHits));
+                    } else if (!queryResults.isComplete()) {
+                        screen.println("\tShowing rows " + currentRow + "+ of " + queryResults.noRows
+                                + " fetched so far (more available)\n");
+                    }
+                    if (memoryNanos >= 0) {
+                        screen.println(String.format("\tAnswered in memory in %.3f ms\n", memoryNanos / 1e6));
+                    } else if (fromCache) {
+                        screen.println("\tFrom the result cache. Result cache: " + resultCache.statistics() + "\n");
+                    } else if (statement != null) {
+                        screen.println("\tPrepared statement cache: " + pool.prepareHits.get() + " hits, "
+                                + pool.prepareMisses.get() + " misses. Result cache: " + resultCache.statistics()
+                                + "\n");
+                    }
+                    if (!exportStatus.isEmpty()) {
+                        screen.println("\t" + exportStatus + "\n");
+                    }
+                    screen.println(
+                            "\t[B] to scroll up a row, [N] to scroll down a row, [E] to export all rows to a file,"
+                                    + " [M] to return to menu, [Q] to quit\n");
 
-                    System.out.print("\t>>> ");
+                    screen.print("\t>>> ");
+                    screen.flush();
                     String userInput = sc.nextLine().trim().toLowerCase();
 
-                    if (userInput.equals("b")) {
+                    if (userInput.equals("e")) {
+                        exportStatus = exportResults(exportQuery, exportValues, exportTable, queryResults);
+                    } else if (pager != null && (userInput.equals("b") || userInput.equals("n"))) {
+                        // Just this page is held, the pager fetches the one before or after
+                        queryResults = userInput.equals("b") ? pager.previous() : pager.next();
+                        currentRow = queryResults.firstStoredRow;
+                    } else if (userInput.equals("b")) {
                         currentRow -= 15;
-                        if (currentRow < 1)
-                            currentRow = 1;
+                        // Rows that fell out of the streaming window can't be fetched again
+                        if (currentRow < queryResults.firstStoredRow)
+                            currentRow = queryResults.firstStoredRow;
                     } else if (userInput.equals("n")) {
                         currentRow += 15;
 
+                        // Make sure the next page has been pulled from the cursor (no-op if not streaming)
+                        queryResults.fetchUntil(currentRow + 15 - 1);
+
                         // Maximum allowed starting row to still show a (possibly partial) page
                         int maxFirstRow = Math.max(1, queryResults.noRows - 15 + 1);
                         if (currentRow > maxFirstRow)
                             currentRow = maxFirstRow;
 
                     } else if (userInput.equals("m")) {
+                        queryResults.close();
                         this.state = ProgramState.MAIN_MENU;
                         return;
                     } else if (userInput.equals("q")) {
+                        queryResults.close();
                         this.state = ProgramState.QUIT;
                         return;
                     } else {
-                        System.out.println("\tPlease enter a valid input!");
+                        screen.println("\tPlease enter a valid input!");
                         // ANSI spaghetti. This sends the cursor up 2 lines so that we don't run off the
                         // screen if the user spams bad inputs
-                        System.out.print("\033[1A\033[1A\033[2K\r");
+                        screen.print("\033[1A\033[1A\033[2K\r");
                     }
 
                 }
             } else { // Database was just rebuilt, print success message
-                while (true) {
+                showMessage(rebuildFailed ? "Database rebuild failed" : "Database rebuilt successfully",
+                        rebuildSummary);
+            }
 
-                    clearTerminal();
-                    System.out.println("\tDatabase rebuilt successfully");
-                    System.out.println(
-                            "\t[M] to return to menu, [Q] to quit\n");
+        } catch (SQLException e) {
+            // Something went wrong. Print error and panic.
+            screen.println("\nError: something went wrong attempting to execute the SQL query.");
+            screen.println(e.getMessage());
+            screen.flush();
+            System.exit(1);
+        } finally {
+            if (pager != null) {
+                pager.close();
+            }
+            if (pooled != null) {
+                pooled.close();
+            }
+        }
 
-                    System.out.print("\t>>> ");
-                    String userInput = sc.nextLine().trim().toLowerCase();
+    }
 
-                    if (userInput.equals("m")) {
-                        this.state = ProgramState.MAIN_MENU;
-                        return;
-                    } else if (userInput.equals("q")) {
-                        this.state = ProgramState.QUIT;
-                        return;
-                    } else {
-                        System.out.println("\tPlease enter a valid input!");
-                        // ANSI spaghetti. This sends the cursor up 2 lines so that we don't run off the
-                        // screen if the user spams bad inputs
-                        System.out.print("\033[1A\033[1A\033[2K\r");
-                    }
+    // Waits for running to finish, showing how long it's been going and how many
+    // rows it has fetched, and cancels it if the user enters C. Returns the results,
+    // or null if it was cancelled or timed out (once the user has seen why). Any
+    // other failure is thrown like executeQuery() would.
+    private QueryResults waitForQuery(RunningQuery running, String title) throws SQLException {
 
-                }
+        // Quick queries are done before there's anything worth showing
+        boolean drawn = false;
+        while (!running.await(100)) {
+            if (!drawn) {
+                clearTerminal();
+                screen.println("\tRunning " + title + " (on a " + (RunningQuery.virtualThreads ? "virtual" : "background")
+                        + " thread, times out after " + running.timeoutSeconds + " s)\n");
+                drawn = true;
             }
+            screen.print(String.format("\r\033[2K\t%.1f s, %d rows fetched. %s", running.elapsedNanos() / 1e9,
+                    running.rowsFetched.get(), running.wasCancelled() ? "Cancelling..." : "[C] then Enter to cancel"));
+            screen.flush();
+
+            if (!running.wasCancelled() && cancelRequested()) {
+                running.cancel();
+            }
+        }
 
+        String reason;
+        try {
+            return running.results();
         } catch (SQLException e) {
-            // Something went wrong. Print error and panic.
-            System.out.println("\nError: something went wrong attempting to execute the SQL query.");
-            System.out.println(e.getMessage());
-            System.exit(1);
+            if (running.wasCancelled()) {
+                reason = "Query cancelled";
+            } else if (running.timedOut(e)) {
+                reason = "Query timed out";
+            } else {
+                throw e;
+            }
+        }
+
+        // The server has stopped the query but the session is fine, so the connection
+        // just goes back to the pool as usual
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(String.format("\t%s after %.1f s, with %d rows fetched.", title, running.elapsedNanos() / 1e9,
+                running.rowsFetched.get()));
+        showMessage(reason, lines);
+        return null;
+    }
+
+    // True if the user has entered C while a query was running. Only looks at what's
+    // already been typed, so it never blocks.
+    private boolean cancelRequested() {
+        try {
+            if (System.in.available() > 0) {
+                return sc.nextLine().trim().equalsIgnoreCase("c");
+            }
+        } catch (IOException e) {
+            // No input to read, so nothing to cancel
         }
+        return false;
+    }
+
+    // Shows title and lines until the user picks [M] or [Q]
+    private void showMessage(String title, ArrayList<String> lines) {
+
+        while (true) {
+
+            clearTerminal();
+            screen.println("\t" + title + "\n");
+            for (String line : lines) {
+                screen.println(line);
+            }
+            screen.println();
+            screen.println(
+                    "\t[M] to return to menu, [Q] to quit\n");
+
+            screen.print("\t>>> ");
+            screen.flush();
+            String userInput = sc.nextLine().trim().toLowerCase();
+
+            if (userInput.equals("m")) {
+                this.state = ProgramState.MAIN_MENU;
+                return;
+            } else if (userInput.equals("q")) {
+                this.state = ProgramState.QUIT;
+                return;
+            } else {
+                screen.println("\tPlease enter a valid input!");
+                // ANSI spaghetti. This sends the cursor up 2 lines so that we don't run off the
+                // screen if the user spams bad inputs
+                screen.print("\033[1A\033[1A\033[2K\r");
+            }
 
+        }
     }
 
-    private void rebuildDatabase() {
-        String line;
-        String currQuery = "";
-        Boolean started = false;
-        int count = 0;
+    // Writes every row of what's on the results screen to a file in EXPORT_DIR_NAME,
+    // in a format the user picks. On a database the query is run again (or the raw
+    // table read again) on its own connection and streamed straight to the file. In
+    // memory the rows are all there already, so they're written out from results.
+    // Returns how it went, for the results screen.
+    private String exportResults(QueryDefinition query, Object[] values, String table, QueryResults results) {
+
+        screen.println("\tExport as [C] CSV, [J] JSON Lines or [B] binary columnar? Anything else to go back.");
+        screen.print("\t>>> ");
+        screen.flush();
+        String choice = sc.nextLine().trim().toLowerCase();
+        ResultExporter.Format format;
+        if (choice.equals("c")) {
+            format = ResultExporter.Format.CSV;
+        } else if (choice.equals("j")) {
+            format = ResultExporter.Format.JSONL;
+        } else if (choice.equals("b")) {
+            format = ResultExporter.Format.COLUMNAR;
+        } else {
+            return "";
+        }
+
+        Path path = Path.of(EXPORT_DIR_NAME, (query != null ? "query-" + query.id : table) + "." + format.extension);
+        screen.println("\tExporting to " + path + "...");
+        screen.flush();
 
         try {
-            BufferedReader bRead = new BufferedReader(new FileReader(REBUILD_FILE_NAME));
-            Statement statementBasic = connection.createStatement();
+            Files.createDirectories(path.getParent());
 
-            while ((line = bRead.readLine()) != null) { // while there are lines left to read
+            if (memory != null) {
+                return ResultExporter.export(results, format, path).summary();
+            }
 
-                if (started) { // already reading a multi-line query
-                    currQuery = currQuery + " " + line;
-                } else { // reading a new query
-                    currQuery = line;
+            // Its own connection, since the pool's may be busy paging or streaming this
+            // same result
+            try (Connection connection = openConnection()) {
+                Statement statement;
+                ResultSet resultSet;
+                if (query != null) {
+                    PreparedStatement prepared = connection.prepareStatement(backend.querySql(query),
+                            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    query.bind(prepared, values);
+                    prepared.setFetchSize(streamFetchSize);
+                    statement = prepared;
+                    resultSet = prepared.executeQuery();
+                } else {
+                    statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    statement.setFetchSize(streamFetchSize);
+                    resultSet = statement.executeQuery("SELECT * FROM " + table);
                 }
-
-                if (currQuery.contains(";")) { // we've reached the end of a query
-                    statementBasic.addBatch(currQuery);
-                    count++;
-                    started = false;
-                } else { // parsing a multi-line query
-                    started = true;
+                try (statement; resultSet) {
+                    return ResultExporter.export(resultSet, format, path).summary();
                 }
+            }
+        } catch (IOException e) {
+            return "Couldn't write " + path + ": " + e.getMessage();
+        } catch (SQLException e) {
+            return "Export failed: " + e.getMessage();
+        }
+    }
+
+    // Hands entry to the slow query log if it took long enough
+    private void logIfSlow(SlowQuery entry) {
+        if (slowLog.isSlow(entry.totalNanos)) {
+            slowLog.log(entry);
+        }
+    }
+
+    // The metrics screen. [J] saves them all to METRICS_FILE_NAME.
+    private void showMetrics() {
+
+        String saved = "";
 
-                if (count >= 200) {
-                    statementBasic.executeBatch();
-                    count = 0;
+        while (true) {
+
+            clearTerminal();
+            screen.println("\tQuery metrics for this session\n");
+            for (String line : metrics.summary()) {
+                screen.println(line);
+            }
+            screen.println();
+            if (slowLog != null) {
+                screen.println(String.format("\tSlow query log (%d ms and over): %d written to %s, %d dropped%s\n",
+                        slowQueryMs, slowLog.written.get(), slowQueryLogFile, slowLog.dropped.get(),
+                        slowLog.lastError == null ? "" : ". Last error: " + slowLog.lastError));
+            }
+            if (!saved.isEmpty()) {
+                screen.println("\t" + saved + "\n");
+            }
+            screen.println(
+                    "\t[J] to save as JSON to " + METRICS_FILE_NAME + ", [M] to return to menu, [Q] to quit\n");
+
+            screen.print("\t>>> ");
+            screen.flush();
+            String userInput = sc.nextLine().trim().toLowerCase();
+
+            if (userInput.equals("j")) {
+                try {
+                    metrics.writeJson(Path.of(METRICS_FILE_NAME));
+                    saved = "Saved to " + METRICS_FILE_NAME + ".";
+                } catch (IOException e) {
+                    saved = "Couldn't write " + METRICS_FILE_NAME + ": " + e.getMessage();
                 }
+            } else if (userInput.equals("m")) {
+                this.state = ProgramState.MAIN_MENU;
+                return;
+            } else if (userInput.equals("q")) {
+                this.state = ProgramState.QUIT;
+                return;
+            } else {
+                screen.println("\tPlease enter a valid input!");
+                // ANSI spaghetti. This sends the cursor up 2 lines so that we don't run off the
+                // screen if the user spams bad inputs
+                screen.print("\033[1A\033[1A\033[2K\r");
+            }
+
+        }
+    }
+
+    // The CREATE TABLEs from REBUILD_FILE_NAME (see rawTableSchema)
+    private ScriptSchema rawTableSchema() {
+
+        if (rawTableSchema == null) {
+            try {
+                rawTableSchema = TablePager.readSchema(Path.of(REBUILD_FILE_NAME));
+            } catch (IOException e) {
+                screen.println("\nError: something went wrong when attempting to read the tables from "
+                        + REBUILD_FILE_NAME + ".");
+                screen.println(e.getMessage());
+                screen.flush();
+                System.exit(1);
             }
+        }
+        return rawTableSchema;
+    }
 
-            bRead.close();
+    // Rebuilds the database from REBUILD_FILE_NAME. With coalesceInserts, runs of
+    // single-row INSERTs are merged into multi-row INSERTs and independent tables
+    // are loaded in parallel (see DatabaseRebuilder). With incremental, only the
+    // tables that changed since the last rebuild (and the tables referencing them)
+    // are reloaded. With fromSnapshot, the tables are bulk copied from
+    // SNAPSHOT_DIR_NAME instead. With shadowRebuild, a failure is in the report's
+    // failure and the database is left as it was, otherwise it's fatal.
+    private RebuildReport rebuildDatabase(Connection connection, boolean coalesceInserts, boolean incremental,
+            boolean fromSnapshot) {
+
+        DatabaseRebuilder rebuilder = new DatabaseRebuilder(connection, this::openConnection,
+                Path.of(REBUILD_FILE_NAME));
+        rebuilder.coalesceInserts = coalesceInserts;
+        rebuilder.incremental = incremental;
+        rebuilder.statePath = Path.of(REBUILD_STATE_FILE_NAME);
+        if (fromSnapshot) {
+            rebuilder.snapshotPath = Path.of(SNAPSHOT_DIR_NAME);
+        }
+        rebuilder.loadConnections = rebuildConnections;
+        rebuilder.provisionIndexes = provisionIndexes;
+        rebuilder.backend = backend;
+        rebuilder.shadow = shadowRebuild;
+        rebuilder.latencyCatalog = catalog;
+        rebuilder.metrics = metrics;
+
+        // Whatever happens, cached results may no longer match the database
+        resultCache.invalidateAll();
 
+        try {
+            return rebuilder.rebuild();
         } catch (IOException e) {
-            System.out.println(
+            screen.println(
                     "\nError: something went wrong when attempting to read from the file for rebuild instructions.");
-            System.out.println(e.getMessage());
+            screen.println(e.getMessage());
+            screen.flush();
             System.exit(1);
         } catch (SQLException e) {
-            System.out.println("\nError: something went wrong when attempting to rebuild.");
-            System.out.println(e.getMessage());
+            screen.println("\nError: something went wrong when attempting to rebuild.");
+            screen.println(e.getMessage());
+            screen.flush();
             System.exit(1);
         }
+        return null;
+    }
+
+    // Whether option 17 can offer restoring from the snapshot
+    private boolean canRestoreSnapshot() {
+        return memory == null && backend.supportsBulkCopy() && Files.isDirectory(Path.of(SNAPSHOT_DIR_NAME));
     }
 
     // Quick function that cleanly shuts things down.
     public void shutdown() {
         sc.close();
 
+        if (slowLog != null) {
+            slowLog.close();
+        }
+
+        if (pool == null) { // In-memory, nothing to close
+            return;
+        }
+
         try {
-            connection.close();
+            pool.close();
         } catch (SQLException e) {
-            System.out.println("Error: unable to close DB connection during shutdown.");
-            System.out.println(e.getMessage());
+            screen.println("Error: unable to close DB connection during shutdown.");
+            screen.println(e.getMessage());
         }
 
         return;
     }
 
+    // Asks which of entry's queries to run, if it has more than one
+    private QueryDefinition chooseVariant(MenuEntry entry) {
+
+        if (entry.variants.size() == 1) {
+            return entry.variants.get(0);
+        }
+
+        clearTerminal();
+
+        // This is a special case with some suboptions
+        screen.println("\t" + entry.variantPrompt + "\n");
+        for (int i = 0; i < entry.variants.size(); i++) {
+            screen.println("\t[" + (i + 1) + "] " + entry.variants.get(i).title);
+        }
+        screen.println();
+
+        int choice = getUserIntInput("Enter selection (1-" + entry.variants.size() + ")", 1, entry.variants.size());
+        return entry.variants.get(choice - 1);
+    }
+
+    // Asks the user for each of query's parameters
+    private Object[] askParameters(QueryDefinition query) {
+
+        Object[] values = new Object[query.parameters.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            QueryParameter parameter = query.parameters.get(i);
+            if (parameter.type == QueryParameter.Type.INT) {
+                values[i] = getUserIntInput(parameter.prompt);
+            } else {
+                values[i] = parameter.parse(getUserStringInput(parameter.prompt));
+            }
+        }
+
+        return values;
+    }
+
     // Get additional argument for a query
     private String getUserStringInput(String text) {
 
@@ -810,14 +1484,15 @@ public class DBInterface {
         String userInput = "";
 
         while (!validInput) {
-            System.out.print("\t" + text + " >>> ");
+            screen.print("\t" + text + " >>> ");
+            screen.flush();
             userInput = sc.nextLine().trim();
 
             if (userInput.length() > 0) {
                 validInput = true;
             } else {
-                System.out.println("\tPlease enter a valid string!");
-                System.out.print("\033[1A\033[1A\033[2K\r");
+                screen.println("\tPlease enter a valid string!");
+                screen.print("\033[1A\033[1A\033[2K\r");
             }
 
         }
@@ -833,15 +1508,16 @@ public class DBInterface {
         int result = -1;
 
         while (!validInput) {
-            System.out.print("\t" + text + " >>> ");
+            screen.print("\t" + text + " >>> ");
+            screen.flush();
             userInput = sc.nextLine().trim();
 
             try {
                 result = Integer.parseInt(userInput);
                 validInput = true;
             } catch (NumberFormatException e) {
-                System.out.println("\tPlease enter a valid int!");
-                System.out.print("\033[1A\033[1A\033[2K\r");
+                screen.println("\tPlease enter a valid int!");
+                screen.print("\033[1A\033[1A\033[2K\r");
             }
         }
 
@@ -857,7 +1533,8 @@ public class DBInterface {
         int result = -1;
 
         while (!validInput) {
-            System.out.print("\t" + text + " >>> ");
+            screen.print("\t" + text + " >>> ");
+            screen.flush();
             userInput = sc.nextLine().trim();
 
             try {
@@ -866,13 +1543,13 @@ public class DBInterface {
                 if (result >= min && result <= max) {
                     validInput = true;
                 } else {
-                    System.out.println("\tPlease enter an int in range " + min + " to " + max + ".");
-                    System.out.print("\033[1A\033[1A\033[2K\r");
+                    screen.println("\tPlease enter an int in range " + min + " to " + max + ".");
+                    screen.print("\033[1A\033[1A\033[2K\r");
                 }
 
             } catch (NumberFormatException e) {
-                System.out.println("\tPlease enter a valid int!");
-                System.out.print("\033[1A\033[1A\033[2K\r");
+                screen.println("\tPlease enter a valid int!");
+                screen.print("\033[1A\033[1A\033[2K\r");
             }
         }
 
@@ -891,190 +1568,11 @@ public class DBInterface {
      * doing is reprinting it.
      * Works using ANSI escape codes to clear the terminal. Should work on most
      * modern terminals, unix or windows.
-     */ 
+     * This only starts a new frame in screen (clear code + banner), nothing reaches
+     * the terminal until screen.flush().
+     */
     public static void clearTerminal() {
-        System.out.print("\033[H\033[2J");
-
-        System.out.println();
-        System.out.println("\t┌──────────────────────────────────────┐");
-        System.out.println("\t│ COMP 3380 Project Group 25 Interface │");
-        System.out.println("\t│ Aviation Statistics Database         │");
-        System.out.println("\t├──────────────────────────────────────┤");
-        System.out.println("\t│ Brenlee Grant                        │");
-        System.out.println("\t│ Jorja Prokopich                      │");
-        System.out.println("\t│ Jascha Petersen                      │");
-        System.out.println("\t└──────────────────────────────────────┘");
-        System.out.println();
+        screen.clear();
     }
 
 }
-
-// Helper class for processing query results
-class QueryResults {
-
-    /*
-     * columnNames keeps track of the name of each column.
-     * columnMaxFieldLengths keeps track of the longest field in each column. Needed
-     * for printing later.
-     * rows stores the actual data, in a 2D ArrayList of strings
-     */
-    ArrayList<String> columnNames = new ArrayList<String>();
-    ArrayList<Integer> columnMaxFieldLengths = new ArrayList<Integer>();
-    ArrayList<ArrayList<String>> rows = new ArrayList<ArrayList<String>>();
-    int noRows;
-    int noColumns;
-
-    // Constructor that ingests the results from resultSet and stores them in memory
-    // It also "injects" a row # for the row in the query table, just for pretty
-    // printing
-    public QueryResults(ResultSet resultSet) throws SQLException {
-
-        // Get metadata about the query results
-        ResultSetMetaData metadata = resultSet.getMetaData();
-        noColumns = metadata.getColumnCount();
-        noRows = 0; // Updated later
-
-        // Add the row column
-        columnNames.add("rowNum");
-        columnMaxFieldLengths.add(0);
-
-        // Get the names of all columns
-        for (int i = 1; i <= noColumns; i++) {
-            columnNames.add(metadata.getColumnName(i));
-            columnMaxFieldLengths.add(0);
-        }
-
-        while (resultSet.next()) {
-
-            // Populate this row. Also update columnFieldMaxLength if necessary.
-            ArrayList<String> thisRow = new ArrayList<String>();
-
-            // Add the row number.
-            thisRow.add(Integer.toString(noRows + 1));
-
-            // Skip index 1 because that's the "rowNum" column we're injecting
-            for (int i = 1; i <= noColumns; i++) {
-                String cName = columnNames.get(i);
-
-                // Get the current field. Add it to this row. Set it to a string if it's null.
-                String thisField = resultSet.getString(cName);
-                if (thisField == null)
-                    thisField = "NULL";
-                thisRow.add(thisField);
-
-                // Check if the current field's length is larger than the previous maximum. If
-                // so, update the maximum.
-                int thisFieldLength = thisField.length();
-                int currentMaxLength = columnMaxFieldLengths.get(i);
-
-                if (thisFieldLength > currentMaxLength) {
-                    columnMaxFieldLengths.set(i, thisFieldLength);
-                }
-            }
-
-            // Add this row to the list of rows.
-            rows.add(thisRow);
-            noRows++;
-
-        }
-
-        // It could be that maxFieldLength needs to be bigger to accomodate the name of
-        // the column, if it's longer.
-        // Skip first column since that's our rowNum column
-        for (int i = 1; i < this.columnMaxFieldLengths.size(); i++) {
-            String columnName = this.columnNames.get(i);
-            int currentMaxWidth = this.columnMaxFieldLengths.get(i);
-            int newMaxWidth = Math.max(columnName.length(), currentMaxWidth);
-            this.columnMaxFieldLengths.set(i, newMaxWidth);
-        }
-
-        // Manually do the rowNum column
-        this.columnMaxFieldLengths.set(0,
-                Math.max(this.columnNames.get(0).length(), Integer.toString(noRows).length()));
-
-        return;
-    }
-
-    public void printFields(int firstRow, int numRowsToPrint) {
-
-        final String BOX_TOP_LEFT = "┌";
-        final String BOX_TOP_RIGHT = "┐";
-        final String BOX_BOTTOM_LEFT = "└";
-        final String BOX_BOTTOM_RIGHT = "┘";
-        final String BOX_HORIZONTAL_LINE = "─";
-        final String BOX_VERTICAL_LINE = "│";
-        final String BOX_VERTICAL_RIGHT_BAR = "├";
-        final String BOX_VERTICAL_LEFT_BAR = "┤";
-
-        // Soft preconditions checks
-        // Check if we are trying to access something before the beginning of the row
-        if (firstRow < 1) {
-            firstRow = 1;
-        }
-        // Check if number of rows requested exceeds the number of rows available
-        if (firstRow + numRowsToPrint - 1 > noRows) {
-            numRowsToPrint = noRows - firstRow + 1;
-        }
-
-        // Calculate the width of the table in characters
-        int tableWidth = 0;
-        for (Integer i : this.columnMaxFieldLengths) {
-            tableWidth += i;
-        }
-        tableWidth += columnNames.size() + 1; // Account for dividers and outside borders
-
-        // Print the top of boundary of the table
-        System.out.print("\t" + BOX_TOP_LEFT);
-        for (int i = 0; i < tableWidth - 2; i++) {
-            System.out.print(BOX_HORIZONTAL_LINE);
-        }
-        System.out.println(BOX_TOP_RIGHT);
-
-        // Print the table headers (column names)
-        System.out.print("\t" + BOX_VERTICAL_LINE);
-        for (int i = 0; i < columnNames.size(); i++) {
-            System.out.print(this.columnNames.get(i));
-            for (int j = this.columnNames.get(i).length(); j < this.columnMaxFieldLengths.get(i); j++) {
-                System.out.print(" ");
-            }
-            System.out.print(BOX_VERTICAL_LINE);
-        }
-        System.out.println();
-
-        // Print the header divider bar
-        System.out.print("\t" + BOX_VERTICAL_RIGHT_BAR);
-        for (int i = 0; i < tableWidth - 2; i++) {
-            System.out.print(BOX_HORIZONTAL_LINE);
-        }
-        System.out.println(BOX_VERTICAL_LEFT_BAR);
-
-        // Print the rows
-        for (int i = firstRow; i < firstRow + numRowsToPrint; i++) {
-            System.out.print("\t" + BOX_VERTICAL_LINE);
-            for (int j = 0; j < this.columnNames.size(); j++) {
-                int thisColumnMaxLength = this.columnMaxFieldLengths.get(j);
-                String thisField = this.rows.get(i - 1).get(j);
-                System.out.print(thisField);
-                for (int k = thisField.length(); k < thisColumnMaxLength; k++) {
-                    System.out.print(" ");
-                }
-                System.out.print(BOX_VERTICAL_LINE);
-            }
-            System.out.println();
-        }
-
-        // Print the bottom boundary of the table
-        System.out.print("\t" + BOX_BOTTOM_LEFT);
-        for (int i = 0; i < tableWidth - 2; i++) {
-            System.out.print(BOX_HORIZONTAL_LINE);
-        }
-        System.out.println(BOX_BOTTOM_RIGHT);
-
-        // Done!
-        System.out.println();
-
-        return;
-
-    }
-
-}
\ No newline at end of file
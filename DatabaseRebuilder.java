@@ -0,0 +1,1099 @@
+
+// Util imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+// SQL imports
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+// Driver imports
+
+/*
+ * Rebuilds the database from the populate.sql script.
+ *
+ * populate.sql has one INSERT per row. Instead of sending those one by one, runs
+ * of INSERTs into the same table (with the same column list) are merged into a
+ * single INSERT with a multi-row VALUES list, so the server parses and plans one
+ * statement per few hundred rows instead of one per row.
+ *
+ * The rebuild happens in three steps:
+ * 1. Parse the script. Everything that isn't an INSERT (USE, DROP, CREATE) is kept
+ * in order, with the CREATE TABLEs given SchemaMigration's typed columns, and
+ * INSERTs are merged and grouped by table.
+ * 2. Run the DDL, in script order, on the main connection.
+ * 3. Load the tables. The foreign keys in the CREATE TABLEs say which tables have
+ * to be loaded before which, and each table starts loading as soon as all the
+ * tables it references are done. Independent tables load at the same time, each
+ * on its own connection (up to loadConnections of them). Each table load runs
+ * with autocommit off and commits every COMMIT_EVERY_ROWS rows.
+ * After that IndexProvisioner builds the secondary indexes.
+ *
+ * This assumes the script creates all its tables before inserting into them,
+ * which populate.sql does.
+ *
+ * With incremental set, only the tables whose part of the script changed since
+ * the last rebuild are reloaded. Each table is fingerprinted (SHA-256 of its
+ * CREATE TABLE, its INSERTs and its declared indexes), and the fingerprints are
+ * kept in statePath after every successful rebuild. A changed table is dropped,
+ * created and loaded again, along with every table that references it (they
+ * have to go before it can be dropped, and TRUNCATE isn't allowed on a table
+ * with foreign keys pointing at it anyway). If anything else about the script
+ * changed, or there's no state to compare with, it falls back to rebuilding
+ * everything.
+ *
+ * With shadow set, the live tables are left alone until the very end. The new
+ * tables are created and loaded in the SHADOW_SCHEMA schema, indexed there, then
+ * checked: every table has to have the rows the script (or snapshot) has, and
+ * every foreign key has to hold. Only then are they swapped in, all of them in
+ * one transaction that just moves tables between schemas (ALTER SCHEMA ...
+ * TRANSFER): the live tables go to OLD_SCHEMA, the shadow tables to the live
+ * schema. Queries keep seeing the old data until that commits, and never see a
+ * half loaded table. The old tables are dropped afterwards. If anything fails
+ * before the swap commits, the shadow tables are dropped, the live tables are
+ * exactly as they were, and the failure goes in the report instead of being
+ * thrown. Works for incremental rebuilds (only the reloaded tables are shadowed)
+ * and snapshot restores too.
+ *
+ * Everything but the INSERTs goes through backend.translate on its way out (the
+ * INSERTs are plain enough to work anywhere, and big). A backend that can't do
+ * shadow rebuilds or bulk copies gets an in-place rebuild and no snapshot
+ * restores, and tables never load on more connections than it allows.
+ *
+ * Setting coalesceInserts to false sends every statement on its own in batches
+ * on the main connection (the old behaviour), which is handy for comparing
+ * timings. That's always done in place, shadow or not.
+ */
+class DatabaseRebuilder {
+
+    // SQL Server doesn't allow more than 1000 rows in one VALUES list
+    static final int MAX_ROWS_PER_INSERT = 1000;
+
+    // How many rows to insert between commits
+    static final int COMMIT_EVERY_ROWS = 5000;
+
+    // Statements per batch when not coalescing
+    static final int STATEMENT_BATCH_SIZE = 200;
+
+    // INSERT INTO table (columns) VALUES (...)
+    static final Pattern INSERT_PATTERN = Pattern.compile(
+            "INSERT\\s+INTO\\s+(\\w+)\\s*(\\([^)]*\\))\\s*VALUES\\s*(\\(.*\\))",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final Connection connection;
+    private final ConnectionFactory connectionFactory;
+    private final Path scriptPath;
+    boolean coalesceInserts = true;
+
+    // Most connections (including the main one) used at once to load tables
+    int loadConnections = 4;
+
+    // What the database is, for its dialect and what it can do
+    Backend backend = SqlServerBackend.DIALECT;
+
+    // Build IndexProvisioner's indexes once the tables are loaded
+    boolean provisionIndexes = true;
+
+    // If set, the queries each index serves are timed before and after it's built
+    QueryCatalog latencyCatalog = null;
+
+    // If set, parsing and every DDL statement, INSERT (or batch of them) and commit
+    // are timed into it, for the metrics screen
+    QueryMetrics metrics = null;
+
+    // Only reload the tables that changed, see above. Needs coalesceInserts.
+    boolean incremental = false;
+
+    // Where the fingerprints of the last rebuild are kept, null to not keep them
+    // (then incremental rebuilds always reload everything)
+    Path statePath = null;
+
+    // If set, the database is restored from this snapshot directory (see
+    // DatabaseSnapshot) instead of the script, with a bulk copy per table
+    Path snapshotPath = null;
+
+    // Load into shadow tables and swap them in at the end, see above. Needs
+    // coalesceInserts.
+    boolean shadow = false;
+
+    // Where the shadow tables are built, and where the live ones go while they're
+    // being swapped out
+    static final String SHADOW_SCHEMA = "rebuild_shadow";
+    static final String OLD_SCHEMA = "rebuild_old";
+
+    // Shadow rebuilds only. The tables being replaced, in creation order, with how
+    // many rows each should end up with.
+    private final LinkedHashMap<String, Long> shadowTables = new LinkedHashMap<String, Long>();
+
+    static final Pattern DROP_TABLE_PATTERN = Pattern.compile(
+            "DROP\\s+TABLE\\s+(?:IF\\s+EXISTS\\s+)?(\\w+)\\s*", Pattern.CASE_INSENSITIVE);
+
+    private RebuildReport report;
+
+    // Everything in the script that isn't an INSERT, in order
+    private final ArrayList<String> ddl = new ArrayList<String>();
+
+    // Merged INSERTs for each table, keyed by lower case table name, in the order
+    // the tables first show up in the script
+    private final LinkedHashMap<String, TableLoad> loads = new LinkedHashMap<String, TableLoad>();
+
+    private final ScriptSchema schema = new ScriptSchema();
+
+    // Fingerprint of each table, keyed by lower case table name, and of the rest of
+    // the DDL (USE and so on, but not the DROP TABLEs)
+    private final LinkedHashMap<String, MessageDigest> tableDigests = new LinkedHashMap<String, MessageDigest>();
+    private final MessageDigest otherDdlDigest = sha256();
+
+    // connectionFactory is used to open the extra connections for loading tables in
+    // parallel. They are closed again once the rebuild is done.
+    DatabaseRebuilder(Connection connection, ConnectionFactory connectionFactory, Path scriptPath) {
+        this.connection = connection;
+        this.connectionFactory = connectionFactory;
+        this.scriptPath = scriptPath;
+    }
+
+    // Runs the whole script. On a SQL error the open transactions are rolled back
+    // and the exception is passed on, except for a shadow rebuild, which puts it
+    // in the report's failure (the live tables are still fine then).
+    RebuildReport rebuild() throws IOException, SQLException {
+
+        report = new RebuildReport();
+        report.shadow = shadow && coalesceInserts && backend.supportsShadowRebuild();
+        long start = System.nanoTime();
+
+        if (!report.shadow) {
+            rebuildTables(start);
+        } else {
+            try {
+                rebuildTables(start);
+            } catch (IOException | SQLException e) {
+                report.failure = e.getMessage();
+                dropShadowTables();
+            }
+        }
+
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void rebuildTables(long start) throws IOException, SQLException {
+
+        // Whatever happens from here, the old state won't describe the database any
+        // more. (A shadow rebuild only changes the database once it's swapped in.)
+        Properties lastState = readState();
+        if (!report.shadow) {
+            deleteState();
+        }
+
+        // Lower case names of the tables being reloaded, null for all of them
+        HashSet<String> reload = null;
+
+        if (snapshotPath != null) {
+            restoreSnapshot();
+        } else if (coalesceInserts) {
+            parseScript();
+            report.parseNanos = System.nanoTime() - start;
+            if (metrics != null) {
+                metrics.recordPhase("parse", report.parseNanos);
+            }
+
+            if (incremental) {
+                report.incremental = true;
+                reload = changedTables(lastState);
+            }
+
+            long ddlStart = System.nanoTime();
+            if (reload == null && !report.shadow) {
+                runDdl(ddl);
+            } else {
+                runDdl(reloadDdl(reload));
+            }
+            report.ddlNanos = System.nanoTime() - ddlStart;
+
+            LinkedHashMap<String, TableLoad> toLoad = new LinkedHashMap<String, TableLoad>();
+            for (TableLoad load : loads.values()) {
+                if (reload == null || reload.contains(load.table.toLowerCase())) {
+                    toLoad.put(load.table.toLowerCase(), load);
+                    if (report.shadow) {
+                        shadowTables.put(schema.get(load.table).name, (long) load.rows);
+                    }
+                }
+            }
+
+            long loadStart = System.nanoTime();
+            loadTables(toLoad);
+            report.loadNanos = System.nanoTime() - loadStart;
+        } else {
+            loadStatementByStatement();
+        }
+
+        // Indexes go in last, so the inserts don't have to keep them up to date. The
+        // queries are only timed in place, in a shadow rebuild they'd be timing the
+        // live tables.
+        if (provisionIndexes) {
+            long indexStart = System.nanoTime();
+            IndexProvisioner provisioner = new IndexProvisioner(connection, schema,
+                    report.shadow ? null : latencyCatalog);
+            provisioner.backend = backend;
+            provisioner.onlyTables = reload;
+            provisioner.tablePrefix = report.shadow ? SHADOW_SCHEMA + "." : "";
+            report.indexes = provisioner.provision();
+            report.indexNanos = System.nanoTime() - indexStart;
+        }
+
+        // (Nothing to swap if an incremental rebuild found nothing changed)
+        if (report.shadow && !shadowTables.isEmpty()) {
+            validateShadowTables();
+            deleteState();
+            swapShadowTables();
+        }
+
+        if (coalesceInserts && snapshotPath == null) {
+            writeState(lastState, reload);
+        }
+    }
+
+    // Recreates the tables in the snapshot and bulk copies each one in, parents
+    // first, a group of rows at a time. The snapshot's tables replace the ones in
+    // the database, and nothing is parsed apart from the CREATE TABLEs.
+    private void restoreSnapshot() throws IOException, SQLException {
+
+        if (!backend.supportsBulkCopy()) {
+            throw new SQLException("Restoring a snapshot needs SQL Server's bulk copy, " + backend.description()
+                    + " can't do it");
+        }
+
+        SnapshotManifest manifest = DatabaseSnapshot.readManifest(snapshotPath);
+        report.snapshotPath = snapshotPath;
+        report.snapshotBytes = manifest.bytes();
+
+        // Headers first, for the DDL
+        ArrayList<String> creates = new ArrayList<String>();
+        for (Path file : manifest.tableFiles) {
+            try (SnapshotTableReader reader = new SnapshotTableReader(file)) {
+                creates.add(reader.createStatement);
+                schema.addStatement(reader.createStatement);
+            }
+        }
+
+        long ddlStart = System.nanoTime();
+        runDdl(replaceDdl(manifest.otherDdl, creates));
+        report.ddlNanos = System.nanoTime() - ddlStart;
+
+        long loadStart = System.nanoTime();
+        for (Path file : manifest.tableFiles) {
+            try (SnapshotTableReader reader = new SnapshotTableReader(file)) {
+
+                Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(reader.createStatement);
+                create.matches();
+                TableDefinition definition = schema.get(create.group(1));
+                TableLoad load = new TableLoad(definition.name);
+                long start = System.nanoTime();
+
+                SnapshotBulkData.copy(connection, reader, definition, target(definition.name));
+                if (report.shadow) {
+                    shadowTables.put(definition.name, reader.rows);
+                }
+
+                load.rows = (int) reader.rows;
+                load.commits = 1;
+                load.elapsedNanos = System.nanoTime() - start;
+                report.tables.add(load);
+                report.rowsInserted += load.rows;
+                report.commits++;
+            }
+        }
+        report.loadNanos = System.nanoTime() - loadStart;
+    }
+
+    // The tables to reload: the ones whose fingerprint changed since lastState, and
+    // everything referencing them. null if everything has to be rebuilt, with the
+    // reason in the report.
+    private HashSet<String> changedTables(Properties lastState) {
+
+        if (lastState == null) {
+            report.fullRebuildReason = "no record of the last rebuild";
+            return null;
+        }
+        if (!hex(otherDdlDigest).equals(lastState.getProperty("ddl"))) {
+            report.fullRebuildReason = "the script's other DDL changed";
+            return null;
+        }
+
+        HashSet<String> reload = new HashSet<String>();
+        for (String table : tableDigests.keySet()) {
+            if (!fingerprint(table).equals(lastState.getProperty("table." + table))) {
+                reload.add(table);
+            }
+        }
+        for (String key : lastState.stringPropertyNames()) {
+            if (key.startsWith("table.") && !tableDigests.containsKey(key.substring("table.".length()))) {
+                report.fullRebuildReason = "table " + key.substring("table.".length()) + " isn't in the script any more";
+                return null;
+            }
+        }
+
+        // Everything referencing a reloaded table, all the way down
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (TableDefinition table : schema.tables()) {
+                String name = table.name.toLowerCase();
+                if (!reload.contains(name) && !Collections.disjoint(table.parents, reload)) {
+                    reload.add(name);
+                    added = true;
+                }
+            }
+        }
+
+        for (String table : tableDigests.keySet()) {
+            if (!reload.contains(table)) {
+                TableLoad load = loads.get(table);
+                report.skippedTables.add(load == null ? table : load.table);
+                report.savedNanos += Long.parseLong(lastState.getProperty("loadNanos." + table, "0"));
+            }
+        }
+        return reload;
+    }
+
+    // The DDL for reloading just the tables in reload (null for all of them): the
+    // script's DDL other than DROP and CREATE TABLE, then replaceDdl for those tables
+    private ArrayList<String> reloadDdl(HashSet<String> reload) {
+
+        ArrayList<String> otherDdl = new ArrayList<String>();
+        ArrayList<String> creates = new ArrayList<String>();
+        for (String statementText : ddl) {
+            Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(statementText);
+            if (create.matches()) {
+                if (reload == null || reload.contains(create.group(1).toLowerCase())) {
+                    creates.add(statementText);
+                }
+            } else if (!DROP_TABLE_PATTERN.matcher(statementText).matches()) {
+                otherDdl.add(statementText);
+            }
+        }
+        return replaceDdl(otherDdl, creates);
+    }
+
+    // otherDdl, then dropping the tables in creates (children first) and creating
+    // them again (parents first). creates has to be in script order, which has
+    // parents before children, so dropping in reverse is safe. For a shadow rebuild
+    // they're dropped and created in SHADOW_SCHEMA instead (along with anything left
+    // in OLD_SCHEMA by an earlier rebuild), and the live tables aren't touched.
+    private ArrayList<String> replaceDdl(List<String> otherDdl, ArrayList<String> creates) {
+
+        ArrayList<String> statements = new ArrayList<String>(otherDdl);
+        ArrayList<String> names = new ArrayList<String>();
+        for (String statementText : creates) {
+            Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(statementText);
+            create.matches();
+            names.add(create.group(1));
+            if (report.shadow) {
+                shadowTables.put(create.group(1), 0L); // Rows filled in as they're loaded
+            }
+        }
+
+        if (report.shadow) {
+            for (String schemaName : new String[] { SHADOW_SCHEMA, OLD_SCHEMA }) {
+                statements.add("IF SCHEMA_ID(N'" + schemaName + "') IS NULL EXEC(N'CREATE SCHEMA " + schemaName + "')");
+            }
+        }
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (report.shadow) {
+                statements.add("DROP TABLE IF EXISTS " + OLD_SCHEMA + "." + names.get(i));
+            }
+            statements.add("DROP TABLE IF EXISTS " + target(names.get(i)));
+        }
+
+        HashSet<String> shadowed = new HashSet<String>();
+        for (String name : names) {
+            shadowed.add(name.toLowerCase());
+        }
+        for (String statementText : creates) {
+            statements.add(report.shadow ? inShadowSchema(statementText, shadowed) : statementText);
+        }
+        return statements;
+    }
+
+    // The CREATE TABLE create, but creating the table in SHADOW_SCHEMA. Its foreign
+    // keys to the other shadowed tables point at their shadows, the rest stay
+    // pointing at the live tables (an incremental rebuild only shadows some of them).
+    private static String inShadowSchema(String create, HashSet<String> shadowed) {
+        Matcher table = ScriptSchema.CREATE_TABLE_PATTERN.matcher(create);
+        table.matches();
+        String body = ScriptSchema.REFERENCES_PATTERN.matcher(table.group(2))
+                .replaceAll(reference -> Matcher.quoteReplacement(shadowed.contains(reference.group(1).toLowerCase())
+                        ? "REFERENCES " + SHADOW_SCHEMA + "." + reference.group(1)
+                        : reference.group()));
+        return "CREATE TABLE " + SHADOW_SCHEMA + "." + table.group(1) + " (" + body + ")";
+    }
+
+    // Where rows for the named table go: its shadow in a shadow rebuild, otherwise
+    // the table itself
+    private String target(String table) {
+        return report.shadow ? SHADOW_SCHEMA + "." + table : table;
+    }
+
+    // Makes sure every shadow table has the rows it should and that all their
+    // foreign keys hold, before anything live is touched. CHECK CONSTRAINT ALL
+    // re-checks every existing row and leaves the keys trusted, so the optimizer
+    // can keep relying on them once they're live.
+    private void validateShadowTables() throws SQLException {
+
+        long start = System.nanoTime();
+        int declaredKeys = 0;
+
+        try (Statement statement = connection.createStatement()) {
+            for (String table : shadowTables.keySet()) {
+                long expected = shadowTables.get(table);
+                try (ResultSet resultSet = statement.executeQuery("SELECT COUNT_BIG(*) FROM " + target(table))) {
+                    resultSet.next();
+                    long rows = resultSet.getLong(1);
+                    if (rows != expected) {
+                        throw new SQLException(String.format("%s has %,d rows after loading, expected %,d",
+                                target(table), rows, expected));
+                    }
+                    report.rowsValidated += rows;
+                }
+                statement.execute("ALTER TABLE " + target(table) + " WITH CHECK CHECK CONSTRAINT ALL");
+                declaredKeys += schema.get(table).foreignKeys.size();
+            }
+
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT COUNT(*), COALESCE(SUM(CASE WHEN is_not_trusted = 1 OR is_disabled = 1 THEN 1 ELSE 0 END), 0)"
+                            + " FROM sys.foreign_keys WHERE schema_id = SCHEMA_ID(N'" + SHADOW_SCHEMA + "')")) {
+                resultSet.next();
+                int keys = resultSet.getInt(1);
+                int untrusted = resultSet.getInt(2);
+                if (keys != declaredKeys || untrusted > 0) {
+                    throw new SQLException(String.format("The shadow tables have %d foreign keys (%d not trusted),"
+                            + " the script declares %d", keys, untrusted, declaredKeys));
+                }
+                report.foreignKeysValidated = keys;
+            }
+        }
+
+        report.validateNanos = System.nanoTime() - start;
+    }
+
+    // Swaps the shadow tables in, all in one transaction: each live table moves to
+    // OLD_SCHEMA and its shadow moves into the live schema. Only metadata changes,
+    // so the transaction is short. The old tables are dropped once it commits.
+    private void swapShadowTables() throws SQLException {
+
+        String live;
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT SCHEMA_NAME()")) {
+            resultSet.next();
+            live = "[" + resultSet.getString(1).replace("]", "]]") + "]";
+        }
+
+        long start = System.nanoTime();
+        boolean oldAutoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try (Statement statement = connection.createStatement()) {
+            for (String table : shadowTables.keySet()) {
+                String liveTable = live + "." + table;
+                statement.execute("IF OBJECT_ID(N'" + liveTable.replace("'", "''") + "', N'U') IS NOT NULL"
+                        + " ALTER SCHEMA " + OLD_SCHEMA + " TRANSFER " + liveTable);
+                statement.execute("ALTER SCHEMA " + live + " TRANSFER " + SHADOW_SCHEMA + "." + table);
+                report.statementsSent += 2;
+            }
+            connection.commit();
+            report.commits++;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(oldAutoCommit);
+        }
+        report.swapNanos = System.nanoTime() - start;
+        report.tablesSwapped = shadowTables.size();
+
+        // The new tables are live now, so failing to clean up isn't a failed rebuild.
+        // The next shadow rebuild drops whatever's left.
+        try {
+            dropTables(OLD_SCHEMA);
+        } catch (SQLException e) {
+            report.oldTablesLeft = e.getMessage();
+        }
+    }
+
+    // After a failed shadow rebuild. Best effort, the next one drops anything left.
+    private void dropShadowTables() {
+        try {
+            dropTables(SHADOW_SCHEMA);
+        } catch (SQLException e) {
+            // Left for the next rebuild
+        }
+    }
+
+    // Drops schemaName's copy of every shadowed table, children first
+    private void dropTables(String schemaName) throws SQLException {
+        ArrayList<String> tables = new ArrayList<String>(shadowTables.keySet());
+        try (Statement statement = connection.createStatement()) {
+            for (int i = tables.size() - 1; i >= 0; i--) {
+                statement.execute("DROP TABLE IF EXISTS " + schemaName + "." + tables.get(i));
+            }
+        }
+    }
+
+    private void deleteState() throws IOException {
+        if (statePath != null) {
+            Files.deleteIfExists(statePath);
+        }
+    }
+
+    // The state saved by the last rebuild, or null if there isn't any
+    private Properties readState() throws IOException {
+        if (statePath == null) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(statePath)) {
+            Properties state = new Properties();
+            state.load(in);
+            return state;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // Saves this rebuild's fingerprints, and how long each table took to load (kept
+    // from lastState for the tables that were skipped)
+    private void writeState(Properties lastState, HashSet<String> reload) throws IOException {
+
+        if (statePath == null) {
+            return;
+        }
+
+        Properties state = new Properties();
+        state.setProperty("ddl", hex(otherDdlDigest));
+        for (String table : tableDigests.keySet()) {
+            state.setProperty("table." + table, fingerprint(table));
+            TableLoad load = loads.get(table);
+            if (reload != null && !reload.contains(table)) {
+                state.setProperty("loadNanos." + table, lastState.getProperty("loadNanos." + table, "0"));
+            } else if (load != null) {
+                state.setProperty("loadNanos." + table, "" + load.elapsedNanos);
+            }
+        }
+
+        try (OutputStream out = Files.newOutputStream(statePath)) {
+            state.store(out, "Fingerprints of " + scriptPath.getFileName() + " as of the last rebuild");
+        }
+    }
+
+    // SHA-256 of the table's CREATE TABLE and INSERTs, and its declared indexes
+    private String fingerprint(String table) {
+        try {
+            MessageDigest digest = (MessageDigest) tableDigests.get(table).clone();
+            for (IndexDefinition index : IndexProvisioner.DECLARED) {
+                if (index.table.equalsIgnoreCase(table)) {
+                    digest.update(index.createSql().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return hex(digest);
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e); // The JDK's SHA-256 can be cloned
+        }
+    }
+
+    private static String hex(MessageDigest digest) {
+        try {
+            return HexFormat.of().formatHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+    }
+
+    // A statement as it goes into a fingerprint. Line endings don't count, so
+    // checking the script out with CRLFs doesn't make every table look changed.
+    private static byte[] fingerprintBytes(String statement) {
+        return (statement.replace("\r\n", "\n") + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private MessageDigest tableDigest(String table) {
+        return tableDigests.computeIfAbsent(table.toLowerCase(), key -> sha256());
+    }
+
+    // Step 1: split the script into DDL and merged INSERTs per table
+    private void parseScript() throws IOException {
+
+        // The run of INSERTs currently being merged together
+        TableLoad run = null;
+        String runColumns = null;
+        StringBuilder runValues = new StringBuilder(64 * 1024);
+        int runRows = 0;
+
+        try (SqlScriptReader script = new SqlScriptReader(scriptPath)) {
+
+            String statementText;
+            while ((statementText = script.nextStatement()) != null) {
+
+                Matcher insert = INSERT_PATTERN.matcher(statementText);
+
+                if (!insert.matches()) {
+                    statementText = SchemaMigration.rewrite(statementText); // Typed columns
+                    ddl.add(statementText);
+                    byte[] bytes = fingerprintBytes(statementText);
+                    if (schema.addStatement(statementText)) {
+                        Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(statementText);
+                        create.matches();
+                        tableDigest(create.group(1)).update(bytes);
+                    } else if (!DROP_TABLE_PATTERN.matcher(statementText).matches()) {
+                        otherDdlDigest.update(bytes);
+                    }
+                    continue;
+                }
+
+                String table = insert.group(1);
+                String columns = insert.group(2);
+                tableDigest(table).update(fingerprintBytes(statementText));
+
+                // A different table or column list ends the current run
+                if (runRows > 0 && (!table.equalsIgnoreCase(run.table) || !columns.equals(runColumns)
+                        || runRows >= MAX_ROWS_PER_INSERT)) {
+                    run.addInsert(runColumns, runValues, runRows);
+                    runValues.setLength(0);
+                    runRows = 0;
+                }
+
+                if (runRows == 0) {
+                    run = loads.computeIfAbsent(table.toLowerCase(), key -> new TableLoad(table, target(table)));
+                    runColumns = columns;
+                } else {
+                    runValues.append(",\n");
+                }
+                runValues.append(insert.group(3));
+                runRows++;
+            }
+
+            if (runRows > 0) {
+                run.addInsert(runColumns, runValues, runRows);
+            }
+
+            report.statementsParsed = script.statementsRead;
+        }
+    }
+
+    // Step 2: drop and create the tables
+    private void runDdl(ArrayList<String> ddl) throws SQLException {
+
+        boolean oldAutoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try (Statement statement = connection.createStatement()) {
+            for (String statementText : ddl) {
+                statementText = backend.translate(statementText);
+                if (statementText == null) {
+                    continue; // Not needed on this backend
+                }
+                long statementStart = System.nanoTime();
+                statement.execute(statementText);
+                timed("ddl", statementStart);
+                report.statementsSent++;
+            }
+            long commitStart = System.nanoTime();
+            connection.commit();
+            timed("commit", commitStart);
+            report.commits++;
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(oldAutoCommit);
+        }
+    }
+
+    // Step 3: load every table in loads once the tables it references have been loaded
+    private void loadTables(LinkedHashMap<String, TableLoad> loads) throws SQLException {
+
+        int connectionCount = Math.max(1, Math.min(Math.min(loadConnections, backend.maxLoadConnections()),
+                loads.size()));
+
+        // Connections are handed out to whichever table is loading next
+        BlockingQueue<Connection> idleConnections = new ArrayBlockingQueue<Connection>(connectionCount);
+        ArrayList<Connection> openedConnections = new ArrayList<Connection>();
+        ExecutorService workers = Executors.newFixedThreadPool(connectionCount);
+
+        try {
+            idleConnections.add(connection);
+            for (int i = 1; i < connectionCount; i++) {
+                Connection extra = connectionFactory.open();
+                openedConnections.add(extra);
+                idleConnections.add(extra);
+            }
+
+            // Start each table's load once all of its parents' loads are finished.
+            // Going through the tables in dependency order means parents always have a
+            // future by the time their children need it.
+            HashMap<String, CompletableFuture<Void>> finished = new HashMap<String, CompletableFuture<Void>>();
+            for (TableLoad load : loadOrder(loads)) {
+
+                ArrayList<CompletableFuture<Void>> parents = new ArrayList<CompletableFuture<Void>>();
+                TableDefinition definition = schema.get(load.table);
+                if (definition != null) {
+                    for (String parent : definition.parents) {
+                        if (finished.containsKey(parent)) {
+                            parents.add(finished.get(parent));
+                        }
+                    }
+                }
+
+                CompletableFuture<Void> future = CompletableFuture
+                        .allOf(parents.toArray(new CompletableFuture[0]))
+                        .thenRunAsync(() -> loadTable(load, idleConnections), workers);
+                finished.put(load.table.toLowerCase(), future);
+            }
+
+            try {
+                CompletableFuture.allOf(finished.values().toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                while (cause instanceof CompletionException && cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                throw new SQLException("Table load failed: " + cause, cause);
+            }
+
+        } finally {
+            workers.shutdownNow();
+            for (Connection extra : openedConnections) {
+                try {
+                    extra.close();
+                } catch (SQLException e) {
+                    // Already done with it
+                }
+            }
+        }
+
+        for (TableLoad load : loads.values()) {
+            report.tables.add(load);
+            report.rowsInserted += load.rows;
+            report.statementsSent += load.inserts.size();
+            report.commits += load.commits;
+        }
+    }
+
+    // The tables in loads sorted so that every table comes after the tables it
+    // references. Tables that aren't in the schema (or are part of a cycle) go at the end.
+    private ArrayList<TableLoad> loadOrder(LinkedHashMap<String, TableLoad> loads) {
+
+        ArrayList<TableLoad> ordered = new ArrayList<TableLoad>();
+        HashMap<String, Boolean> placed = new HashMap<String, Boolean>();
+
+        boolean progress = true;
+        while (progress && ordered.size() < loads.size()) {
+            progress = false;
+            for (TableLoad load : loads.values()) {
+                String key = load.table.toLowerCase();
+                if (placed.containsKey(key)) {
+                    continue;
+                }
+                TableDefinition definition = schema.get(load.table);
+                boolean ready = true;
+                if (definition != null) {
+                    for (String parent : definition.parents) {
+                        if (loads.containsKey(parent) && !placed.containsKey(parent)) {
+                            ready = false;
+                        }
+                    }
+                }
+                if (ready) {
+                    ordered.add(load);
+                    placed.put(key, true);
+                    progress = true;
+                }
+            }
+        }
+
+        for (TableLoad load : loads.values()) {
+            if (!placed.containsKey(load.table.toLowerCase())) {
+                ordered.add(load);
+            }
+        }
+
+        return ordered;
+    }
+
+    // Loads one table on whichever connection is free. Runs on a worker thread.
+    private void loadTable(TableLoad load, BlockingQueue<Connection> idleConnections) {
+
+        Connection loadConnection;
+        try {
+            loadConnection = idleConnections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(new SQLException("Interrupted while loading " + load.table));
+        }
+
+        long start = System.nanoTime();
+        try {
+            boolean oldAutoCommit = loadConnection.getAutoCommit();
+            loadConnection.setAutoCommit(false);
+
+            try (Statement statement = loadConnection.createStatement()) {
+                int rowsSinceCommit = 0;
+                for (int i = 0; i < load.inserts.size(); i++) {
+                    long insertStart = System.nanoTime();
+                    statement.executeUpdate(load.inserts.get(i));
+                    timed("execute", insertStart);
+                    rowsSinceCommit += load.insertRows.get(i);
+                    if (rowsSinceCommit >= COMMIT_EVERY_ROWS) {
+                        long commitStart = System.nanoTime();
+                        loadConnection.commit();
+                        timed("commit", commitStart);
+                        load.commits++;
+                        rowsSinceCommit = 0;
+                    }
+                }
+                long commitStart = System.nanoTime();
+                loadConnection.commit();
+                timed("commit", commitStart);
+                load.commits++;
+            } catch (SQLException e) {
+                loadConnection.rollback();
+                throw e;
+            } finally {
+                loadConnection.setAutoCommit(oldAutoCommit);
+            }
+
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        } finally {
+            load.elapsedNanos = System.nanoTime() - start;
+            idleConnections.add(loadConnection);
+        }
+    }
+
+    // The old way: every statement on its own, in batches, on the main connection
+    private void loadStatementByStatement() throws IOException, SQLException {
+
+        boolean oldAutoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try (SqlScriptReader script = new SqlScriptReader(scriptPath);
+                Statement statement = connection.createStatement()) {
+
+            String statementText;
+            int count = 0;
+
+            while ((statementText = script.nextStatement()) != null) {
+
+                boolean isInsert = INSERT_PATTERN.matcher(statementText).matches();
+                if (!isInsert) {
+                    statementText = SchemaMigration.rewrite(statementText); // Typed columns
+                    schema.addStatement(statementText); // For the index phase
+                    statementText = backend.translate(statementText);
+                    if (statementText == null) {
+                        continue; // Not needed on this backend
+                    }
+                }
+
+                statement.addBatch(statementText);
+                count++;
+                report.statementsSent++;
+                if (isInsert) {
+                    report.rowsInserted++;
+                }
+
+                if (count >= STATEMENT_BATCH_SIZE) {
+                    long batchStart = System.nanoTime();
+                    statement.executeBatch();
+                    timed("execute", batchStart);
+                    count = 0;
+                }
+            }
+
+            if (count > 0) {
+                long batchStart = System.nanoTime();
+                statement.executeBatch();
+                timed("execute", batchStart);
+            }
+            long commitStart = System.nanoTime();
+            connection.commit();
+            timed("commit", commitStart);
+            report.commits++;
+            report.statementsParsed = script.statementsRead;
+
+        } catch (SQLException | IOException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(oldAutoCommit);
+        }
+    }
+
+    // Records how long phase took since start, if anyone's keeping metrics
+    private void timed(String phase, long start) {
+        if (metrics != null) {
+            metrics.recordPhase(phase, System.nanoTime() - start);
+        }
+    }
+
+}
+
+// The merged INSERTs for one table, and how long loading them took
+class TableLoad {
+
+    final String table;
+    final String target; // Where the INSERTs go, the table or its shadow
+    final ArrayList<String> inserts = new ArrayList<String>();
+    final ArrayList<Integer> insertRows = new ArrayList<Integer>();
+    int rows = 0;
+    int commits = 0;
+    long elapsedNanos = 0;
+
+    TableLoad(String table) {
+        this(table, table);
+    }
+
+    TableLoad(String table, String target) {
+        this.table = table;
+        this.target = target;
+    }
+
+    void addInsert(String columns, CharSequence values, int rowCount) {
+        inserts.add("INSERT INTO " + target + " " + columns + " VALUES\n" + values);
+        insertRows.add(rowCount);
+        rows += rowCount;
+    }
+
+}
+
+// What happened during a rebuild, shown on the "rebuilt successfully" screen
+class RebuildReport {
+
+    long elapsedNanos = 0;
+    long parseNanos = 0;
+    long ddlNanos = 0;
+    long loadNanos = 0;
+    long indexNanos = 0;
+    int statementsParsed = 0;
+    int statementsSent = 0;
+    int rowsInserted = 0;
+    int commits = 0;
+
+    // Per table load times. Empty for a statement-by-statement rebuild.
+    ArrayList<TableLoad> tables = new ArrayList<TableLoad>();
+
+    // The index phase, null if it was turned off
+    IndexReport indexes = null;
+
+    // Incremental rebuilds only. The tables left alone, and roughly how long they
+    // took to load the last time they were.
+    boolean incremental = false;
+    String fullRebuildReason = null; // Why everything was reloaded anyway
+    ArrayList<String> skippedTables = new ArrayList<String>();
+    long savedNanos = 0;
+
+    // Set when it was restored from a snapshot instead of the script
+    Path snapshotPath = null;
+    long snapshotBytes = 0;
+
+    // Shadow rebuilds only
+    boolean shadow = false;
+    String failure = null; // Why it failed (the live tables weren't touched), null if it didn't
+    long validateNanos = 0;
+    long rowsValidated = 0;
+    int foreignKeysValidated = 0;
+    long swapNanos = 0;
+    int tablesSwapped = 0;
+    String oldTablesLeft = null; // Why the swapped out tables couldn't be dropped
+
+    // Lines to print, already indented for the terminal
+    ArrayList<String> summary() {
+
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(String.format("\tRebuild took %.2f s", elapsedNanos / 1e9));
+        lines.add(String.format("\t%d statements in the script, %d sent to the server, %d commits",
+                statementsParsed, statementsSent, commits));
+        lines.add(String.format("\t%d rows inserted (%.0f rows/sec)", rowsInserted, perSecond(rowsInserted, elapsedNanos)));
+
+        if (failure != null) {
+            lines.add("\tRebuild failed: " + failure);
+            lines.add("\tNothing was swapped in, the database still has its previous data");
+        } else if (shadow && tablesSwapped > 0) {
+            lines.add(String.format("\tLoaded into %s, checked %,d rows and %d foreign keys in %.2f s",
+                    DatabaseRebuilder.SHADOW_SCHEMA, rowsValidated, foreignKeysValidated, validateNanos / 1e9));
+            lines.add(String.format("\tSwapped in %d tables in %.1f ms", tablesSwapped, swapNanos / 1e6));
+            if (oldTablesLeft != null) {
+                lines.add("\tThe old tables are still in " + DatabaseRebuilder.OLD_SCHEMA + " (" + oldTablesLeft
+                        + "), the next rebuild drops them");
+            }
+        }
+
+        if (snapshotPath != null) {
+            lines.add(String.format("\tRestored from the snapshot in %s (%,d bytes), no SQL parsed",
+                    snapshotPath, snapshotBytes));
+        }
+
+        if (incremental && fullRebuildReason != null) {
+            lines.add("\tEverything was reloaded, " + fullRebuildReason);
+        } else if (incremental) {
+            lines.add(String.format("\tReloaded %d tables, skipped %d unchanged: %s", tables.size(),
+                    skippedTables.size(), skippedTables.isEmpty() ? "none" : String.join(", ", skippedTables)));
+            lines.add(String.format("\tSkipping them saved about %.2f s (their load time last rebuild)",
+                    savedNanos / 1e9));
+        }
+
+        if (!tables.isEmpty()) {
+            lines.add(String.format("\tParse %.2f s, create tables %.2f s, load tables %.2f s",
+                    parseNanos / 1e9, ddlNanos / 1e9, loadNanos / 1e9));
+            lines.add("");
+            lines.add(String.format("\t%-12s %8s %9s %11s", "Table", "Rows", "Seconds", "Rows/sec"));
+            for (TableLoad table : tables) {
+                lines.add(String.format("\t%-12s %8d %9.2f %11.0f", table.table, table.rows,
+                        table.elapsedNanos / 1e9, perSecond(table.rows, table.elapsedNanos)));
+            }
+        }
+
+        if (indexes != null) {
+            lines.add("");
+            lines.add(String.format("\tIndexes built in %.2f s", indexNanos / 1e9));
+            lines.addAll(indexes.summary());
+        }
+
+        return lines;
+    }
+
+    private static double perSecond(int rows, long nanos) {
+        return rows / Math.max(nanos / 1e9, 1e-9);
+    }
+
+}
@@ -0,0 +1,562 @@
+
+// Util imports
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+// SQL imports
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+// Driver imports
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+
+/*
+ * A binary copy of the whole database, so restoring it doesn't mean parsing
+ * and running 2 MB of SQL again. Written from a MemoryDatabase (loaded from
+ * populate.sql, or the one already running with --memory).
+ *
+ * A snapshot is a directory:
+ * - manifest: the script's other DDL (USE and so on) and the table files, in
+ * the order the script created the tables (so parents come first)
+ * - one <table>.table file per table
+ *
+ * A table file has a header (the CREATE TABLE statement, the row count and
+ * each column's name and kind) followed by groups of up to ROWS_PER_GROUP rows.
+ * Within a group the values are stored a column at a time: a bitmap of which
+ * rows are NULL, then the non-NULL values. Integers, dates and times are
+ * zigzag varints, text columns are a dictionary of the group's distinct
+ * strings followed by an index into it per row (most text columns repeat a
+ * lot, like airports and airlines). Groups can be read one at a time, so a
+ * table never has to be in memory all at once to be restored.
+ *
+ * Everything is big-endian (DataOutputStream), strings are UTF-8.
+ */
+class DatabaseSnapshot {
+
+    static final int MAGIC = 0x33333830; // "3380"
+    static final int VERSION = 1;
+
+    static final String MANIFEST_FILE_NAME = "manifest";
+    static final String TABLE_FILE_SUFFIX = ".table";
+
+    static final int ROWS_PER_GROUP = 4096;
+
+    // How a column's values are stored, worked out from its type the same way
+    // MemoryDatabase.convert does
+    enum ValueKind {
+        INTEGER, DECIMAL, DATE_TIME, DATE, TEXT;
+
+        static ValueKind of(ColumnDefinition column) {
+            switch (column.baseType()) {
+                case "TINYINT":
+                case "SMALLINT":
+                case "INT":
+                case "INTEGER":
+                case "BIGINT":
+                    return INTEGER;
+                case "NUMERIC":
+                case "DECIMAL":
+                    return DECIMAL;
+                case "DATETIME":
+                case "DATETIME2":
+                    return DATE_TIME;
+                case "DATE":
+                    return DATE;
+                default:
+                    return TEXT;
+            }
+        }
+    }
+
+    // Writes database into directory (created if it doesn't exist, files already
+    // there are replaced). Returns the number of bytes written.
+    static long write(MemoryDatabase database, Path directory) throws IOException {
+
+        Files.createDirectories(directory);
+        long bytes = 0;
+
+        ArrayList<String> files = new ArrayList<String>();
+        for (MemoryTable table : database.tables()) {
+            String file = table.definition.name + TABLE_FILE_SUFFIX;
+            Path path = directory.resolve(file);
+            writeTable(table, path);
+            bytes += Files.size(path);
+            files.add(file);
+        }
+
+        // Manifest last, so a snapshot cut short by an error isn't readable
+        Path manifest = directory.resolve(MANIFEST_FILE_NAME);
+        try (DataOutputStream out = output(manifest)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarint(out, database.otherDdl.size());
+            for (String statement : database.otherDdl) {
+                writeString(out, statement);
+            }
+            writeVarint(out, files.size());
+            for (String file : files) {
+                writeString(out, file);
+            }
+        }
+        return bytes + Files.size(manifest);
+    }
+
+    private static void writeTable(MemoryTable table, Path path) throws IOException {
+
+        List<ColumnDefinition> columns = table.definition.columns;
+        ValueKind[] kinds = new ValueKind[columns.size()];
+
+        try (DataOutputStream out = output(path)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, table.definition.ddl);
+            out.writeLong(table.rows.size());
+            writeVarint(out, columns.size());
+            for (int c = 0; c < kinds.length; c++) {
+                kinds[c] = ValueKind.of(columns.get(c));
+                writeString(out, columns.get(c).name);
+                out.writeByte(kinds[c].ordinal());
+            }
+
+            for (int start = 0; start < table.rows.size(); start += ROWS_PER_GROUP) {
+                List<Object[]> group = table.rows.subList(start, Math.min(start + ROWS_PER_GROUP, table.rows.size()));
+                writeVarint(out, group.size());
+                for (int c = 0; c < kinds.length; c++) {
+                    writeColumn(out, group, c, kinds[c]);
+                }
+            }
+        }
+    }
+
+    // Column c of the rows in group. Also used for ResultExporter's columnar files.
+    static void writeColumn(DataOutputStream out, List<Object[]> group, int c, ValueKind kind)
+            throws IOException {
+
+        byte[] nulls = new byte[(group.size() + 7) / 8];
+        for (int r = 0; r < group.size(); r++) {
+            if (group.get(r)[c] == null) {
+                nulls[r / 8] |= 1 << (r % 8);
+            }
+        }
+        out.write(nulls);
+
+        if (kind == ValueKind.TEXT) {
+            // Dictionary first, then an index into it per value
+            HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+            ArrayList<String> entries = new ArrayList<String>();
+            for (Object[] row : group) {
+                if (row[c] != null && dictionary.putIfAbsent((String) row[c], entries.size()) == null) {
+                    entries.add((String) row[c]);
+                }
+            }
+            writeVarint(out, entries.size());
+            for (String entry : entries) {
+                writeString(out, entry);
+            }
+            for (Object[] row : group) {
+                if (row[c] != null) {
+                    writeVarint(out, dictionary.get((String) row[c]));
+                }
+            }
+            return;
+        }
+
+        for (Object[] row : group) {
+            Object value = row[c];
+            if (value == null) {
+                continue;
+            }
+            switch (kind) {
+                case INTEGER:
+                    writeZigzag(out, (Long) value);
+                    break;
+                case DECIMAL:
+                    BigDecimal decimal = (BigDecimal) value;
+                    writeZigzag(out, decimal.scale());
+                    byte[] unscaled = decimal.unscaledValue().toByteArray();
+                    writeVarint(out, unscaled.length);
+                    out.write(unscaled);
+                    break;
+                case DATE_TIME:
+                    LocalDateTime dateTime = (LocalDateTime) value;
+                    writeZigzag(out, dateTime.toEpochSecond(ZoneOffset.UTC));
+                    writeVarint(out, dateTime.getNano());
+                    break;
+                case DATE:
+                    writeZigzag(out, ((LocalDate) value).toEpochDay());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // The manifest of the snapshot in directory
+    static SnapshotManifest readManifest(Path directory) throws IOException {
+
+        try (DataInputStream in = input(directory.resolve(MANIFEST_FILE_NAME))) {
+            checkHeader(in, directory.resolve(MANIFEST_FILE_NAME));
+            SnapshotManifest manifest = new SnapshotManifest(directory);
+            for (int i = readVarint(in); i > 0; i--) {
+                manifest.otherDdl.add(readString(in));
+            }
+            for (int i = readVarint(in); i > 0; i--) {
+                manifest.tableFiles.add(directory.resolve(readString(in)));
+            }
+            return manifest;
+        }
+    }
+
+    static void checkHeader(DataInputStream in, Path path) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException(path + " isn't a snapshot file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException(path + " is snapshot version " + version + ", expected " + VERSION);
+        }
+    }
+
+    static DataOutputStream output(Path path) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+    }
+
+    static DataInputStream input(Path path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+    }
+
+    /*
+     * Varints: 7 bits at a time, low bits first, top bit set on every byte but
+     * the last. Zigzag maps small negative numbers to small positive ones first.
+     */
+
+    static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static void writeZigzag(DataOutputStream out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in snapshot");
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    static long readZigzag(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
+
+// What's in a snapshot directory
+class SnapshotManifest {
+
+    final Path directory;
+    final ArrayList<String> otherDdl = new ArrayList<String>();
+    final ArrayList<Path> tableFiles = new ArrayList<Path>();
+
+    SnapshotManifest(Path directory) {
+        this.directory = directory;
+    }
+
+    // Size of the whole snapshot
+    long bytes() throws IOException {
+        long bytes = Files.size(directory.resolve(DatabaseSnapshot.MANIFEST_FILE_NAME));
+        for (Path file : tableFiles) {
+            bytes += Files.size(file);
+        }
+        return bytes;
+    }
+
+}
+
+// Reads one table file of a snapshot, a group of rows at a time. The header is
+// read when it's opened.
+class SnapshotTableReader implements AutoCloseable {
+
+    final Path path;
+    final String createStatement;
+    final long rows;
+    final String[] columnNames;
+    final DatabaseSnapshot.ValueKind[] kinds;
+
+    private final DataInputStream in;
+    private long rowsRead = 0;
+
+    SnapshotTableReader(Path path) throws IOException {
+        this.path = path;
+        this.in = DatabaseSnapshot.input(path);
+        try {
+            DatabaseSnapshot.checkHeader(in, path);
+            createStatement = DatabaseSnapshot.readString(in);
+            rows = in.readLong();
+            columnNames = new String[DatabaseSnapshot.readVarint(in)];
+            kinds = new DatabaseSnapshot.ValueKind[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnNames[c] = DatabaseSnapshot.readString(in);
+                kinds[c] = DatabaseSnapshot.ValueKind.values()[in.readUnsignedByte()];
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // The next group of rows (values as MemoryDatabase stores them), or null once
+    // they've all been read
+    ArrayList<Object[]> nextGroup() throws IOException {
+
+        if (rowsRead >= rows) {
+            return null;
+        }
+
+        try {
+            int count = DatabaseSnapshot.readVarint(in);
+            ArrayList<Object[]> group = new ArrayList<Object[]>(count);
+            for (int r = 0; r < count; r++) {
+                group.add(new Object[kinds.length]);
+            }
+            for (int c = 0; c < kinds.length; c++) {
+                readColumn(group, c);
+            }
+            rowsRead += count;
+            return group;
+        } catch (EOFException e) {
+            throw new IOException(path + " ends after " + rowsRead + " of its " + rows + " rows");
+        }
+    }
+
+    private void readColumn(ArrayList<Object[]> group, int c) throws IOException {
+
+        byte[] nulls = new byte[(group.size() + 7) / 8];
+        in.readFully(nulls);
+
+        String[] dictionary = null;
+        if (kinds[c] == DatabaseSnapshot.ValueKind.TEXT) {
+            dictionary = new String[DatabaseSnapshot.readVarint(in)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = DatabaseSnapshot.readString(in);
+            }
+        }
+
+        for (int r = 0; r < group.size(); r++) {
+            if ((nulls[r / 8] & (1 << (r % 8))) != 0) {
+                continue;
+            }
+            Object value;
+            switch (kinds[c]) {
+                case INTEGER:
+                    value = DatabaseSnapshot.readZigzag(in);
+                    break;
+                case DECIMAL: {
+                    int scale = (int) DatabaseSnapshot.readZigzag(in);
+                    byte[] unscaled = new byte[DatabaseSnapshot.readVarint(in)];
+                    in.readFully(unscaled);
+                    value = new BigDecimal(new BigInteger(unscaled), scale);
+                    break;
+                }
+                case DATE_TIME: {
+                    long seconds = DatabaseSnapshot.readZigzag(in);
+                    value = LocalDateTime.ofEpochSecond(seconds, DatabaseSnapshot.readVarint(in), ZoneOffset.UTC);
+                    break;
+                }
+                case DATE:
+                    value = LocalDate.ofEpochDay(DatabaseSnapshot.readZigzag(in));
+                    break;
+                default:
+                    value = dictionary[DatabaseSnapshot.readVarint(in)];
+                    break;
+            }
+            group.get(r)[c] = value;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
+
+// Feeds a snapshot table to SQLServerBulkCopy a row at a time, with the values
+// turned into the JDBC types the driver expects for each column
+class SnapshotBulkData implements ISQLServerBulkData {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient SnapshotTableReader reader;
+    private final List<ColumnDefinition> columns;
+
+    private transient ArrayList<Object[]> group = null;
+    private int next = 0;
+    private Object[] row = null;
+
+    // columns are the table's definitions, in the same order as the file's
+    SnapshotBulkData(SnapshotTableReader reader, List<ColumnDefinition> columns) {
+        this.reader = reader;
+        this.columns = columns;
+    }
+
+    // Bulk copies every row left in reader into destination (table's name, or its
+    // shadow). Kept in here so only the
+    // restore needs the driver's bulk copy classes (the in-memory database doesn't
+    // have the driver at all).
+    static void copy(Connection connection, SnapshotTableReader reader, TableDefinition table, String destination)
+            throws SQLException {
+
+        SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+        options.setTableLock(true);
+        options.setKeepNulls(true);
+        options.setCheckConstraints(true); // Otherwise the foreign keys end up untrusted
+        options.setBulkCopyTimeout(0);
+
+        try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(connection)) {
+            bulkCopy.setBulkCopyOptions(options);
+            bulkCopy.setDestinationTableName(destination);
+            bulkCopy.writeToServer(new SnapshotBulkData(reader, table.columns));
+        }
+    }
+
+    @Override
+    public Set<Integer> getColumnOrdinals() {
+        LinkedHashSet<Integer> ordinals = new LinkedHashSet<Integer>();
+        for (int i = 1; i <= columns.size(); i++) {
+            ordinals.add(i);
+        }
+        return ordinals;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns.get(column - 1).name;
+    }
+
+    @Override
+    public int getColumnType(int column) {
+        ColumnDefinition definition = columns.get(column - 1);
+        switch (reader.kinds[column - 1]) {
+            case INTEGER:
+                return definition.baseType().equals("BIGINT") ? Types.BIGINT : Types.INTEGER;
+            case DECIMAL:
+                return Types.DECIMAL;
+            case DATE_TIME:
+                return Types.TIMESTAMP;
+            case DATE:
+                return Types.DATE;
+            default:
+                return Types.VARCHAR;
+        }
+    }
+
+    @Override
+    public int getPrecision(int column) {
+        ColumnDefinition definition = columns.get(column - 1);
+        switch (reader.kinds[column - 1]) {
+            case DECIMAL:
+                return definition.precision(18);
+            case DATE_TIME:
+                return 27; // yyyy-MM-dd HH:mm:ss.fffffff
+            case TEXT:
+                return definition.precision(Integer.MAX_VALUE);
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public int getScale(int column) {
+        ColumnDefinition definition = columns.get(column - 1);
+        switch (reader.kinds[column - 1]) {
+            case DECIMAL:
+                return definition.scale(0);
+            case DATE_TIME:
+                return definition.baseType().equals("DATETIME") ? 3 : definition.scale(7);
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        try {
+            while (group == null || next >= group.size()) {
+                group = reader.nextGroup();
+                next = 0;
+                if (group == null) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unable to read " + reader.path + ": " + e.getMessage(), e);
+        }
+        row = group.get(next++);
+        return true;
+    }
+
+    @Override
+    public Object[] getRowData() {
+        Object[] data = new Object[row.length];
+        for (int c = 0; c < row.length; c++) {
+            Object value = row[c];
+            if (value instanceof Long && getColumnType(c + 1) == Types.INTEGER) {
+                data[c] = ((Long) value).intValue();
+            } else if (value instanceof LocalDateTime) {
+                data[c] = Timestamp.valueOf((LocalDateTime) value);
+            } else if (value instanceof LocalDate) {
+                data[c] = java.sql.Date.valueOf((LocalDate) value);
+            } else {
+                data[c] = value;
+            }
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,246 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+// SQL imports
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Builds the secondary indexes the menu queries need, once the tables are
+ * loaded. populate.sql only declares primary keys, so without these the
+ * queries filtering on things like Flights.origin or Fly.SIN scan whole tables.
+ * Building them after the bulk load (rather than declaring them in the script)
+ * means the inserts don't pay for maintaining them row by row.
+ *
+ * Every index says which catalog queries it's for. If a catalog is given, those
+ * queries are timed before and after the indexes go in.
+ *
+ * An index whose columns are the start of the table's primary key is skipped,
+ * since the clustered primary key already works as that index. The clustering
+ * key is also part of every nonclustered index, so it never needs INCLUDEing.
+ */
+class IndexProvisioner {
+
+    // The indexes to build, in order
+    static final List<IndexDefinition> DECLARED = Arrays.asList(
+            new IndexDefinition("IX_Flights_origin", "Flights", "origin",
+                    "destination, tailNum, schedArr", "7", "10", "15"),
+            new IndexDefinition("IX_Flights_destination", "Flights", "destination",
+                    "schedArr", "2.1", "2.2", "5"),
+            new IndexDefinition("IX_Flights_tailNum", "Flights", "tailNum",
+                    "origin, runNumO, schedArr, destination, runNumD", "9"),
+            new IndexDefinition("IX_Book_flightNum", "Book", "flightNum, schedDep",
+                    null, "2.1", "2.2", "5", "12"),
+            new IndexDefinition("IX_Fly_SIN", "Fly", "SIN", null, "1", "3", "13", "14.1", "14.5"),
+            new IndexDefinition("IX_Attend_SIN", "Attend", "SIN", null, "3", "13", "14.4", "14.5"),
+            new IndexDefinition("IX_Guide_SIN", "Guide", "SIN", null, "3", "13", "14.3", "14.5"),
+            new IndexDefinition("IX_Service_SIN", "Service", "SIN", null, "3", "13", "14.2", "14.5"),
+            new IndexDefinition("IX_Luggage_passNum", "Luggage", "passNum", null, "8", "12"),
+            new IndexDefinition("IX_Passenger_phoneNum", "Passenger", "phoneNum", null, "8"),
+            new IndexDefinition("IX_Planes_airline", "Planes", "airline", "year", "9", "11"));
+
+    // Runs of each query when timing, the median is reported
+    static final int LATENCY_RUNS = 3;
+
+    private final Connection connection;
+    private final ScriptSchema schema;
+    private final QueryCatalog catalog;
+
+    // Lower case names of the tables to build indexes on, null for every table. An
+    // incremental rebuild only needs them on the tables it reloaded.
+    HashSet<String> onlyTables = null;
+
+    // Goes in front of every table name, for indexing shadow tables ("schema.")
+    String tablePrefix = "";
+
+    // The index and query SQL is translated for this
+    Backend backend = SqlServerBackend.DIALECT;
+
+    // catalog can be null, then nothing is timed
+    IndexProvisioner(Connection connection, ScriptSchema schema, QueryCatalog catalog) {
+        this.connection = connection;
+        this.schema = schema;
+        this.catalog = catalog;
+    }
+
+    IndexReport provision() throws SQLException {
+
+        IndexReport report = new IndexReport();
+        long start = System.nanoTime();
+
+        // Every query served by an index, with parameters picked before any timing
+        LinkedHashMap<QueryDefinition, Object[]> served = new LinkedHashMap<QueryDefinition, Object[]>();
+        if (catalog != null) {
+            for (QueryDefinition query : catalog.queries()) {
+                for (IndexDefinition index : DECLARED) {
+                    if (building(index) && index.servedQueries.contains(query.id)) {
+                        served.put(query, SampleParameters.forQuery(query, connection, backend));
+                        break;
+                    }
+                }
+            }
+            for (QueryDefinition query : served.keySet()) {
+                report.before.put(query.id, time(query, served.get(query)));
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            for (IndexDefinition index : DECLARED) {
+                IndexResult result = new IndexResult(index);
+                report.indexes.add(result);
+
+                TableDefinition table = schema.get(index.table);
+                if (!building(index)) {
+                    result.skipped = "table wasn't reloaded";
+                } else if (table == null) {
+                    result.skipped = "table not in the script";
+                } else if (index.coveredBy(table.primaryKey)) {
+                    result.skipped = "covered by the primary key";
+                } else {
+                    long indexStart = System.nanoTime();
+                    statement.execute(backend.translate(index.createSql(tablePrefix)));
+                    result.elapsedNanos = System.nanoTime() - indexStart;
+                }
+            }
+        }
+
+        for (QueryDefinition query : served.keySet()) {
+            report.after.put(query.id, time(query, served.get(query)));
+        }
+
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private boolean building(IndexDefinition index) {
+        return onlyTables == null || onlyTables.contains(index.table.toLowerCase());
+    }
+
+    // Median time to run query and read all its rows
+    private long time(QueryDefinition query, Object[] values) throws SQLException {
+
+        long[] times = new long[LATENCY_RUNS];
+
+        try (PreparedStatement statement = connection.prepareStatement(backend.querySql(query))) {
+            query.bind(statement, values);
+            for (int i = 0; i < LATENCY_RUNS; i++) {
+                long start = System.nanoTime();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                    }
+                }
+                times[i] = System.nanoTime() - start;
+            }
+        }
+
+        Arrays.sort(times);
+        return times[LATENCY_RUNS / 2];
+    }
+
+}
+
+// CREATE INDEX name ON table (columns) INCLUDE (include)
+class IndexDefinition {
+
+    final String name;
+    final String table;
+    final List<String> columns;
+    final String include; // null for none
+    final List<String> servedQueries;
+
+    IndexDefinition(String name, String table, String columns, String include, String... servedQueries) {
+        this.name = name;
+        this.table = table;
+        this.columns = new ArrayList<String>();
+        for (String column : columns.split(",")) {
+            this.columns.add(column.trim());
+        }
+        this.include = include;
+        this.servedQueries = Arrays.asList(servedQueries);
+    }
+
+    String createSql() {
+        return createSql("");
+    }
+
+    // With tablePrefix in front of the table name
+    String createSql(String tablePrefix) {
+        return "CREATE NONCLUSTERED INDEX " + name + " ON " + tablePrefix + table + " (" + String.join(", ", columns) + ")"
+                + (include == null ? "" : " INCLUDE (" + include + ")");
+    }
+
+    // True if this index's columns are the first columns of primaryKey
+    boolean coveredBy(List<String> primaryKey) {
+        if (columns.size() > primaryKey.size()) {
+            return false;
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            if (!columns.get(i).equalsIgnoreCase(primaryKey.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
+
+// What happened to one declared index
+class IndexResult {
+
+    final IndexDefinition index;
+    long elapsedNanos = 0;
+    String skipped = null; // Why it wasn't built, null if it was
+
+    IndexResult(IndexDefinition index) {
+        this.index = index;
+    }
+
+}
+
+// The index phase of a rebuild
+class IndexReport {
+
+    long elapsedNanos = 0;
+    final ArrayList<IndexResult> indexes = new ArrayList<IndexResult>();
+
+    // Median query times by query id, before and after the indexes. Empty if
+    // nothing was timed.
+    final LinkedHashMap<String, Long> before = new LinkedHashMap<String, Long>();
+    final LinkedHashMap<String, Long> after = new LinkedHashMap<String, Long>();
+
+    // Lines to print, already indented for the terminal
+    ArrayList<String> summary() {
+
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(String.format("\t%-24s %9s  %s", "Index", "Seconds", "Serves queries"));
+        for (IndexResult result : indexes) {
+            String serves = String.join(", ", result.index.servedQueries);
+            if (result.skipped != null) {
+                lines.add(String.format("\t%-24s %9s  %s (%s)", result.index.name, "-", serves, result.skipped));
+            } else {
+                lines.add(String.format("\t%-24s %9.2f  %s", result.index.name, result.elapsedNanos / 1e9, serves));
+            }
+        }
+
+        if (!before.isEmpty()) {
+            lines.add("");
+            lines.add(String.format("\t%-8s %12s %12s %9s", "Query", "Before (ms)", "After (ms)", "Speedup"));
+            for (String id : before.keySet()) {
+                long beforeNanos = before.get(id);
+                long afterNanos = after.get(id);
+                lines.add(String.format("\t%-8s %12.2f %12.2f %8.1fx", id, beforeNanos / 1e6, afterNanos / 1e6,
+                        beforeNanos / (double) Math.max(afterNanos, 1)));
+            }
+        }
+
+        return lines;
+    }
+
+}
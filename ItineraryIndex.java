@@ -0,0 +1,175 @@
+
+// Util imports
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Every passenger's booked flights, sorted by departure. Built once from a
+ * MemoryDatabase and used to answer query 2 (passengers on layover).
+ *
+ * A booking is joined to its flight on (flightNum, schedDep), the flight's
+ * primary key, so each booking is exactly one leg.
+ *
+ * A passenger is on a layover at an airport when one of their legs arrives
+ * there and they have another leg departing after that. Since the legs are in
+ * departure order, the last leg is the latest departure, so that's one
+ * comparison per arrival instead of a search through the passenger's bookings.
+ * Counting every airport at once is then a single pass over all the legs.
+ */
+class ItineraryIndex {
+
+    // One booked flight
+    static class Leg {
+        final String flightNum;
+        final String origin;
+        final String destination;
+        final LocalDateTime departure;
+        final LocalDateTime arrival;
+
+        // destination as MemoryIndex.normalise gives it, worked out once
+        final Object destinationKey;
+
+        Leg(String flightNum, String origin, String destination, LocalDateTime departure, LocalDateTime arrival) {
+            this.flightNum = flightNum;
+            this.origin = origin;
+            this.destination = destination;
+            this.departure = departure;
+            this.arrival = arrival;
+            this.destinationKey = MemoryIndex.normalise(destination);
+        }
+    }
+
+    // Legs of each passenger (by passNum as MemoryIndex.normalise gives it), sorted by departure
+    private final HashMap<Object, Leg[]> itineraries = new HashMap<Object, Leg[]>();
+
+    // Legs arriving at each airport (normalised icao), as (passenger's itinerary, leg) pairs
+    private final HashMap<Object, ArrayList<Arrival>> arrivals = new HashMap<Object, ArrayList<Arrival>>();
+
+    int legs = 0;
+    long buildNanos = 0;
+
+    ItineraryIndex(MemoryDatabase database) {
+
+        long start = System.nanoTime();
+
+        MemoryTable book = database.table("Book");
+        MemoryTable flights = database.table("Flights");
+        int passNum = book.column("passNum");
+        int bookFlightNum = book.column("flightNum");
+        int bookSchedDep = book.column("schedDep");
+        int flightNum = flights.column("flightNum");
+        int origin = flights.column("origin");
+        int destination = flights.column("destination");
+        int schedDep = flights.column("schedDep");
+        int schedArr = flights.column("schedArr");
+        MemoryIndex flightKey = flights.index("flightNum", "schedDep");
+
+        HashMap<Object, ArrayList<Leg>> byPassenger = new HashMap<Object, ArrayList<Leg>>();
+        for (Object[] booking : book.rows) {
+            Object[] flight = flightKey.first(booking[bookFlightNum], booking[bookSchedDep]);
+            if (flight == null) {
+                continue; // Can't happen with the foreign key, but the inner join would drop it
+            }
+            byPassenger.computeIfAbsent(MemoryIndex.normalise(booking[passNum]), k -> new ArrayList<Leg>())
+                    .add(new Leg((String) flight[flightNum], (String) flight[origin], (String) flight[destination],
+                            (LocalDateTime) flight[schedDep], (LocalDateTime) flight[schedArr]));
+            legs++;
+        }
+
+        for (Map.Entry<Object, ArrayList<Leg>> passenger : byPassenger.entrySet()) {
+            Leg[] itinerary = passenger.getValue().toArray(new Leg[0]);
+            Arrays.sort(itinerary, Comparator.comparing((Leg leg) -> leg.departure));
+            itineraries.put(passenger.getKey(), itinerary);
+
+            for (Leg leg : itinerary) {
+                arrivals.computeIfAbsent(leg.destinationKey, k -> new ArrayList<Arrival>())
+                        .add(new Arrival(itinerary, leg));
+            }
+        }
+
+        buildNanos = System.nanoTime() - start;
+    }
+
+    // Number of legs arriving at icao whose passenger departs again later
+    long layovers(String icao) {
+        ArrayList<Arrival> arriving = arrivals.get(MemoryIndex.normalise(icao));
+        if (arriving == null) {
+            return 0;
+        }
+        long count = 0;
+        for (Arrival arrival : arriving) {
+            if (arrival.departsLater()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // layovers() for every airport anyone arrives at, in one pass. Airports with
+    // no layovers are left out.
+    LinkedHashMap<String, Long> layoversByAirport() {
+        // Keyed by normalised icao. The first leg seen gives the icao as written.
+        LinkedHashMap<Object, Count> counts = new LinkedHashMap<Object, Count>();
+
+        for (Leg[] itinerary : itineraries.values()) {
+            LocalDateTime lastDeparture = itinerary[itinerary.length - 1].departure;
+            for (Leg leg : itinerary) {
+                if (lastDeparture.isAfter(leg.arrival)) {
+                    Count count = counts.get(leg.destinationKey);
+                    if (count == null) {
+                        count = new Count(leg.destination);
+                        counts.put(leg.destinationKey, count);
+                    }
+                    count.layovers++;
+                }
+            }
+        }
+
+        LinkedHashMap<String, Long> byAirport = new LinkedHashMap<String, Long>();
+        for (Count count : counts.values()) {
+            byAirport.put(count.icao, count.layovers);
+        }
+        return byAirport;
+    }
+
+    // The passenger's legs in departure order (empty if they have no bookings)
+    Leg[] itinerary(String passNum) {
+        Leg[] itinerary = itineraries.get(MemoryIndex.normalise(passNum));
+        return itinerary == null ? new Leg[0] : itinerary;
+    }
+
+    int passengers() {
+        return itineraries.size();
+    }
+
+    private static class Count {
+        final String icao;
+        long layovers = 0;
+
+        Count(String icao) {
+            this.icao = icao;
+        }
+    }
+
+    // A leg arriving somewhere, and the itinerary it's part of
+    private static class Arrival {
+        final Leg[] itinerary;
+        final Leg leg;
+
+        Arrival(Leg[] itinerary, Leg leg) {
+            this.itinerary = itinerary;
+            this.leg = leg;
+        }
+
+        // The passenger's latest departure is after this leg lands
+        boolean departsLater() {
+            return itinerary[itinerary.length - 1].departure.isAfter(leg.arrival);
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+
+// Util imports
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+// SQL imports
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * Times the ways of answering query 2 (passengers on layover). Started with
+ * --bench-layovers (add --memory to skip the SQL server).
+ *
+ * In memory it compares the nested join the old SQL did (Book joined to Flights
+ * on flightNum alone, and a search of the passenger's bookings for every
+ * arrival) against ItineraryIndex, both per airport and for all airports in one
+ * pass. On the server it compares the old SQL with the catalog's 2.1 and 2.2.
+ *
+ * The old query's counts are different since its join matched a booking with
+ * every flight sharing the flight number, so the counts are printed too.
+ */
+class LayoverBenchmark {
+
+    // Runs of each timing, the median is reported
+    static final int RUNS = 5;
+
+    // Untimed runs first. In memory everything takes milliseconds, so it needs a lot
+    // of runs before the JIT has compiled it. One is plenty for the server.
+    static final int MEMORY_WARMUP_RUNS = 50;
+    static final int SQL_WARMUP_RUNS = 1;
+
+    // Airports timed one at a time on the server
+    static final int SQL_AIRPORTS = 5;
+
+    // Query 2 as it was before the itinerary work, for comparison
+    static final String LEGACY_SQL = """
+            WITH arrivingPassengers AS
+            (
+                SELECT Passenger.passNum, Flights.flightNum, Flights.schedArr FROM Passenger
+                JOIN Book ON Passenger.passNum = Book.passNum
+                JOIN Flights ON Book.flightNum = Flights.flightNum
+                JOIN Airports ON Flights.destination = Airports.ICAO
+                WHERE Airports.icao = ?
+            )
+
+            SELECT COUNT(*) as noOfPassengersOnLayover FROM arrivingPassengers
+            WHERE EXISTS
+            (
+                SELECT * FROM Flights
+                JOIN Book ON Flights.flightNum = Book.flightNum
+                JOIN Passenger ON Book.passNum = Passenger.passNum
+                WHERE Flights.schedDep > arrivingPassengers.schedArr
+                AND Passenger.passNum = arrivingPassengers.passNum
+            )
+            """;
+
+    private final MemoryDatabase memory;
+    private final QueryCatalog catalog;
+    private final ConnectionPool pool;
+
+    // What the pool is connected to, for translating the queries
+    Backend backend = SqlServerBackend.DIALECT;
+
+    // pool can be null, then only the in-memory timings are run
+    LayoverBenchmark(MemoryDatabase memory, QueryCatalog catalog, ConnectionPool pool) {
+        this.memory = memory;
+        this.catalog = catalog;
+        this.pool = pool;
+    }
+
+    ArrayList<String> run() throws SQLException {
+
+        ArrayList<String> report = new ArrayList<String>();
+        MemoryTable airports = memory.table("Airports");
+        int icao = airports.column("icao");
+
+        // In memory: the old nested join for every airport
+        long[] legacyCounts = new long[airports.rows.size()];
+        long legacyNanos = median(() -> {
+            for (int i = 0; i < airports.rows.size(); i++) {
+                legacyCounts[i] = legacyLayovers((String) airports.rows.get(i)[icao]);
+            }
+        });
+
+        // The index: building it, every airport one at a time, and all in one pass
+        long buildNanos = median(() -> new ItineraryIndex(memory));
+        ItineraryIndex index = new ItineraryIndex(memory);
+        long[] indexCounts = new long[airports.rows.size()];
+        long perAirportNanos = median(() -> {
+            for (int i = 0; i < airports.rows.size(); i++) {
+                indexCounts[i] = index.layovers((String) airports.rows.get(i)[icao]);
+            }
+        });
+        long onePassNanos = median(() -> index.layoversByAirport());
+
+        long legacyTotal = Arrays.stream(legacyCounts).sum();
+        long indexTotal = Arrays.stream(indexCounts).sum();
+
+        report.add(String.format("\tIn memory, %d airports, %,d bookings (%,d passengers)", airports.rows.size(),
+                index.legs, index.passengers()));
+        report.add(String.format("\t  %-44s %10.3f ms  (%,d layovers)", "Old nested join, every airport",
+                legacyNanos / 1e6, legacyTotal));
+        report.add(String.format("\t  %-44s %10.3f ms", "Build itinerary index", buildNanos / 1e6));
+        report.add(String.format("\t  %-44s %10.3f ms  (%,d layovers)", "Index, every airport one at a time",
+                perAirportNanos / 1e6, indexTotal));
+        report.add(String.format("\t  %-44s %10.3f ms", "Index, all airports in one pass", onePassNanos / 1e6));
+
+        if (pool == null) {
+            return report;
+        }
+
+        // On the server: the busiest few airports one at a time, then everything
+        ArrayList<String> busiest = new ArrayList<String>();
+        Integer[] order = new Integer[airports.rows.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(indexCounts[b], indexCounts[a]));
+        for (int i = 0; i < Math.min(SQL_AIRPORTS, order.length); i++) {
+            busiest.add((String) airports.rows.get(order[i])[icao]);
+        }
+
+        report.add("");
+        report.add("\tOn " + backend.description() + ", " + busiest.size() + " busiest airports " + busiest);
+
+        QueryDefinition oneAirport = catalog.get("2.1");
+        QueryDefinition allAirports = catalog.get("2.2");
+
+        try (PooledConnection pooled = pool.borrow()) {
+            long[] legacySql = new long[1];
+            long[] catalogSql = new long[1];
+            long legacySqlNanos = medianSql(() -> {
+                legacySql[0] = 0;
+                for (String airport : busiest) {
+                    legacySql[0] += count(pooled.prepare("legacy-2", backend.translate(LEGACY_SQL)), airport);
+                }
+            });
+            long catalogSqlNanos = medianSql(() -> {
+                catalogSql[0] = 0;
+                for (String airport : busiest) {
+                    PreparedStatement statement = pooled.prepare(oneAirport.id, backend.querySql(oneAirport));
+                    oneAirport.bind(statement, new Object[] { airport });
+                    catalogSql[0] += count(statement, null);
+                }
+            });
+            long allAirportsNanos = medianSql(() -> {
+                PreparedStatement statement = pooled.prepare(allAirports.id, backend.querySql(allAirports));
+                allAirports.bind(statement, new Object[0]);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                    }
+                }
+            });
+
+            report.add(String.format("\t  %-44s %10.3f ms  (%,d layovers)", "Old SQL, one query per airport",
+                    legacySqlNanos / 1e6, legacySql[0]));
+            report.add(String.format("\t  %-44s %10.3f ms  (%,d layovers)", "Query 2.1, one query per airport",
+                    catalogSqlNanos / 1e6, catalogSql[0]));
+            report.add(String.format("\t  %-44s %10.3f ms", "Query 2.2, every airport", allAirportsNanos / 1e6));
+        }
+
+        return report;
+    }
+
+    // The old query in memory: every booking on any flight with the arriving flight
+    // number, and for each of them, every flight with the number of any of the
+    // passenger's bookings
+    private long legacyLayovers(String icao) {
+
+        MemoryTable flights = memory.table("Flights");
+        MemoryTable book = memory.table("Book");
+        int flightNum = flights.column("flightNum");
+        int schedDep = flights.column("schedDep");
+        int schedArr = flights.column("schedArr");
+        int bookPassNum = book.column("passNum");
+        int bookFlightNum = book.column("flightNum");
+
+        long count = 0;
+        for (Object[] arrival : flights.index("destination").get(icao)) {
+            for (Object[] booking : book.index("flightNum").get(arrival[flightNum])) {
+                boolean later = false;
+                for (Object[] other : book.index("passNum").get(booking[bookPassNum])) {
+                    for (Object[] flight : flights.index("flightNum").get(other[bookFlightNum])) {
+                        if (((LocalDateTime) flight[schedDep]).isAfter((LocalDateTime) arrival[schedArr])) {
+                            later = true;
+                        }
+                    }
+                }
+                if (later) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Runs statement (binding airport first, unless it's null) and returns the count
+    private static long count(PreparedStatement statement, String airport) throws SQLException {
+        if (airport != null) {
+            statement.setString(1, airport);
+        }
+        try (ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private interface SqlTask {
+        void run() throws SQLException;
+    }
+
+    private static long median(Runnable task) {
+        try {
+            return median(task::run, MEMORY_WARMUP_RUNS);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e); // Can't happen, nothing in memory throws it
+        }
+    }
+
+    private static long medianSql(SqlTask task) throws SQLException {
+        return median(task, SQL_WARMUP_RUNS);
+    }
+
+    // Median time of RUNS runs of task, after warmups untimed runs
+    private static long median(SqlTask task, int warmups) throws SQLException {
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+        long[] times = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[RUNS / 2];
+    }
+
+}
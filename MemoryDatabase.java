@@ -0,0 +1,469 @@
+
+// Util imports
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/*
+ * The whole database, loaded from populate.sql into memory. Used instead of the
+ * SQL server when the program is started with --memory (see MemoryQueries for
+ * the menu queries themselves).
+ *
+ * Every table is a list of rows, one Object per column in CREATE TABLE order:
+ * Long for integer types, BigDecimal for NUMERIC/DECIMAL, LocalDateTime for
+ * datetime/datetime2, LocalDate for date and String for everything else. null
+ * is NULL.
+ *
+ * Each table gets a hash index on its primary key and on each of its foreign
+ * keys when it's loaded. Other indexes are built the first time a query asks
+ * for them.
+ */
+class MemoryDatabase {
+
+    final ScriptSchema schema = new ScriptSchema();
+
+    // Keyed by lower case name
+    private final LinkedHashMap<String, MemoryTable> tables = new LinkedHashMap<String, MemoryTable>();
+
+    // The script's statements that aren't CREATE TABLE, DROP TABLE or INSERT (the
+    // USE), kept for snapshots
+    final ArrayList<String> otherDdl = new ArrayList<String>();
+
+    // Load statistics, for the summary
+    long loadNanos = 0;
+    int statementsRead = 0;
+    String source = null; // Set when it came from somewhere other than a script
+    long rowsLoaded = 0;
+
+    // Reads script (CREATE TABLEs and INSERTs, everything else is ignored) into a
+    // new in-memory database
+    static MemoryDatabase load(Path script) throws IOException {
+
+        MemoryDatabase database = new MemoryDatabase();
+        long start = System.nanoTime();
+
+        try (SqlScriptReader reader = new SqlScriptReader(script)) {
+            String statement;
+            while ((statement = reader.nextStatement()) != null) {
+                database.addStatement(SchemaMigration.rewrite(statement));
+            }
+            database.statementsRead = reader.statementsRead;
+        }
+
+        for (MemoryTable table : database.tables.values()) {
+            table.indexKeys();
+        }
+
+        database.loadNanos = System.nanoTime() - start;
+        return database;
+    }
+
+    // Reads a snapshot written by DatabaseSnapshot.write into a new in-memory
+    // database. No SQL is parsed apart from the CREATE TABLEs.
+    static MemoryDatabase loadSnapshot(Path directory) throws IOException {
+
+        MemoryDatabase database = new MemoryDatabase();
+        long start = System.nanoTime();
+
+        SnapshotManifest manifest = DatabaseSnapshot.readManifest(directory);
+        database.otherDdl.addAll(manifest.otherDdl);
+
+        for (Path file : manifest.tableFiles) {
+            try (SnapshotTableReader reader = new SnapshotTableReader(file)) {
+                if (!database.schema.addStatement(reader.createStatement)) {
+                    throw new IOException(file + " doesn't start with a CREATE TABLE");
+                }
+                Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(reader.createStatement);
+                create.matches();
+                MemoryTable table = new MemoryTable(database.schema.get(create.group(1)));
+                if (table.definition.columns.size() != reader.kinds.length) {
+                    throw new IOException(file + " has a different number of columns to its CREATE TABLE");
+                }
+                database.tables.put(table.definition.name.toLowerCase(), table);
+
+                table.rows.ensureCapacity((int) reader.rows);
+                ArrayList<Object[]> group;
+                while ((group = reader.nextGroup()) != null) {
+                    table.rows.addAll(group);
+                    database.rowsLoaded += group.size();
+                }
+            }
+        }
+
+        for (MemoryTable table : database.tables.values()) {
+            table.indexKeys();
+        }
+
+        database.loadNanos = System.nanoTime() - start;
+        database.source = "snapshot " + directory;
+        return database;
+    }
+
+    private void addStatement(String statement) throws IOException {
+
+        if (schema.addStatement(statement)) {
+            Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(statement);
+            create.matches();
+            TableDefinition definition = schema.get(create.group(1));
+            tables.put(definition.name.toLowerCase(), new MemoryTable(definition));
+            return;
+        }
+
+        Matcher insert = DatabaseRebuilder.INSERT_PATTERN.matcher(statement);
+        if (!insert.matches()) {
+            if (!DatabaseRebuilder.DROP_TABLE_PATTERN.matcher(statement).matches()) {
+                otherDdl.add(statement); // use, etc.
+            }
+            return;
+        }
+
+        MemoryTable table = tables.get(insert.group(1).toLowerCase());
+        if (table == null) {
+            throw new IOException("INSERT into " + insert.group(1) + " before it was created");
+        }
+
+        // Where each of the INSERT's columns goes in the row
+        String columnList = insert.group(2);
+        String[] names = columnList.substring(1, columnList.length() - 1).split(",");
+        int[] positions = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            positions[i] = table.definition.columnIndex(names[i].trim());
+            if (positions[i] < 0) {
+                throw new IOException("Unknown column " + names[i].trim() + " in INSERT into " + table.definition.name);
+            }
+        }
+
+        for (List<String> tuple : parseTuples(insert.group(3))) {
+            if (tuple.size() != positions.length) {
+                throw new IOException("Wrong number of values in INSERT into " + table.definition.name);
+            }
+            Object[] row = new Object[table.definition.columns.size()];
+            for (int i = 0; i < positions.length; i++) {
+                row[positions[i]] = convert(tuple.get(i), table.definition.columns.get(positions[i]));
+            }
+            table.rows.add(row);
+            rowsLoaded++;
+        }
+    }
+
+    // Splits "('a', 1, NULL), ('b', 2, 'it''s')" into its rows of values. String
+    // literals come back with the quotes removed (and '' turned back into '), NULL
+    // comes back as null, anything else (numbers) as written.
+    static ArrayList<List<String>> parseTuples(String values) throws IOException {
+
+        ArrayList<List<String>> tuples = new ArrayList<List<String>>();
+        ArrayList<String> tuple = null;
+        int i = 0;
+        int length = values.length();
+
+        while (i < length) {
+            char c = values.charAt(i);
+
+            if (Character.isWhitespace(c) || c == ',') {
+                i++;
+            } else if (c == '(') {
+                tuple = new ArrayList<String>();
+                i++;
+            } else if (c == ')') {
+                if (tuple == null) {
+                    throw new IOException("Unbalanced brackets in VALUES");
+                }
+                tuples.add(tuple);
+                tuple = null;
+                i++;
+            } else if (tuple == null) {
+                throw new IOException("Unexpected '" + c + "' in VALUES");
+            } else if (c == '\'' || ((c == 'N' || c == 'n') && i + 1 < length && values.charAt(i + 1) == '\'')) {
+                // String literal, maybe N'...'
+                i += c == '\'' ? 1 : 2;
+                StringBuilder literal = new StringBuilder();
+                while (true) {
+                    if (i >= length) {
+                        throw new IOException("Unterminated string in VALUES");
+                    }
+                    char s = values.charAt(i++);
+                    if (s == '\'') {
+                        if (i < length && values.charAt(i) == '\'') {
+                            literal.append('\'');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        literal.append(s);
+                    }
+                }
+                tuple.add(literal.toString());
+            } else {
+                // Number or NULL, up to the next comma or bracket
+                int start = i;
+                while (i < length && values.charAt(i) != ',' && values.charAt(i) != ')') {
+                    i++;
+                }
+                String token = values.substring(start, i).trim();
+                tuple.add(token.equalsIgnoreCase("NULL") ? null : token);
+            }
+        }
+
+        return tuples;
+    }
+
+    // "2024-06-30 00:01:18" with up to 7 fractional digits, or a T instead of the space
+    static final DateTimeFormatter DATE_TIME_FORMAT = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd[ ]['T']HH:mm[:ss]")
+            .optionalStart().appendFraction(ChronoField.NANO_OF_SECOND, 0, 9, true).optionalEnd()
+            .toFormatter();
+
+    // Parses "yyyy-MM-dd HH:mm:ss" (plus any fraction) by hand, since the script is
+    // nearly all in that form and the formatter is several times slower. Anything
+    // else goes to DATE_TIME_FORMAT.
+    static LocalDateTime parseDateTime(String value) {
+
+        if (value.length() < 19 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != ' '
+                || value.charAt(13) != ':' || value.charAt(16) != ':'
+                || (value.length() > 19 && value.charAt(19) != '.')) {
+            return LocalDateTime.parse(value, DATE_TIME_FORMAT);
+        }
+
+        int nanos = 0;
+        if (value.length() > 20) {
+            String fraction = value.substring(20);
+            if (fraction.length() > 9) {
+                return LocalDateTime.parse(value, DATE_TIME_FORMAT);
+            }
+            nanos = Integer.parseInt(fraction);
+            for (int i = fraction.length(); i < 9; i++) {
+                nanos *= 10;
+            }
+        }
+
+        return LocalDateTime.of(Integer.parseInt(value, 0, 4, 10), Integer.parseInt(value, 5, 7, 10),
+                Integer.parseInt(value, 8, 10, 10), Integer.parseInt(value, 11, 13, 10),
+                Integer.parseInt(value, 14, 16, 10), Integer.parseInt(value, 17, 19, 10), nanos);
+    }
+
+    // Turns a value from an INSERT into the type stored for column
+    static Object convert(String value, ColumnDefinition column) throws IOException {
+
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            switch (column.baseType()) {
+                case "TINYINT":
+                case "SMALLINT":
+                case "INT":
+                case "INTEGER":
+                case "BIGINT":
+                    return Long.parseLong(value.trim());
+                case "NUMERIC":
+                case "DECIMAL":
+                    // Rounded to the column's scale, like the server does
+                    return new BigDecimal(value.trim()).setScale(column.scale(0), RoundingMode.HALF_UP);
+                case "DATETIME":
+                case "DATETIME2":
+                    return parseDateTime(value.trim());
+                case "DATE":
+                    return LocalDate.parse(value.trim());
+                default:
+                    return value;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Bad value '" + value + "' for column " + column.name + " " + column.type);
+        }
+    }
+
+    // The named table. Throws IllegalArgumentException if there isn't one.
+    MemoryTable table(String name) {
+        MemoryTable table = tables.get(name.toLowerCase());
+        if (table == null) {
+            throw new IllegalArgumentException("No table named " + name);
+        }
+        return table;
+    }
+
+    Collection<MemoryTable> tables() {
+        return tables.values();
+    }
+
+    // Lines to show after loading (or reloading) the database
+    ArrayList<String> summary() {
+
+        ArrayList<String> lines = new ArrayList<String>();
+        if (source == null) {
+            lines.add(String.format("\tLoaded %,d rows into %d tables in memory (%,d statements) in %.2f seconds",
+                    rowsLoaded, tables.size(), statementsRead, loadNanos / 1e9));
+        } else {
+            lines.add(String.format("\tLoaded %,d rows into %d tables in memory from %s in %.2f seconds",
+                    rowsLoaded, tables.size(), source, loadNanos / 1e9));
+        }
+
+        long indexes = 0;
+        for (MemoryTable table : tables.values()) {
+            indexes += table.indexCount();
+        }
+        lines.add("\t" + indexes + " hash indexes on primary and foreign keys");
+        return lines;
+    }
+
+}
+
+// One table of a MemoryDatabase
+class MemoryTable {
+
+    final TableDefinition definition;
+    final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+
+    // Keyed by the lower case column names joined with commas ("flightnum,scheddep")
+    private final HashMap<String, MemoryIndex> indexes = new HashMap<String, MemoryIndex>();
+
+    MemoryTable(TableDefinition definition) {
+        this.definition = definition;
+    }
+
+    // Position of the named column in each row. Throws IllegalArgumentException if
+    // there's no such column.
+    int column(String name) {
+        int index = definition.columnIndex(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("No column " + name + " in " + definition.name);
+        }
+        return index;
+    }
+
+    // Builds the indexes on the primary key and each foreign key. Called once the
+    // table is loaded.
+    void indexKeys() {
+        if (!definition.primaryKey.isEmpty()) {
+            index(definition.primaryKey.toArray(new String[0]));
+        }
+        for (ForeignKey foreignKey : definition.foreignKeys) {
+            index(foreignKey.columns.toArray(new String[0]));
+        }
+    }
+
+    // The hash index on these columns, building it first if needed
+    synchronized MemoryIndex index(String... columns) {
+
+        String name = String.join(",", columns).toLowerCase();
+        MemoryIndex index = indexes.get(name);
+        if (index == null) {
+            int[] positions = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                positions[i] = column(columns[i]);
+            }
+            index = new MemoryIndex(positions, rows);
+            indexes.put(name, index);
+        }
+        return index;
+    }
+
+    synchronized int indexCount() {
+        return indexes.size();
+    }
+
+    // The whole table, the same as SELECT * would give
+    QueryResults toResults() {
+        ArrayList<String> names = new ArrayList<String>();
+        ResultColumn[] columns = new ResultColumn[definition.columns.size()];
+        for (int i = 0; i < columns.length; i++) {
+            ColumnDefinition column = definition.columns.get(i);
+            names.add(column.name);
+            columns[i] = resultColumn(column);
+        }
+        return new QueryResults(names, columns, rows);
+    }
+
+    // How the SQL version of a column comes back in a QueryResults
+    static ResultColumn resultColumn(ColumnDefinition column) {
+        switch (column.baseType()) {
+            case "TINYINT":
+            case "SMALLINT":
+            case "INT":
+            case "INTEGER":
+            case "BIGINT":
+                return new LongColumn();
+            case "DATETIME":
+                return new DateTimeColumn(3);
+            case "DATETIME2":
+                return new DateTimeColumn(column.scale(7));
+            case "DATE":
+                return new DateColumn();
+            default:
+                return new DictionaryColumn();
+        }
+    }
+
+}
+
+// A hash index over some columns of a table. String keys are matched ignoring
+// case and trailing spaces, the same as the server's default collation.
+class MemoryIndex {
+
+    private final int[] columns;
+    private final HashMap<Object, ArrayList<Object[]>> entries = new HashMap<Object, ArrayList<Object[]>>();
+
+    MemoryIndex(int[] columns, List<Object[]> rows) {
+        this.columns = columns;
+        for (Object[] row : rows) {
+            Object[] key = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                key[i] = row[columns[i]];
+            }
+            entries.computeIfAbsent(key(key), k -> new ArrayList<Object[]>()).add(row);
+        }
+    }
+
+    // Rows whose indexed columns equal key (one value per column). Empty if none.
+    List<Object[]> get(Object... key) {
+        if (key.length != columns.length) {
+            throw new IllegalArgumentException("Index is on " + columns.length + " columns, got " + key.length);
+        }
+        ArrayList<Object[]> rows = entries.get(key(key));
+        return rows == null ? Collections.emptyList() : rows;
+    }
+
+    // The first row matching key, or null. For unique (primary key) indexes.
+    Object[] first(Object... key) {
+        List<Object[]> rows = get(key);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    // Normalises a lookup value: strings compare case-insensitively without
+    // trailing spaces, and any integer type matches a Long.
+    static Object normalise(Object value) {
+        if (value instanceof String) {
+            return MemoryQueries.trimEnd((String) value).toLowerCase();
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        return value;
+    }
+
+    private static Object key(Object[] values) {
+        if (values.length == 1) {
+            return normalise(values[0]);
+        }
+        Object[] key = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            key[i] = normalise(values[i]);
+        }
+        return Arrays.asList(key);
+    }
+
+}
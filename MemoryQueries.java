@@ -0,0 +1,632 @@
+
+// Util imports
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * The catalog queries answered straight from a MemoryDatabase instead of by the
+ * SQL server. Each one does what its SQL in QueryCatalog does (same joins, same
+ * quirks, like joining Flights on flightNum alone) using the hash indexes, and
+ * comes back as a QueryResults with the same columns, so the rest of the
+ * program can't tell the difference.
+ *
+ * Text is compared the way the server's default collation does it: ignoring
+ * case and trailing spaces. Where the SQL sorts, rows are sorted the same way,
+ * but rows that tie can come out in a different order than the server's.
+ */
+class MemoryQueries {
+
+    private final MemoryDatabase database;
+
+    // Passengers' bookings in departure order, for the layover queries
+    private ItineraryIndex itineraries = null;
+
+    MemoryQueries(MemoryDatabase database) {
+        this.database = database;
+    }
+
+    // Runs query with values (as returned by QueryParameter.parse). Throws
+    // IllegalArgumentException for a query that has no in-memory version.
+    QueryResults run(QueryDefinition query, Object[] values) {
+        switch (query.id) {
+            case "1":
+                return pilotJourney((Integer) values[0]);
+            case "2.1":
+                return passengersOnLayover((String) values[0]);
+            case "2.2":
+                return passengersOnLayoverByAirport();
+            case "3":
+                return mostProductiveEmployees();
+            case "4":
+                return mostPopularAirlines();
+            case "5":
+                return passengersFlyingHome();
+            case "6":
+                return planeModelsServiced();
+            case "7":
+                return flightsFromAirport((String) values[0]);
+            case "8":
+                return passengerLuggage((String) values[0]);
+            case "9":
+                return airlineFlights((String) values[0]);
+            case "10":
+                return commonDestinations((String) values[0]);
+            case "11":
+                return averageFleetAge();
+            case "12":
+                return averageBags((String) values[0]);
+            case "13":
+                return employeeJobs((Integer) values[0]);
+            case "14.1":
+                return employeesWithJob("Fly", "airline");
+            case "14.2":
+                return employeesWithJob("Service", "icao");
+            case "14.3":
+                return employeesWithJob("Guide", "icao");
+            case "14.4":
+                return employeesWithJob("Attend", "airline");
+            case "14.5":
+                return allEmployees();
+            case "15":
+                return averageFlightLength((String) values[0], (String) values[1]);
+            default:
+                throw new IllegalArgumentException("Query " + query.id + " can't be run in memory");
+        }
+    }
+
+    // SELECT * FROM table
+    QueryResults rawTable(String table) {
+        return database.table(table).toResults();
+    }
+
+    /*
+     * The queries. Numbered like the menu.
+     */
+
+    // 1. Flights a pilot flew, by departure
+    private QueryResults pilotJourney(int sin) {
+
+        MemoryTable fly = database.table("Fly");
+        MemoryTable flights = database.table("Flights");
+        int flyFlightNum = fly.column("flightNum");
+        int flightNum = flights.column("flightNum");
+        int origin = flights.column("origin");
+        int schedDep = flights.column("schedDep");
+        int destination = flights.column("destination");
+        int schedArr = flights.column("schedArr");
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Object[] flown : fly.index("SIN").get(sin)) {
+            for (Object[] flight : flights.index("flightNum").get(flown[flyFlightNum])) {
+                rows.add(new Object[] { flight[flightNum], flight[origin], flight[schedDep], flight[destination],
+                        flight[schedArr] });
+            }
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> (LocalDateTime) row[2]));
+
+        return results(rows, "flightNum", text(), "origin", text(), "schedDep", dateTime(), "destination", text(),
+                "schedArr", dateTime());
+    }
+
+    // 2.1. Booked arrivals at an airport by passengers who have a later departure
+    private QueryResults passengersOnLayover(String icao) {
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[] { itineraries().layovers(icao) });
+        return results(rows, "noOfPassengersOnLayover", integer());
+    }
+
+    // 2.2. The same for every airport
+    private QueryResults passengersOnLayoverByAirport() {
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Map.Entry<String, Long> airport : itineraries().layoversByAirport().entrySet()) {
+            rows.add(new Object[] { airport.getKey(), airport.getValue() });
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[1]).reversed()
+                .thenComparing(row -> row[0], MemoryQueries::compare));
+        return results(rows, "airport", text(), "noOfPassengersOnLayover", integer());
+    }
+
+    // Built the first time a layover query runs
+    synchronized ItineraryIndex itineraries() {
+        if (itineraries == null) {
+            itineraries = new ItineraryIndex(database);
+        }
+        return itineraries;
+    }
+
+    // 3. Employees by number of jobs of any kind
+    private QueryResults mostProductiveEmployees() {
+
+        MemoryTable employee = database.table("Employee");
+        int sin = employee.column("SIN");
+        int first = employee.column("first");
+        int last = employee.column("last");
+
+        HashMap<Object, Long> jobs = new HashMap<Object, Long>();
+        for (String table : new String[] { "Service", "Guide", "Fly", "Attend" }) {
+            MemoryTable jobTable = database.table(table);
+            int jobSin = jobTable.column("SIN");
+            for (Object[] job : jobTable.rows) {
+                jobs.merge(job[jobSin], 1L, Long::sum);
+            }
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Object[] row : employee.rows) {
+            Long count = jobs.get(row[sin]);
+            if (count != null) {
+                rows.add(new Object[] { row[sin], row[first], row[last], count });
+            }
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[3]).reversed()
+                .thenComparing(row -> row[2], MemoryQueries::compare));
+
+        return results(rows, "SIN", integer(), "first", text(), "last", text(), "jobsCompleted", integer());
+    }
+
+    // 4. Top 10 airlines by bookings
+    private QueryResults mostPopularAirlines() {
+
+        MemoryTable book = database.table("Book");
+        int airline = book.column("airline");
+
+        Groups groups = new Groups();
+        for (Object[] row : book.rows) {
+            groups.add(row[airline]).count++;
+        }
+
+        ArrayList<Object[]> rows = groups.rows();
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[1]).reversed());
+        return results(new ArrayList<Object[]>(rows.subList(0, Math.min(10, rows.size()))),
+                "airline", text(), "bookings", integer());
+    }
+
+    // 5. Bookings to an airport in the passenger's country, by country
+    private QueryResults passengersFlyingHome() {
+
+        MemoryTable passenger = database.table("Passenger");
+        MemoryTable book = database.table("Book");
+        MemoryTable flights = database.table("Flights");
+        MemoryTable airports = database.table("Airports");
+        int citizen = passenger.column("citizen");
+        int bookPassNum = book.column("passNum");
+        int bookFlightNum = book.column("flightNum");
+        int destination = flights.column("destination");
+        int country = airports.column("country");
+
+        Groups groups = new Groups();
+        for (Object[] booking : book.rows) {
+            Object[] traveller = passenger.index("passNum").first(booking[bookPassNum]);
+            if (traveller == null) {
+                continue;
+            }
+            String home = (String) traveller[citizen];
+            for (Object[] flight : flights.index("flightNum").get(booking[bookFlightNum])) {
+                Object[] airport = airports.index("icao").first(flight[destination]);
+                if (airport != null && sqlEquals(airport[country], home)) {
+                    groups.add(home).count++;
+                }
+            }
+        }
+
+        // The count comes first in this one
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Group group : groups.groups.values()) {
+            rows.add(new Object[] { group.count, group.values[0] });
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[0]).reversed());
+        return results(rows, "numPassengersFlyingHome", integer(), "country", text());
+    }
+
+    // 6. Plane models by number of service records
+    private QueryResults planeModelsServiced() {
+
+        MemoryTable service = database.table("Service");
+        MemoryTable planes = database.table("Planes");
+        int tailNum = service.column("tailNum");
+        int model = planes.column("model");
+        int manufacturer = planes.column("manufacturer");
+
+        Groups groups = new Groups();
+        for (Object[] record : service.rows) {
+            Object[] plane = planes.index("tailNum").first(record[tailNum]);
+            if (plane != null && plane[model] != null) {
+                groups.add(plane[manufacturer], plane[model]).count++;
+            }
+        }
+
+        ArrayList<Object[]> rows = groups.rows();
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[2]).reversed());
+        return results(rows, "manufacturer", text(), "model", text(), "numberOfServices", integer());
+    }
+
+    // 7. Flights leaving an airport, with the operating airline
+    private QueryResults flightsFromAirport(String icao) {
+
+        MemoryTable flights = database.table("Flights");
+        MemoryTable planes = database.table("Planes");
+        MemoryTable airlines = database.table("Airlines");
+        int flightNum = flights.column("flightNum");
+        int origin = flights.column("origin");
+        int destination = flights.column("destination");
+        int tailNum = flights.column("tailNum");
+        int planeAirline = planes.column("airline");
+        int airlineName = airlines.column("airlineName");
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        if (database.table("Airports").index("icao").first(icao) != null) {
+            for (Object[] flight : flights.index("origin").get(icao)) {
+                Object[] plane = planes.index("tailNum").first(flight[tailNum]);
+                if (plane == null || plane[planeAirline] == null) {
+                    continue;
+                }
+                Object[] airline = airlines.index("airlineName").first(plane[planeAirline]);
+                if (airline != null) {
+                    rows.add(new Object[] { flight[flightNum], flight[origin], flight[destination],
+                            airline[airlineName] });
+                }
+            }
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> row[3], MemoryQueries::compare)
+                .thenComparing(row -> row[0], MemoryQueries::compare));
+
+        return results(rows, "flightNum", text(), "origin", text(), "destination", text(), "airlineName", text());
+    }
+
+    // 8. Luggage of the passenger with a phone number
+    private QueryResults passengerLuggage(String phoneNum) {
+
+        MemoryTable passenger = database.table("Passenger");
+        MemoryTable luggage = database.table("Luggage");
+        int passNum = passenger.column("passNum");
+        int id = luggage.column("ID");
+        int type = luggage.column("type");
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Object[] traveller : passenger.index("phoneNum").get(phoneNum)) {
+            for (Object[] bag : luggage.index("passNum").get(traveller[passNum])) {
+                rows.add(new Object[] { bag[id], bag[type] });
+            }
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[0]));
+
+        return results(rows, "ID", integer(), "type", text());
+    }
+
+    // 9. Every flight flown by an airline's planes
+    private QueryResults airlineFlights(String airlineName) {
+
+        MemoryTable planes = database.table("Planes");
+        MemoryTable flights = database.table("Flights");
+        int tailNum = planes.column("tailNum");
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        if (database.table("Airlines").index("airlineName").first(airlineName) != null) {
+            for (Object[] plane : planes.index("airline").get(airlineName)) {
+                rows.addAll(flights.index("tailNum").get(plane[tailNum]));
+            }
+        }
+
+        // Flights.*, so the same columns as the table
+        ArrayList<String> names = new ArrayList<String>();
+        ResultColumn[] columns = new ResultColumn[flights.definition.columns.size()];
+        for (int i = 0; i < columns.length; i++) {
+            names.add(flights.definition.columns.get(i).name);
+            columns[i] = MemoryTable.resultColumn(flights.definition.columns.get(i));
+        }
+        return new QueryResults(names, columns, rows);
+    }
+
+    // 10. Destinations from an airport by number of flights
+    private QueryResults commonDestinations(String icao) {
+
+        MemoryTable flights = database.table("Flights");
+        MemoryTable airports = database.table("Airports");
+        int destination = flights.column("destination");
+        int airportName = airports.column("airportName");
+
+        Groups groups = new Groups();
+        for (Object[] flight : flights.index("origin").get(icao)) {
+            Object[] airport = airports.index("icao").first(flight[destination]);
+            if (airport != null) {
+                groups.add(flight[destination], airport[airportName]).count++;
+            }
+        }
+
+        ArrayList<Object[]> rows = groups.rows();
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[2]).reversed());
+        return results(rows, "airportCode", text(), "airportName", text(), "numberOfFlights", integer());
+    }
+
+    // 11. Average plane age per airline
+    private QueryResults averageFleetAge() {
+
+        MemoryTable planes = database.table("Planes");
+        MemoryTable airlines = database.table("Airlines");
+        int planeAirline = planes.column("airline");
+        int year = planes.column("year");
+        int airlineName = airlines.column("airlineName");
+
+        // Sum of (2025 - year) and how many planes had a year, per airline
+        Groups groups = new Groups();
+        for (Object[] plane : planes.rows) {
+            if (plane[planeAirline] == null) {
+                continue;
+            }
+            Object[] airline = airlines.index("airlineName").first(plane[planeAirline]);
+            if (airline == null) {
+                continue;
+            }
+            Group group = groups.add(airline[airlineName]);
+            if (plane[year] != null) {
+                group.sum += 2025 - (Long) plane[year];
+                group.count++;
+            }
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        ArrayList<Long> integerAverages = new ArrayList<Long>();
+        for (Group group : groups.groups.values()) {
+            // HAVING AVG(...) IS NOT NULL
+            if (group.count == 0) {
+                continue;
+            }
+            // AVG(2025 - 1.0 * year) is a decimal with 6 places, FORMAT 'N2' rounds it to 2
+            BigDecimal average = BigDecimal.valueOf(group.sum).divide(BigDecimal.valueOf(group.count), 6,
+                    RoundingMode.HALF_UP);
+            rows.add(new Object[] { group.values[0], String.format(Locale.US, "%,.2f", average),
+                    group.sum / group.count });
+        }
+        // Sorted by the integer AVG(2025 - year), which truncates
+        rows.sort(Comparator.comparing((Object[] row) -> (Long) row[2]).reversed());
+
+        return results(rows, "airlineName", text(), "averageAge", text());
+    }
+
+    // 12. Average bags per passenger booked on a flight
+    private QueryResults averageBags(String flightNum) {
+
+        MemoryTable book = database.table("Book");
+        MemoryTable passenger = database.table("Passenger");
+        MemoryTable luggage = database.table("Luggage");
+        int passNum = book.column("passNum");
+
+        // Every booking joins with every one of the passenger's bags
+        Groups groups = new Groups();
+        for (Object[] booking : book.index("flightNum").get(flightNum)) {
+            if (passenger.index("passNum").first(booking[passNum]) == null) {
+                continue;
+            }
+            int bags = luggage.index("passNum").get(booking[passNum]).size();
+            if (bags > 0) {
+                groups.add(booking[passNum]).count += bags;
+            }
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        if (!groups.groups.isEmpty()) {
+            long total = 0;
+            for (Group group : groups.groups.values()) {
+                total += group.count;
+            }
+            // Integer average, like AVG on an int column
+            rows.add(new Object[] { total / groups.groups.size() });
+        }
+        return results(rows, "avgBagsPerPassenger", integer());
+    }
+
+    // 13. Every job an employee did
+    private QueryResults employeeJobs(int sin) {
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        addJobs(rows, "Service", "tailNum", sin);
+        addJobs(rows, "Guide", "tailNum", sin);
+        addJobs(rows, "Fly", "flightNum", sin);
+        addJobs(rows, "Attend", "flightNum", sin);
+        return results(rows, "jobType", text(), "tailOrFlightNumber", text());
+    }
+
+    private void addJobs(ArrayList<Object[]> rows, String table, String numberColumn, int sin) {
+        MemoryTable jobs = database.table(table);
+        int number = jobs.column(numberColumn);
+        for (Object[] job : jobs.index("SIN").get(sin)) {
+            rows.add(new Object[] { table, job[number] });
+        }
+    }
+
+    // 14.1 to 14.4. Employees who have a row in jobTable, with their airline or airport
+    private QueryResults employeesWithJob(String jobTable, String extraColumn) {
+
+        MemoryTable employee = database.table("Employee");
+        int sin = employee.column("SIN");
+        int first = employee.column("first");
+        int last = employee.column("last");
+        int extra = employee.column(extraColumn);
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (Object[] row : employeesIn(jobTable)) {
+            rows.add(new Object[] { row[sin], row[first], row[last], row[extra] });
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> row[2], MemoryQueries::compare)
+                .thenComparing(row -> row[1], MemoryQueries::compare)
+                .thenComparing(row -> (Long) row[0]));
+
+        String extraName = extraColumn.equals("icao") ? "airport" : extraColumn;
+        return results(rows, "SIN", integer(), "first", text(), "last", text(), extraName, text());
+    }
+
+    // 14.5. Every employee with a job, once per type of job
+    private QueryResults allEmployees() {
+
+        MemoryTable employee = database.table("Employee");
+        int sin = employee.column("SIN");
+        int first = employee.column("first");
+        int last = employee.column("last");
+
+        String[][] types = { { "Pilot", "Fly" }, { "Maintenance", "Service" }, { "ATC", "Guide" },
+                { "Attendant", "Attend" } };
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (String[] type : types) {
+            for (Object[] row : employeesIn(type[1])) {
+                rows.add(new Object[] { type[0], row[last], row[first], row[sin] });
+            }
+        }
+        rows.sort(Comparator.comparing((Object[] row) -> row[1], MemoryQueries::compare)
+                .thenComparing(row -> row[2], MemoryQueries::compare)
+                .thenComparing(row -> (Long) row[3]));
+
+        return results(rows, "type", text(), "last", text(), "first", text(), "SIN", integer());
+    }
+
+    // Employees that have at least one row in jobTable (so DISTINCT), in table order
+    private ArrayList<Object[]> employeesIn(String jobTable) {
+
+        MemoryTable employee = database.table("Employee");
+        MemoryTable jobs = database.table(jobTable);
+        int sin = employee.column("SIN");
+        int jobSin = jobs.column("SIN");
+
+        HashSet<Object> sins = new HashSet<Object>();
+        for (Object[] job : jobs.rows) {
+            sins.add(job[jobSin]);
+        }
+
+        ArrayList<Object[]> employees = new ArrayList<Object[]>();
+        for (Object[] row : employee.rows) {
+            if (sins.contains(row[sin])) {
+                employees.add(row);
+            }
+        }
+        return employees;
+    }
+
+    // 15. Average scheduled minutes between two airports
+    private QueryResults averageFlightLength(String origin, String destination) {
+
+        MemoryTable flights = database.table("Flights");
+        int destinationColumn = flights.column("destination");
+        int schedDep = flights.column("schedDep");
+        int schedArr = flights.column("schedArr");
+
+        long total = 0;
+        long count = 0;
+        for (Object[] flight : flights.index("origin").get(origin)) {
+            if (sqlEquals(flight[destinationColumn], destination)) {
+                // DATEDIFF(minute, ...) counts minute boundaries crossed
+                LocalDateTime departure = ((LocalDateTime) flight[schedDep]).truncatedTo(ChronoUnit.MINUTES);
+                LocalDateTime arrival = ((LocalDateTime) flight[schedArr]).truncatedTo(ChronoUnit.MINUTES);
+                total += Duration.between(departure, arrival).toMinutes();
+                count++;
+            }
+        }
+
+        // Aggregate without GROUP BY, so always one row (NULL if there were no flights)
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[] { count == 0 ? null : total / count });
+        return results(rows, "avgFlightTime (mins)", integer());
+    }
+
+    /*
+     * Helpers.
+     */
+
+    // Builds the QueryResults from rows and (name, column) pairs. Rows can have
+    // extra values on the end (sort keys), they're ignored.
+    private static QueryResults results(List<Object[]> rows, Object... namesAndColumns) {
+        ArrayList<String> names = new ArrayList<String>();
+        ResultColumn[] columns = new ResultColumn[namesAndColumns.length / 2];
+        for (int i = 0; i < columns.length; i++) {
+            names.add((String) namesAndColumns[i * 2]);
+            columns[i] = (ResultColumn) namesAndColumns[i * 2 + 1];
+        }
+        return new QueryResults(names, columns, rows);
+    }
+
+    private static ResultColumn text() {
+        return new DictionaryColumn();
+    }
+
+    private static ResultColumn integer() {
+        return new LongColumn();
+    }
+
+    // datetime2 with the default 7 digits
+    private static ResultColumn dateTime() {
+        return new DateTimeColumn(7);
+    }
+
+    // = on text with the server's default collation
+    static boolean sqlEquals(Object a, Object b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        return trimEnd(a.toString()).equalsIgnoreCase(trimEnd(b.toString()));
+    }
+
+    // ORDER BY on text, close enough to the server's collation. NULLs sort first.
+    static int compare(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return String.CASE_INSENSITIVE_ORDER.compare(a.toString(), b.toString());
+    }
+
+    static String trimEnd(String text) {
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    // GROUP BY. Rows are grouped on their values, compared like the server would
+    // (so "abc" and "ABC" are one group), keeping the first values seen.
+    private static class Groups {
+
+        final LinkedHashMap<List<Object>, Group> groups = new LinkedHashMap<List<Object>, Group>();
+
+        Group add(Object... values) {
+            Object[] key = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                key[i] = MemoryIndex.normalise(values[i]);
+            }
+            return groups.computeIfAbsent(Arrays.asList(key), k -> new Group(values));
+        }
+
+        // One row per group: its values then its count
+        ArrayList<Object[]> rows() {
+            ArrayList<Object[]> rows = new ArrayList<Object[]>();
+            for (Group group : groups.values()) {
+                Object[] row = Arrays.copyOf(group.values, group.values.length + 1);
+                row[group.values.length] = group.count;
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    private static class Group {
+
+        final Object[] values;
+        long count = 0;
+        long sum = 0;
+
+        Group(Object[] values) {
+            this.values = values;
+        }
+    }
+
+}
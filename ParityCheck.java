@@ -0,0 +1,135 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.Collections;
+// SQL imports
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Runs every catalog query (and a SELECT * of every table) both on the SQL
+ * server and in memory, and checks they give the same rows. Started with
+ * --parity.
+ *
+ * Rows are compared as printed, ignoring order, since rows that tie in an
+ * ORDER BY can legitimately come back in any order (and query 4's TOP 10 can
+ * pick a different airline when 10th place is tied).
+ *
+ * Queries with parameters get sample values from SampleParameters, so they
+ * actually return something.
+ */
+class ParityCheck {
+
+    private final QueryCatalog catalog;
+    private final MemoryQueries memoryQueries;
+    private final ConnectionPool pool;
+
+    int passed = 0;
+    int failed = 0;
+
+    // What the pool is connected to, for translating the queries
+    Backend backend = SqlServerBackend.DIALECT;
+
+    ParityCheck(QueryCatalog catalog, MemoryDatabase memory, ConnectionPool pool) {
+        this.catalog = catalog;
+        this.memoryQueries = new MemoryQueries(memory);
+        this.pool = pool;
+    }
+
+    // Runs everything, returns one line per check (plus details of any mismatch)
+    ArrayList<String> run() throws SQLException {
+
+        ArrayList<String> report = new ArrayList<String>();
+
+        try (PooledConnection pooled = pool.borrow()) {
+
+            for (QueryDefinition query : catalog.queries()) {
+                Object[] values = SampleParameters.forQuery(query, pooled.connection, backend);
+
+                PreparedStatement statement = pooled.prepare(query.id, backend.querySql(query));
+                query.bind(statement, values);
+                QueryResults sql;
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    sql = new QueryResults(resultSet);
+                }
+
+                compare("Query " + query.id + describe(values), sql, memoryQueries.run(query, values), report);
+            }
+
+            for (String table : QueryCatalog.RAW_TABLES) {
+                QueryResults sql;
+                try (Statement statement = pooled.connection.createStatement();
+                        ResultSet resultSet = statement.executeQuery("SELECT * FROM " + table)) {
+                    sql = new QueryResults(resultSet);
+                }
+
+                compare("Table " + table, sql, memoryQueries.rawTable(table), report);
+            }
+        }
+
+        report.add("");
+        report.add("\t" + passed + " matched, " + failed + " differed");
+        return report;
+    }
+
+    private void compare(String name, QueryResults sql, QueryResults inMemory, ArrayList<String> report) {
+
+        ArrayList<String> sqlRows = rows(sql);
+        ArrayList<String> memoryRows = rows(inMemory);
+
+        boolean sameColumns = sql.columnNames.equals(inMemory.columnNames);
+        if (sameColumns && sqlRows.equals(memoryRows)) {
+            passed++;
+            report.add(String.format("\t[ OK ] %-40s %,8d rows", name, sqlRows.size()));
+            return;
+        }
+
+        failed++;
+        report.add(String.format("\t[FAIL] %-40s %,8d rows in SQL, %,d in memory", name, sqlRows.size(),
+                memoryRows.size()));
+        if (!sameColumns) {
+            report.add("\t\tSQL columns:    " + sql.columnNames);
+            report.add("\t\tMemory columns: " + inMemory.columnNames);
+        }
+
+        // Show the first row only one side has
+        ArrayList<String> onlySql = new ArrayList<String>(sqlRows);
+        onlySql.removeAll(memoryRows);
+        ArrayList<String> onlyMemory = new ArrayList<String>(memoryRows);
+        onlyMemory.removeAll(sqlRows);
+        if (!onlySql.isEmpty()) {
+            report.add("\t\tOnly in SQL:    " + onlySql.get(0));
+        }
+        if (!onlyMemory.isEmpty()) {
+            report.add("\t\tOnly in memory: " + onlyMemory.get(0));
+        }
+    }
+
+    // Every row as printed (without the row number), sorted
+    private static ArrayList<String> rows(QueryResults results) {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (int row = 1; row <= results.noRows; row++) {
+            StringBuilder line = new StringBuilder();
+            for (int column = 1; column <= results.noColumns; column++) {
+                line.append(column > 1 ? " | " : "").append(results.getField(row, column));
+            }
+            rows.add(line.toString());
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static String describe(Object[] values) {
+        if (values.length == 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder(" (");
+        for (int i = 0; i < values.length; i++) {
+            text.append(i > 0 ? ", " : "").append(values[i]);
+        }
+        return text.append(')').toString();
+    }
+
+}
@@ -0,0 +1,540 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+// SQL imports
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/*
+ * Every query the program can run, plus the main menu built from them.
+ *
+ * Each query is a QueryDefinition: an id, its SQL, the parameters the user is
+ * asked for (and how they get bound), whether its results can be cached, and a
+ * timeout. The main menu, the help screen and query execution all come from
+ * here, so adding a query means adding it here and nowhere else.
+ *
+ * Query ids are the menu option number ("7"), or option.variant for menu entries
+ * with sub-options ("14.2").
+ */
+class QueryCatalog {
+
+    // Timeout used unless a query says otherwise
+    static final int DEFAULT_TIMEOUT_SECONDS = 30;
+
+    // Tables that can be dumped with the raw table option
+    static final String[] RAW_TABLES = { "Airlines", "Airports", "Attend", "Book", "CreditCards", "Employee",
+            "Flights", "Fly", "Guide", "Luggage", "Passenger", "Planes", "Runways", "Service" };
+
+    private final LinkedHashMap<String, QueryDefinition> queries = new LinkedHashMap<String, QueryDefinition>();
+    private final ArrayList<MenuEntry> menu = new ArrayList<MenuEntry>();
+
+    QueryCatalog() {
+
+        // Track pilot's journey in a day
+        addQuery(1, new QueryDefinition("1", "Track pilot's journey in a day",
+                "Returns all flights that a pilot operated during the day.",
+                """
+                SELECT Flights.flightNum, Flights.origin, Flights.schedDep, Flights.destination, Flights.schedArr FROM Fly
+                JOIN Flights ON Fly.flightNum = Flights.flightNum
+                WHERE SIN = ?
+                ORDER BY Flights.schedDep ASC
+                """,
+                false, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Pilot SIN", "Enter pilot SIN", QueryParameter.Type.INT)));
+
+        // Passengers on layover, at one airport or all of them.
+        // A booking is for one flight, so Book joins Flights on the whole key (flightNum
+        // AND schedDep). Joining on flightNum alone matched every day the flight number
+        // was used. The later departure can be checked on Book.schedDep directly, the
+        // foreign key means the flight exists.
+        MenuEntry layovers = addMenuEntry(2, "Passengers on layover",
+                "Returns the number of passengers laid over at an airport (i.e. arrived and departed again later), or at every airport.");
+        layovers.variantPrompt = "Count layovers at one airport, or at every airport?";
+        layovers.variantHelp = "One airport (asks for its ICAO code), or all airports";
+        layovers.addVariant(new QueryDefinition("2.1", "One airport",
+                "Returns the number of passengers laid over at this airport.",
+                """
+                -- Get all passengers who arrived at the airport at some point during day
+                WITH arrivingPassengers AS
+                (
+                    SELECT Book.passNum, Flights.schedArr FROM Book
+                    JOIN Flights ON Book.flightNum = Flights.flightNum AND Book.schedDep = Flights.schedDep
+                    WHERE Flights.destination = ?
+                )
+
+                -- Find any of those passengers who got on a flight later than the arrival time in arrivingPassengers
+                SELECT COUNT(*) as noOfPassengersOnLayover FROM arrivingPassengers
+                WHERE EXISTS
+                (
+                    SELECT * FROM Book
+                    WHERE Book.passNum = arrivingPassengers.passNum
+                    AND Book.schedDep > arrivingPassengers.schedArr
+                )
+                """,
+                true, 60,
+                new QueryParameter("Airport ICAO code", "Enter airport ICAO code", QueryParameter.Type.CODE)));
+        layovers.addVariant(new QueryDefinition("2.2", "All airports",
+                "Returns the number of passengers laid over at each airport.",
+                """
+                WITH arrivingPassengers AS
+                (
+                    SELECT Book.passNum, Flights.destination, Flights.schedArr FROM Book
+                    JOIN Flights ON Book.flightNum = Flights.flightNum AND Book.schedDep = Flights.schedDep
+                )
+
+                SELECT arrivingPassengers.destination AS airport, COUNT(*) as noOfPassengersOnLayover FROM arrivingPassengers
+                WHERE EXISTS
+                (
+                    SELECT * FROM Book
+                    WHERE Book.passNum = arrivingPassengers.passNum
+                    AND Book.schedDep > arrivingPassengers.schedArr
+                )
+                GROUP BY arrivingPassengers.destination
+                ORDER BY noOfPassengersOnLayover DESC, airport ASC
+                """,
+                true, 60));
+
+        // Most productive employees
+        addQuery(3, new QueryDefinition("3", "Most productive employees",
+                "Returns all employees who completed the most jobs, of any type.",
+                """
+                SELECT Employee.SIN, Employee.first, Employee.last, COUNT(*) as jobsCompleted
+                FROM Employee JOIN
+
+                (SELECT Service.SIN FROM Service
+                UNION ALL
+                SELECT Guide.SIN FROM Guide
+                UNION ALL
+                SELECT Fly.SIN FROM Fly
+                UNION ALL
+                SELECT Attend.SIN FROM Attend) temp_table
+
+                ON Employee.SIN = temp_table.SIN
+                GROUP BY Employee.SIN, Employee.first, Employee.last
+                ORDER BY COUNT(*) DESC, last ASC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+
+        // Most popular airlines
+        addQuery(4, new QueryDefinition("4", "Most popular airlines",
+                "Returns the top 10 airlines with the most bookings.",
+                """
+                SELECT TOP 10 Book.airline, COUNT(*) as bookings FROM Book
+                GROUP BY Book.airline
+                ORDER BY bookings DESC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+
+        // Passengers flying home
+        addQuery(5, new QueryDefinition("5", "Passengers flying home",
+                "Returns the amount of passengers flying to their country of citizenship, grouped by country.",
+                """
+                SELECT COUNT(*) AS numPassengersFlyingHome, Passenger.citizen AS country FROM Passenger
+                JOIN Book ON Passenger.passNum = Book.passNum
+                JOIN Flights ON Book.flightNum = Flights.flightNum
+                JOIN Airports ON Flights.destination = Airports.icao
+                WHERE Airports.country = Passenger.citizen
+                GROUP BY Passenger.citizen
+                ORDER BY numPassengersFlyingHome DESC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+
+        // Top plane models requiring servicing
+        addQuery(6, new QueryDefinition("6", "Top plane models requiring servicing",
+                "Returns the aircraft models that have the most service records.",
+                """
+                SELECT Planes.manufacturer, Planes.model, COUNT(*) as numberOfServices FROM Service
+                JOIN Planes ON Service.tailNum = Planes.tailNum
+                WHERE Planes.model IS NOT NULL
+                GROUP BY Planes.model, Planes.manufacturer
+                ORDER BY numberOfServices DESC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+
+        // All flights departing from airport
+        addQuery(7, new QueryDefinition("7", "All flights departing from airport",
+                "Returns all flights that departed from the input airport.",
+                """
+                SELECT flightNum, origin, destination, Airlines.airlineName
+                FROM Flights f
+                JOIN Airports a
+                ON f.origin = a.icao
+                JOIN Planes p
+                ON f.tailNum = p.tailNum
+                JOIN Airlines
+                ON Airlines.airlineName = p.airline
+                WHERE origin = ?
+                ORDER BY Airlines.airlineName, f.flightNum
+                ASC
+                """,
+                false, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Airport ICAO code", "Enter airport ICAO code", QueryParameter.Type.CODE)));
+
+        // All luggage owned by passenger
+        addQuery(8, new QueryDefinition("8", "All luggage owned by passenger",
+                "Returns all pieces of luggage owned by a passenger.",
+                """
+                SELECT Luggage.ID, Luggage.type FROM Passenger
+                JOIN Luggage on Passenger.passNum = Luggage.passNum
+                WHERE Passenger.phoneNum = ?
+                ORDER BY Luggage.ID ASC
+                """,
+                false, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Passenger phone number", "Enter passenger phone number (with hyphens)", QueryParameter.Type.TEXT)));
+
+        // All flights by an airline
+        addQuery(9, new QueryDefinition("9", "All flights by an airline",
+                "Returns all flights operated by a specific airline.",
+                """
+                SELECT Flights.* FROM Airlines 
+                JOIN Planes ON Airlines.airlineName = Planes.airline
+                JOIN Flights ON Planes.tailNum = Flights.tailNum
+                WHERE Airlines.airlineName = ?
+                """,
+                false, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Airline name", "Enter airline name", QueryParameter.Type.CODE)));
+
+        // Most common destination airport based on origin airport
+        addQuery(10, new QueryDefinition("10", "Most common destination airport based on origin airport",
+                "Returns the most common destination airports given an origin airport.",
+                """
+                SELECT Flights.destination as airportCode, Airports.airportName, COUNT(*) as numberOfFlights FROM Flights
+                JOIN Airports ON Flights.destination = Airports.icao
+                WHERE Flights.origin = ?
+                GROUP BY Flights.destination, Airports.airportName
+                ORDER BY numberOfFlights DESC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Origin airport ICAO code", "Enter airport ICAO code", QueryParameter.Type.CODE)));
+
+        // Average age of aircraft in airline fleet
+        addQuery(11, new QueryDefinition("11", "Average age of aircraft in airline fleet",
+                "Returns the average age of all aircraft in airline's fleets, grouped by airline.",
+                """
+                SELECT Airlines.airlineName, FORMAT(AVG(2025 - 1.0 * Planes.year), 'N2') as averageAge FROM Planes
+                JOIN Airlines ON Planes.airline = Airlines.airlineName
+                GROUP BY Airlines.airlineName
+                HAVING AVG(2025 - Planes.year) IS NOT NULL
+                ORDER BY AVG(2025 - Planes.year) DESC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+
+        // Average number of bags per passenger on flight
+        addQuery(12, new QueryDefinition("12", "Average number of bags per passenger on flight",
+                "Returns the average number of bags per passenger on a given flight.",
+                """
+                SELECT AVG(numBags) as avgBagsPerPassenger FROM
+                (SELECT Passenger.passNum, COUNT(*) as numBags FROM Luggage
+                JOIN Passenger ON Luggage.passNum = Passenger.passNum
+                JOIN Book ON Passenger.passNum = Book.passNum
+                WHERE Book.flightNum = ?
+                GROUP BY Passenger.passNum
+                ) temp
+                HAVING AVG(numBags) IS NOT NULL
+                """,
+                false, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Flight number", "Enter flight number", QueryParameter.Type.CODE)));
+
+        // Employee's completed jobs
+        addQuery(13, new QueryDefinition("13", "Employee's completed jobs",
+                "Returns all jobs completed by an employee.",
+                """
+                WITH flyJobs AS
+
+                ((SELECT 'Service' AS jobType, Service.SIN, Service.tailNum AS tailOrFlightNumber FROM Service)
+                UNION ALL
+                (SELECT 'Guide' AS jobType, Guide.SIN, Guide.tailNum AS tailOrFlightNumber FROM Guide)
+                UNION ALL
+                (SELECT 'Fly' AS jobType, Fly.SIN, Fly.flightNum AS tailOrFlightNumber FROM Fly)
+                UNION ALL
+                (SELECT 'Attend' AS jobType, Attend.SIN, Attend.flightNum AS tailOrFlightNumber FROM Attend))
+
+                SELECT jobType, tailOrFlightNumber FROM flyJobs WHERE flyJobs.SIN = ?
+                """,
+                false, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Employee SIN", "Enter employee SIN", QueryParameter.Type.INT)));
+
+        // List all or some employees. Each type of employee is its own query.
+        // I seriously hate MS SQL Server. These needed a CAST on every name until the
+        // columns stopped being TEXT (see SchemaMigration). SQLite is better.
+        MenuEntry employees = addMenuEntry(14, "List all or some employees",
+                "Returns all employees of a given type, or all employees.");
+        employees.variantPrompt = "Select the type of employee to list.";
+        employees.variantHelp = "Select type of employee, or all";
+        employees.addVariant(new QueryDefinition("14.1", "Pilots",
+                "Returns all pilots.",
+                """
+                SELECT DISTINCT Employee.SIN, Employee.first, Employee.last, Employee.airline FROM Employee
+                JOIN Fly ON Employee.SIN = Fly.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+        employees.addVariant(new QueryDefinition("14.2", "Maintenance staff",
+                "Returns all maintenance staff.",
+                """
+                SELECT DISTINCT Employee.SIN, Employee.first, Employee.last, Employee.icao AS airport FROM Employee
+                JOIN Service ON Employee.SIN = Service.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+        employees.addVariant(new QueryDefinition("14.3", "Air Traffic Controllers",
+                "Returns all air traffic controllers.",
+                """
+                SELECT DISTINCT Employee.SIN, Employee.first, Employee.last, Employee.icao AS airport FROM Employee
+                JOIN Guide ON Employee.SIN = Guide.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+        employees.addVariant(new QueryDefinition("14.4", "Flight Attendants",
+                "Returns all flight attendants.",
+                """
+                SELECT DISTINCT Employee.SIN, Employee.first, Employee.last, Employee.airline FROM Employee
+                JOIN Attend ON Employee.SIN = Attend.SIN
+                ORDER BY last, first, Employee.SIN ASC  
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS));
+        employees.addVariant(new QueryDefinition("14.5", "All employees",
+                "Returns all employees.",
+                """
+                WITH allEmployees AS (
+                    SELECT 'Pilot' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Fly ON Employee.SIN = Fly.SIN
+                    UNION ALL
+                    SELECT 'Maintenance' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Service ON Employee.SIN = Service.SIN
+                    UNION ALL
+                    SELECT 'ATC' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Guide ON Employee.SIN = Guide.SIN
+                    UNION ALL
+                    SELECT 'Attendant' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Attend ON Employee.SIN = Attend.SIN
+                )
+
+                SELECT DISTINCT allEmployees.type, allEmployees.last, allEmployees.first, allEmployees.SIN FROM allEmployees
+                ORDER BY last, first, allEmployees.SIN ASC
+                """,
+                true, 60));
+
+        // Average flight length from origin and destination
+        addQuery(15, new QueryDefinition("15", "Average flight length from origin and destination",
+                "Returns the average duration of all flights from the origin airport to the destination airport.",
+                """
+                SELECT AVG(flightTime) as "avgFlightTime (mins)" FROM (
+                SELECT *, DATEDIFF(minute, Flights.schedDep, Flights.schedArr) AS flightTime FROM Flights
+                WHERE Flights.origin = ? AND Flights.destination = ?) temp
+                """,
+                true, DEFAULT_TIMEOUT_SECONDS,
+                new QueryParameter("Origin airport ICAO code", "Enter origin airport ICAO code", QueryParameter.Type.CODE),
+                new QueryParameter("Destination airport ICAO code", "Enter destination airport ICAO code", QueryParameter.Type.CODE)));
+
+        // Raw table information
+        MenuEntry rawTables = addMenuEntry(16, "Raw table information", "Returns an entire table, based on selection.");
+        rawTables.kind = MenuEntry.Kind.RAW_TABLE;
+        rawTables.variantHelp = "Choose an individual table";
+
+        // Rebuild database
+        MenuEntry rebuild = addMenuEntry(17, "Rebuild database",
+                "Rebuilds the entire database server-side. Will ask for confirmation.");
+        rebuild.kind = MenuEntry.Kind.REBUILD;
+
+        // Query metrics
+        MenuEntry metrics = addMenuEntry(18, "Query metrics",
+                "Shows how long each query and rebuild phase has taken this session. Can save them as JSON.");
+        metrics.kind = MenuEntry.Kind.METRICS;
+    }
+
+    // Adds a menu entry that just runs query
+    private void addQuery(int option, QueryDefinition query) {
+        addMenuEntry(option, query.title, query.description).addVariant(query);
+    }
+
+    private MenuEntry addMenuEntry(int option, String title, String description) {
+        if (option != menu.size() + 1) {
+            throw new IllegalStateException("Menu options must be added in order, expected " + (menu.size() + 1));
+        }
+        MenuEntry entry = new MenuEntry(this, option, title, description);
+        menu.add(entry);
+        return entry;
+    }
+
+    // Called by MenuEntry.addVariant
+    void registerVariant(QueryDefinition query) {
+        if (queries.put(query.id, query) != null) {
+            throw new IllegalStateException("Duplicate query id " + query.id);
+        }
+    }
+
+    // The query with this id, or null
+    QueryDefinition get(String id) {
+        return queries.get(id);
+    }
+
+    // Every query, in menu order
+    Collection<QueryDefinition> queries() {
+        return queries.values();
+    }
+
+    // The menu entry for option (1-based)
+    MenuEntry menuEntry(int option) {
+        return menu.get(option - 1);
+    }
+
+    List<MenuEntry> menu() {
+        return menu;
+    }
+
+    // The text for the help screen
+    String helpText() {
+
+        StringBuilder help = new StringBuilder("\tDescription of commands:\n\n");
+
+        for (MenuEntry entry : menu) {
+            help.append(entry.menuLine()).append('\n');
+
+            if (entry.variantHelp != null) {
+                help.append("\t\tSubqueries: ").append(entry.variantHelp).append('\n');
+            } else if (entry.kind == MenuEntry.Kind.QUERY && !entry.variants.get(0).parameters.isEmpty()) {
+                for (QueryParameter parameter : entry.variants.get(0).parameters) {
+                    help.append("\t\tParameter: ").append(parameter.name).append('\n');
+                }
+            } else {
+                help.append("\t\tNo parameters\n");
+            }
+
+            help.append("\t\t").append(entry.description).append("\n\n");
+        }
+
+        return help.toString();
+    }
+
+}
+
+// One option on the main menu
+class MenuEntry {
+
+    enum Kind {
+        QUERY, // Runs one of variants (asking which one first if there's more than one)
+        RAW_TABLE, // Dumps one of QueryCatalog.RAW_TABLES
+        REBUILD, // Rebuilds the database
+        METRICS // Shows the QueryMetrics
+    }
+
+    final int option;
+    final String title;
+    final String description;
+    Kind kind = Kind.QUERY;
+
+    // The queries this option can run. Only more than one if the user picks a
+    // sub-option first, in which case variantPrompt is shown above the choices and
+    // variantHelp goes in the help screen.
+    final ArrayList<QueryDefinition> variants = new ArrayList<QueryDefinition>();
+    String variantPrompt = null;
+    String variantHelp = null;
+
+    private final QueryCatalog catalog;
+
+    MenuEntry(QueryCatalog catalog, int option, String title, String description) {
+        this.catalog = catalog;
+        this.option = option;
+        this.title = title;
+        this.description = description;
+    }
+
+    void addVariant(QueryDefinition query) {
+        variants.add(query);
+        catalog.registerVariant(query);
+    }
+
+    // "\t[ 7] All flights departing from airport"
+    String menuLine() {
+        return String.format("\t[%2d] %s", option, title);
+    }
+
+}
+
+// A query: its SQL, what parameters it needs and how it should be run
+class QueryDefinition {
+
+    final String id;
+    final String title;
+    final String description;
+    final String sql;
+    final List<QueryParameter> parameters;
+
+    // True if the results only depend on the data (and the parameters), so they
+    // can be reused until the database is rebuilt
+    final boolean cacheable;
+
+    // Passed to Statement.setQueryTimeout
+    final int timeoutSeconds;
+
+    QueryDefinition(String id, String title, String description, String sql, boolean cacheable,
+            int timeoutSeconds, QueryParameter... parameters) {
+        this.id = id;
+        this.title = title;
+        this.description = description;
+        this.sql = sql;
+        this.cacheable = cacheable;
+        this.timeoutSeconds = timeoutSeconds;
+        this.parameters = Arrays.asList(parameters);
+    }
+
+    // Binds values (one per parameter, as returned by QueryParameter.parse) to
+    // statement, and applies the timeout
+    void bind(PreparedStatement statement, Object[] values) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            parameters.get(i).bind(statement, i + 1, values[i]);
+        }
+        statement.setQueryTimeout(timeoutSeconds);
+    }
+
+}
+
+// A value the user has to give before a query can run
+class QueryParameter {
+
+    enum Type {
+        INT, // Whole number, bound with setInt
+        TEXT, // Bound as typed
+        CODE // Airport codes, flight numbers, airline names. Upper cased before binding
+    }
+
+    // Shown in the help screen
+    final String name;
+    // Shown when asking for the value
+    final String prompt;
+    final Type type;
+
+    QueryParameter(String name, String prompt, Type type) {
+        this.name = name;
+        this.prompt = prompt;
+        this.type = type;
+    }
+
+    // Turns what the user typed into the value to bind. Throws
+    // NumberFormatException if an INT parameter isn't a number.
+    Object parse(String input) {
+        input = input.trim();
+        switch (type) {
+            case INT:
+                return Integer.parseInt(input);
+            case CODE:
+                return input.toUpperCase();
+            default:
+                return input;
+        }
+    }
+
+    void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (type == Type.INT) {
+            statement.setInt(index, (Integer) value);
+        } else {
+            statement.setString(index, (String) value);
+        }
+    }
+
+}
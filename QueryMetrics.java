@@ -0,0 +1,373 @@
+// Util imports
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+// JFR imports
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import jdk.jfr.DataAmount;
+
+/*
+ * Where the time goes, per catalog query and per rebuild phase, for the whole
+ * session. Shown by the "Query metrics" menu option, which can also write it
+ * all out as JSON.
+ *
+ * Each catalog query run records:
+ * - prepare: getting the PreparedStatement (from the connection's cache or the
+ *   server) and binding the parameters
+ * - execute: executeQuery(), until the server starts answering
+ * - first row: from executeQuery() to the first row being read
+ * - fetch: reading every row into QueryResults
+ * - total: all of the above
+ * plus the rows and (roughly) the bytes it returned. Answers from the result
+ * cache only count as cache hits, and in-memory answers only have an execute
+ * time (and so a total).
+ *
+ * Rebuilds record how long parsing took, and each DDL statement, INSERT
+ * batch and commit on its own, so the histograms show the spread.
+ *
+ * Every run is also a JFR event (QueryExecutionEvent, RebuildPhaseEvent),
+ * which costs next to nothing unless a recording is going, e.g.
+ *   java -XX:StartFlightRecording=filename=queries.jfr -cp ... DBInterface
+ *   jfr print --events QueryExecution queries.jfr
+ */
+class QueryMetrics {
+
+    // In the order they first ran. Guarded by this.
+    private final LinkedHashMap<String, QueryStats> queries = new LinkedHashMap<String, QueryStats>();
+    private final LinkedHashMap<String, LatencyHistogram> phases = new LinkedHashMap<String, LatencyHistogram>();
+
+    // Stats for query id, created the first time
+    synchronized QueryStats query(String id, String title) {
+        return queries.computeIfAbsent(id, key -> new QueryStats(id, title));
+    }
+
+    // One run of a catalog query. Any of the times can be -1 if that part didn't
+    // happen (in memory there's nothing to prepare, for example).
+    void recordQuery(String id, String title, long prepareNanos, long executeNanos, long firstRowNanos,
+            long fetchNanos, long rows, long bytes) {
+
+        QueryStats stats = query(id, title);
+        long total = Math.max(prepareNanos, 0) + Math.max(executeNanos, 0) + Math.max(fetchNanos, 0);
+        stats.prepare.record(prepareNanos);
+        stats.execute.record(executeNanos);
+        stats.firstRow.record(firstRowNanos);
+        stats.fetch.record(fetchNanos);
+        stats.total.record(total);
+        stats.rows.add(rows);
+        stats.bytes.add(bytes);
+
+        QueryExecutionEvent event = new QueryExecutionEvent();
+        if (event.isEnabled()) {
+            event.queryId = id;
+            event.title = title;
+            event.prepare = prepareNanos;
+            event.execute = executeNanos;
+            event.firstRow = firstRowNanos;
+            event.fetch = fetchNanos;
+            event.rows = rows;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    // One go of a rebuild phase ("parse", "ddl", "execute", "commit")
+    void recordPhase(String phase, long nanos) {
+
+        LatencyHistogram histogram;
+        synchronized (this) {
+            histogram = phases.computeIfAbsent(phase, key -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+
+        RebuildPhaseEvent event = new RebuildPhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    // For the metrics screen
+    synchronized ArrayList<String> summary() {
+
+        ArrayList<String> lines = new ArrayList<String>();
+
+        if (queries.isEmpty()) {
+            lines.add("\tNo queries run yet.");
+        } else {
+            lines.add(String.format("\t%-6s %5s %5s %9s %9s %9s %9s %9s %9s %9s %10s %10s", "Query", "Runs", "Cache",
+                    "p50 ms", "p90 ms", "p99 ms", "max ms", "prep ms", "exec ms", "1st ms", "Rows", "KB"));
+            for (QueryStats stats : queries.values()) {
+                long runs = stats.total.count();
+                lines.add(String.format("\t%-6s %5d %5d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %10d %10.1f",
+                        stats.id, runs, stats.cacheHits.sum(), stats.total.percentile(50) / 1e6,
+                        stats.total.percentile(90) / 1e6, stats.total.percentile(99) / 1e6, stats.total.max() / 1e6,
+                        stats.prepare.mean() / 1e6, stats.execute.mean() / 1e6, stats.firstRow.percentile(50) / 1e6,
+                        stats.rows.sum(), stats.bytes.sum() / 1024.0));
+                if (stats.cancelled.sum() > 0 || stats.timedOut.sum() > 0) {
+                    lines.add(String.format("\t       %d cancelled, %d timed out", stats.cancelled.sum(),
+                            stats.timedOut.sum()));
+                }
+            }
+            lines.add("");
+            lines.add("\tpN is the Nth percentile of the total time, prep and exec are means, 1st is the median time"
+                    + " to the first row.");
+        }
+
+        if (!phases.isEmpty()) {
+            lines.add("");
+            lines.add(String.format("\t%-12s %8s %10s %9s %9s %9s %9s", "Rebuild", "Count", "Total s", "p50 ms",
+                    "p99 ms", "max ms", "mean ms"));
+            for (var phase : phases.entrySet()) {
+                LatencyHistogram histogram = phase.getValue();
+                lines.add(String.format("\t%-12s %8d %10.2f %9.2f %9.2f %9.2f %9.2f", phase.getKey(),
+                        histogram.count(), histogram.sum() / 1e9, histogram.percentile(50) / 1e6,
+                        histogram.percentile(99) / 1e6, histogram.max() / 1e6, histogram.mean() / 1e6));
+            }
+        }
+
+        return lines;
+    }
+
+    synchronized String toJson() {
+
+        StringBuilder json = new StringBuilder("{\n  \"queries\": [");
+        boolean first = true;
+        for (QueryStats stats : queries.values()) {
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("    {\"id\": ").append(quote(stats.id))
+                    .append(", \"title\": ").append(quote(stats.title))
+                    .append(", \"runs\": ").append(stats.total.count())
+                    .append(", \"cacheHits\": ").append(stats.cacheHits.sum())
+                    .append(", \"cancelled\": ").append(stats.cancelled.sum())
+                    .append(", \"timedOut\": ").append(stats.timedOut.sum())
+                    .append(", \"rows\": ").append(stats.rows.sum())
+                    .append(", \"bytes\": ").append(stats.bytes.sum())
+                    .append(",\n      \"prepare\": ").append(stats.prepare.toJson())
+                    .append(",\n      \"execute\": ").append(stats.execute.toJson())
+                    .append(",\n      \"firstRow\": ").append(stats.firstRow.toJson())
+                    .append(",\n      \"fetch\": ").append(stats.fetch.toJson())
+                    .append(",\n      \"total\": ").append(stats.total.toJson())
+                    .append("}");
+        }
+        json.append("\n  ],\n  \"rebuildPhases\": {");
+        first = true;
+        for (var phase : phases.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            first = false;
+            json.append("    ").append(quote(phase.getKey())).append(": ").append(phase.getValue().toJson());
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    void writeJson(Path path) throws IOException {
+        Files.writeString(path, toJson(), StandardCharsets.UTF_8);
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
+
+// Everything recorded for one catalog query
+class QueryStats {
+
+    final String id;
+    final String title;
+
+    final LatencyHistogram prepare = new LatencyHistogram();
+    final LatencyHistogram execute = new LatencyHistogram();
+    final LatencyHistogram firstRow = new LatencyHistogram();
+    final LatencyHistogram fetch = new LatencyHistogram();
+    final LatencyHistogram total = new LatencyHistogram();
+
+    final LongAdder rows = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cancelled = new LongAdder();
+    final LongAdder timedOut = new LongAdder();
+
+    QueryStats(String id, String title) {
+        this.id = id;
+        this.title = title;
+    }
+
+}
+
+/*
+ * A histogram of times in nanoseconds, done the way HdrHistogram does it:
+ * values under 128 get a bucket each, and above that every power of two is
+ * split into 64 equal buckets. So any value is off by at most 1/64 (about
+ * 1.5%) whether it's a microsecond or an hour, and the whole range fits in
+ * under 4k counters. Safe to record into from any thread.
+ */
+class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 64
+    static final int BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    // Negative values mean "didn't happen" and aren't recorded
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+        min.accumulateAndGet(nanos, Math::min);
+    }
+
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift); // 64 to 127
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (subBucket - SUB_BUCKETS);
+    }
+
+    // The largest value that lands in bucket
+    static long highestInBucket(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    long min() {
+        return count() == 0 ? 0 : min.get();
+    }
+
+    double mean() {
+        long n = count();
+        return n == 0 ? 0 : sum() / (double) n;
+    }
+
+    // The value percent% of recorded values are at or under (to within a bucket),
+    // or 0 if nothing's been recorded
+    long percentile(double percent) {
+
+        long n = count();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(n * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestInBucket(i), max());
+            }
+        }
+        return max();
+    }
+
+    String toJson() {
+        return String.format(Locale.ROOT, "{\"count\": %d, \"minMs\": %.3f, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p90Ms\": %.3f,"
+                + " \"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f}", count(), min() / 1e6, mean() / 1e6,
+                percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6,
+                max() / 1e6);
+    }
+
+}
+
+// JFR event for each catalog query run (see QueryMetrics)
+@Name("DBInterface.QueryExecution")
+@Label("Query Execution")
+@Category("DBInterface")
+@Description("One run of a catalog query")
+class QueryExecutionEvent extends Event {
+
+    @Label("Query")
+    String queryId;
+
+    @Label("Title")
+    String title;
+
+    @Label("Prepare")
+    @Timespan(Timespan.NANOSECONDS)
+    long prepare;
+
+    @Label("Execute")
+    @Timespan(Timespan.NANOSECONDS)
+    long execute;
+
+    @Label("First Row")
+    @Timespan(Timespan.NANOSECONDS)
+    long firstRow;
+
+    @Label("Fetch")
+    @Timespan(Timespan.NANOSECONDS)
+    long fetch;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+}
+
+// JFR event for each rebuild phase (see QueryMetrics)
+@Name("DBInterface.RebuildPhase")
+@Label("Rebuild Phase")
+@Category("DBInterface")
+@Description("One parse, DDL statement, INSERT batch or commit of a rebuild")
+class RebuildPhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long time;
+
+}
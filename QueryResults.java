@@ -0,0 +1,316 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+// SQL imports
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Helper class for processing query results
+class QueryResults {
+
+    /*
+     * columnNames keeps track of the name of each column.
+     * columnMaxFieldLengths keeps track of the longest field in each column. Needed
+     * for printing later.
+     * columns stores the actual data, one ResultColumn per query column. Values are
+     * kept in their native type (or dictionary encoded for text) and only turned
+     * into strings when printed.
+     * The "rowNum" column (index 0 in columnNames) isn't stored, it's just the row
+     * number.
+     */
+    ArrayList<String> columnNames = new ArrayList<String>();
+    int[] columnMaxFieldLengths;
+    ResultColumn[] columns;
+    int noRows;
+    int noColumns;
+
+    /*
+     * Streaming mode only. cursor is the still-open ResultSet we pull rows from
+     * (null once it's used up, or if everything was loaded up front).
+     * windowSize is the most rows we keep in memory, older rows get dropped.
+     * firstStoredRow is the row number of the first row still in columns, since
+     * rows before it may have been dropped.
+     */
+    private ResultSet cursor = null;
+    private int windowSize = Integer.MAX_VALUE;
+    int firstStoredRow = 1;
+
+    // System.nanoTime() when the first row was read, or 0 if there were none (only
+    // kept by the constructor below, for QueryMetrics)
+    long firstRowAt = 0;
+
+    // Constructor that ingests the results from resultSet and stores them in memory
+    // It also "injects" a row # for the row in the query table, just for pretty
+    // printing
+    public QueryResults(ResultSet resultSet) throws SQLException {
+        this(resultSet, null);
+    }
+
+    // Same, but keeps rowsFetched up to date as rows are read, so another thread can
+    // show how it's going (see RunningQuery)
+    public QueryResults(ResultSet resultSet, AtomicInteger rowsFetched) throws SQLException {
+
+        readColumnNames(resultSet);
+
+        while (resultSet.next()) {
+            if (noRows == 0) {
+                firstRowAt = System.nanoTime();
+            }
+            addRow(resultSet);
+            if (rowsFetched != null) {
+                rowsFetched.lazySet(noRows);
+            }
+        }
+
+        updateColumnWidths();
+
+        return;
+    }
+
+    // Constructor for results that were worked out in memory instead of coming from
+    // a ResultSet (see MemoryDatabase). columns says how each one is stored, like
+    // ResultColumn.forType would for the SQL version of the query, and each row has
+    // one value per column.
+    public QueryResults(List<String> names, ResultColumn[] columns, List<Object[]> rows) {
+
+        noColumns = columns.length;
+        columnMaxFieldLengths = new int[noColumns + 1];
+        this.columns = columns;
+
+        columnNames.add("rowNum");
+        columnNames.addAll(names);
+
+        for (Object[] row : rows) {
+            for (int i = 0; i < noColumns; i++) {
+                this.columns[i].appendValue(row[i]);
+                if (this.columns[i] instanceof DictionaryColumn
+                        && ((DictionaryColumn) this.columns[i]).tooManyDistinctValues()) {
+                    this.columns[i] = ((DictionaryColumn) this.columns[i]).toStringColumn();
+                }
+            }
+            noRows++;
+        }
+
+        updateColumnWidths();
+    }
+
+    // Streaming constructor. Only the first batch of rows is read here, the rest
+    // are pulled from resultSet on demand by fetchUntil(). At most windowSize rows
+    // are kept in memory at once. The result set is closed once it runs out.
+    public QueryResults(ResultSet resultSet, int firstBatch, int windowSize) throws SQLException {
+
+        readColumnNames(resultSet);
+
+        this.cursor = resultSet;
+        this.windowSize = Math.max(windowSize, firstBatch);
+        fetchUntil(firstBatch);
+
+        return;
+    }
+
+    // Reads rows from the cursor until we have seen at least lastRow rows or the
+    // cursor runs out. Does nothing if the results were fully loaded already.
+    public void fetchUntil(int lastRow) throws SQLException {
+
+        if (cursor == null) {
+            return;
+        }
+
+        while (noRows < lastRow) {
+            if (!cursor.next()) {
+                close();
+                break;
+            }
+            addRow(cursor);
+
+            // Drop the oldest rows once we're over the window. Dropping a quarter of the
+            // window at a time means we aren't shifting the whole window on every row.
+            int storedRows = noRows - firstStoredRow + 1;
+            if (storedRows > windowSize) {
+                int toDrop = Math.max(storedRows - windowSize, windowSize / 4);
+                for (ResultColumn column : columns) {
+                    column.dropFirst(toDrop);
+                }
+                firstStoredRow += toDrop;
+            }
+        }
+
+        updateColumnWidths();
+    }
+
+    // Numbers the rows from firstRow instead of 1, for results that are one page of
+    // something bigger (see TablePager).
+    public void numberFrom(int firstRow) {
+        firstStoredRow = firstRow;
+        noRows = firstRow + noRows - 1;
+        updateColumnWidths();
+    }
+
+    // True once every row of the query has been read.
+    public boolean isComplete() {
+        return cursor == null;
+    }
+
+    // Closes the underlying cursor (and its statement) if it's still open.
+    public void close() {
+
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            Statement statement = cursor.getStatement();
+            cursor.close();
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            // Nothing useful to do here, we're done with it either way.
+        }
+        cursor = null;
+    }
+
+    // The field at column (0 being rowNum) of row (1-based, must still be stored)
+    public String getField(int row, int column) {
+        if (column == 0) {
+            return Integer.toString(row);
+        }
+        return columns[column - 1].get(row - firstStoredRow);
+    }
+
+    // Rough number of bytes the stored rows are using on the heap
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (ResultColumn column : columns) {
+            bytes += column.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    // Get metadata about the query results and set up the columns
+    private void readColumnNames(ResultSet resultSet) throws SQLException {
+
+        ResultSetMetaData metadata = resultSet.getMetaData();
+        noColumns = metadata.getColumnCount();
+        noRows = 0; // Updated later
+
+        columnMaxFieldLengths = new int[noColumns + 1];
+        columns = new ResultColumn[noColumns];
+
+        // Add the row column
+        columnNames.add("rowNum");
+
+        // Get the names of all columns, and pick how to store each one
+        for (int i = 1; i <= noColumns; i++) {
+            columnNames.add(metadata.getColumnName(i));
+            columns[i - 1] = ResultColumn.forType(metadata.getColumnType(i), metadata.getScale(i));
+        }
+    }
+
+    // Reads the current row of resultSet into the columns
+    private void addRow(ResultSet resultSet) throws SQLException {
+
+        for (int i = 1; i <= noColumns; i++) {
+            columns[i - 1].append(resultSet, i);
+
+            // Text columns start out dictionary encoded. If it turns out most values are
+            // distinct, switch to plain strings since the dictionary isn't saving anything.
+            if (columns[i - 1] instanceof DictionaryColumn
+                    && ((DictionaryColumn) columns[i - 1]).tooManyDistinctValues()) {
+                columns[i - 1] = ((DictionaryColumn) columns[i - 1]).toStringColumn();
+            }
+        }
+
+        noRows++;
+    }
+
+    private void updateColumnWidths() {
+
+        // It could be that maxFieldLength needs to be bigger to accomodate the name of
+        // the column, if it's longer.
+        // Skip first column since that's our rowNum column
+        for (int i = 1; i < this.columnMaxFieldLengths.length; i++) {
+            String columnName = this.columnNames.get(i);
+            int currentMaxWidth = this.columns[i - 1].maxLength;
+            this.columnMaxFieldLengths[i] = Math.max(columnName.length(), currentMaxWidth);
+        }
+
+        // Manually do the rowNum column
+        this.columnMaxFieldLengths[0] = Math.max(this.columnNames.get(0).length(),
+                Integer.toString(noRows).length());
+    }
+
+    // Prints the rows straight to the terminal
+    public void printFields(int firstRow, int numRowsToPrint) {
+        printFields(TerminalFrame.STDOUT, firstRow, numRowsToPrint);
+        TerminalFrame.STDOUT.flush();
+    }
+
+    // Draws the rows into frame. Nothing is written until the frame is flushed.
+    public void printFields(TerminalFrame frame, int firstRow, int numRowsToPrint) {
+
+        final char BOX_TOP_LEFT = '┌';
+        final char BOX_TOP_RIGHT = '┐';
+        final char BOX_BOTTOM_LEFT = '└';
+        final char BOX_BOTTOM_RIGHT = '┘';
+        final char BOX_VERTICAL_LINE = '│';
+        final char BOX_VERTICAL_RIGHT_BAR = '├';
+        final char BOX_VERTICAL_LEFT_BAR = '┤';
+
+        // Soft preconditions checks
+        // Check if we are trying to access something before the beginning of the row
+        if (firstRow < firstStoredRow) {
+            firstRow = firstStoredRow;
+        }
+        // Check if number of rows requested exceeds the number of rows available
+        if (firstRow + numRowsToPrint - 1 > noRows) {
+            numRowsToPrint = noRows - firstRow + 1;
+        }
+
+        // Calculate the width of the table in characters
+        int tableWidth = 0;
+        for (int i : this.columnMaxFieldLengths) {
+            tableWidth += i;
+        }
+        tableWidth += columnNames.size() + 1; // Account for dividers and outside borders
+
+        // Print the top of boundary of the table
+        frame.print('\t').print(BOX_TOP_LEFT).horizontalLine(tableWidth - 2).print(BOX_TOP_RIGHT).println();
+
+        // Print the table headers (column names)
+        frame.print('\t').print(BOX_VERTICAL_LINE);
+        for (int i = 0; i < columnNames.size(); i++) {
+            String columnName = this.columnNames.get(i);
+            frame.print(columnName).pad(this.columnMaxFieldLengths[i] - columnName.length()).print(BOX_VERTICAL_LINE);
+        }
+        frame.println();
+
+        // Print the header divider bar
+        frame.print('\t').print(BOX_VERTICAL_RIGHT_BAR).horizontalLine(tableWidth - 2).print(BOX_VERTICAL_LEFT_BAR)
+                .println();
+
+        // Print the rows
+        for (int i = firstRow; i < firstRow + numRowsToPrint; i++) {
+            frame.print('\t').print(BOX_VERTICAL_LINE);
+            for (int j = 0; j < this.columnNames.size(); j++) {
+                String thisField = getField(i, j);
+                frame.print(thisField).pad(this.columnMaxFieldLengths[j] - thisField.length()).print(BOX_VERTICAL_LINE);
+            }
+            frame.println();
+        }
+
+        // Print the bottom boundary of the table
+        frame.print('\t').print(BOX_BOTTOM_LEFT).horizontalLine(tableWidth - 2).print(BOX_BOTTOM_RIGHT).println();
+
+        // Done!
+        frame.println();
+
+        return;
+
+    }
+
+}
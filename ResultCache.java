@@ -0,0 +1,112 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps the results of recent catalog queries, keyed by query id and the bound
+ * parameter values, so running the same query again shows instantly.
+ *
+ * Only fully loaded results of cacheable queries belong in here. The data only
+ * changes when the database is rebuilt, so rebuilding calls invalidateAll().
+ *
+ * Bounded both by number of entries and by the (estimated) heap used by the
+ * cached results. The least recently used entries are evicted first.
+ */
+class ResultCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<List<Object>, CachedResult> entries = new LinkedHashMap<List<Object>, CachedResult>(
+            16, 0.75f, true);
+    private long bytes = 0;
+
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    long invalidations = 0;
+
+    ResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    // The cached results for this query and parameters, or null
+    synchronized QueryResults get(String queryId, Object[] values) {
+
+        CachedResult cached = entries.get(key(queryId, values));
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.results;
+    }
+
+    // Caches results, evicting old entries if needed. Results bigger than the whole
+    // cache aren't kept.
+    synchronized void put(String queryId, Object[] values, QueryResults results) {
+
+        long size = results.estimatedBytes();
+        if (size > maxBytes || maxEntries <= 0) {
+            return;
+        }
+
+        CachedResult old = entries.put(key(queryId, values), new CachedResult(results, size));
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<List<Object>, CachedResult>> oldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().bytes;
+            oldest.remove();
+            evictions++;
+        }
+    }
+
+    // Drops everything. Called when the database is rebuilt.
+    synchronized void invalidateAll() {
+        entries.clear();
+        bytes = 0;
+        invalidations++;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    // "12 hits, 5 misses, 7 entries (340 KB)"
+    synchronized String statistics() {
+        return hits + " hits, " + misses + " misses, " + entries.size() + " entries (" + (bytes / 1024) + " KB)";
+    }
+
+    private static List<Object> key(String queryId, Object[] values) {
+        ArrayList<Object> key = new ArrayList<Object>(values.length + 1);
+        key.add(queryId);
+        key.addAll(Arrays.asList(values));
+        return key;
+    }
+
+    private static class CachedResult {
+        final QueryResults results;
+        final long bytes;
+
+        CachedResult(QueryResults results, long bytes) {
+            this.results = results;
+            this.bytes = bytes;
+        }
+    }
+
+}
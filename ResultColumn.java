@@ -0,0 +1,411 @@
+
+// Util imports
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+// SQL imports
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/*
+ * One column of a QueryResults, stored column-wise instead of as a String per
+ * cell. Values are only turned back into strings when they get printed.
+ *
+ * Row indexes are relative to the first row still stored (QueryResults may drop
+ * old rows when streaming), so index 0 is always the oldest row we still have.
+ */
+abstract class ResultColumn {
+
+    // Arrays start this big and double when they fill up
+    static final int INITIAL_CAPACITY = 64;
+
+    // Once a text column has at least this many rows, check whether the dictionary
+    // is actually saving anything. If more than half the values are distinct it's
+    // cheaper to just keep the strings. This needs to be big enough that columns
+    // with a few thousand distinct values (flight numbers, tail numbers) have had
+    // a chance to start repeating.
+    static final int DICTIONARY_CHECK_ROWS = 16384;
+
+    int size = 0;
+
+    // Longest value (as printed) seen so far in this column. Only grows.
+    int maxLength = 0;
+
+    // Null flags, one bit per row
+    long[] nulls = new long[INITIAL_CAPACITY / 64];
+
+    // Picks the storage type for a column based on its SQL type. Anything we don't
+    // have a special case for is stored as dictionary encoded text.
+    static ResultColumn forType(int sqlType, int scale) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return new LongColumn();
+            case Types.TIMESTAMP:
+                return new DateTimeColumn(scale);
+            case Types.DATE:
+                return new DateColumn();
+            default:
+                return new DictionaryColumn();
+        }
+    }
+
+    // Reads column columnIndex of the current row of resultSet and adds it to the end
+    abstract void append(ResultSet resultSet, int columnIndex) throws SQLException;
+
+    // Adds a value that didn't come from a ResultSet (see MemoryDatabase). null is
+    // NULL, otherwise a Number, LocalDateTime, LocalDate or String to match the column.
+    abstract void appendValue(Object value);
+
+    // The value at row (relative to the first stored row), formatted for printing.
+    // Nulls come back as "NULL".
+    abstract String get(int row);
+
+    // Removes the first count rows, shifting the rest down
+    abstract void dropFirst(int count);
+
+    // Rough number of bytes this column is using on the heap
+    abstract long estimatedBytes();
+
+    boolean isNull(int row) {
+        return (nulls[row >> 6] & (1L << row)) != 0;
+    }
+
+    // Records whether the row just appended (at index size) is null and updates the
+    // max length. Subclasses call this from append() before bumping size.
+    void setNull(int row, boolean isNull) {
+        if ((row >> 6) >= nulls.length) {
+            nulls = Arrays.copyOf(nulls, nulls.length * 2);
+        }
+        if (isNull) {
+            nulls[row >> 6] |= (1L << row);
+            maxLength = Math.max(maxLength, 4); // "NULL"
+        } else {
+            nulls[row >> 6] &= ~(1L << row);
+        }
+    }
+
+    // Shifts the null flags down by count rows
+    void dropFirstNulls(int count) {
+        long[] shifted = new long[nulls.length];
+        for (int i = count; i < size; i++) {
+            if (isNull(i)) {
+                int j = i - count;
+                shifted[j >> 6] |= (1L << j);
+            }
+        }
+        nulls = shifted;
+    }
+
+    // Grows capacity for another row if needed, returns the new capacity
+    static int grow(int capacity, int size) {
+        return size < capacity ? capacity : capacity * 2;
+    }
+
+}
+
+// Integer columns (int, bigint, smallint, tinyint) as a primitive long array
+class LongColumn extends ResultColumn {
+
+    long[] values = new long[INITIAL_CAPACITY];
+
+    @Override
+    void append(ResultSet resultSet, int columnIndex) throws SQLException {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, grow(values.length, size));
+        }
+        long value = resultSet.getLong(columnIndex);
+        boolean isNull = resultSet.wasNull();
+        values[size] = value;
+        setNull(size, isNull);
+        if (!isNull) {
+            maxLength = Math.max(maxLength, Long.toString(value).length());
+        }
+        size++;
+    }
+
+    @Override
+    void appendValue(Object value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, grow(values.length, size));
+        }
+        setNull(size, value == null);
+        if (value != null) {
+            values[size] = ((Number) value).longValue();
+            maxLength = Math.max(maxLength, Long.toString(values[size]).length());
+        }
+        size++;
+    }
+
+    @Override
+    String get(int row) {
+        return isNull(row) ? "NULL" : Long.toString(values[row]);
+    }
+
+    @Override
+    void dropFirst(int count) {
+        dropFirstNulls(count);
+        System.arraycopy(values, count, values, 0, size - count);
+        size -= count;
+    }
+
+    @Override
+    long estimatedBytes() {
+        return 16 + values.length * 8L + nulls.length * 8L;
+    }
+
+}
+
+// datetime/datetime2 columns. Stored as seconds since the epoch (in UTC, so no
+// timezone shifting happens) plus nanoseconds, and printed the same way the
+// driver's getString() does: "yyyy-MM-dd HH:mm:ss" plus scale fractional digits.
+class DateTimeColumn extends ResultColumn {
+
+    long[] seconds = new long[INITIAL_CAPACITY];
+    int[] nanos = new int[INITIAL_CAPACITY];
+    final int scale;
+
+    DateTimeColumn(int scale) {
+        this.scale = Math.max(0, Math.min(scale, 9));
+    }
+
+    @Override
+    void append(ResultSet resultSet, int columnIndex) throws SQLException {
+        Timestamp value = resultSet.getTimestamp(columnIndex);
+        appendValue(value == null ? null : value.toLocalDateTime());
+    }
+
+    @Override
+    void appendValue(Object value) {
+        if (size == seconds.length) {
+            seconds = Arrays.copyOf(seconds, grow(seconds.length, size));
+            nanos = Arrays.copyOf(nanos, seconds.length);
+        }
+        setNull(size, value == null);
+        if (value != null) {
+            LocalDateTime dateTime = (LocalDateTime) value;
+            seconds[size] = dateTime.toEpochSecond(ZoneOffset.UTC);
+            nanos[size] = dateTime.getNano();
+            maxLength = Math.max(maxLength, 19 + (scale > 0 ? scale + 1 : 0));
+        }
+        size++;
+    }
+
+    @Override
+    String get(int row) {
+        if (isNull(row)) {
+            return "NULL";
+        }
+        LocalDateTime dateTime = LocalDateTime.ofEpochSecond(seconds[row], nanos[row], ZoneOffset.UTC);
+        StringBuilder sb = new StringBuilder(30);
+        sb.append(dateTime.toLocalDate()).append(' ');
+        appendTwoDigits(sb, dateTime.getHour()).append(':');
+        appendTwoDigits(sb, dateTime.getMinute()).append(':');
+        appendTwoDigits(sb, dateTime.getSecond());
+        if (scale > 0) {
+            // Nanoseconds padded to 9 digits, then cut down to the column's scale
+            String fraction = Integer.toString(1_000_000_000 + nanos[row]).substring(1);
+            sb.append('.').append(fraction, 0, scale);
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+        if (value < 10) {
+            sb.append('0');
+        }
+        return sb.append(value);
+    }
+
+    @Override
+    void dropFirst(int count) {
+        dropFirstNulls(count);
+        System.arraycopy(seconds, count, seconds, 0, size - count);
+        System.arraycopy(nanos, count, nanos, 0, size - count);
+        size -= count;
+    }
+
+    @Override
+    long estimatedBytes() {
+        return 32 + seconds.length * 8L + nanos.length * 4L + nulls.length * 8L;
+    }
+
+}
+
+// date columns, stored as days since the epoch
+class DateColumn extends ResultColumn {
+
+    long[] days = new long[INITIAL_CAPACITY];
+
+    @Override
+    void append(ResultSet resultSet, int columnIndex) throws SQLException {
+        Date value = resultSet.getDate(columnIndex);
+        appendValue(value == null ? null : value.toLocalDate());
+    }
+
+    @Override
+    void appendValue(Object value) {
+        if (size == days.length) {
+            days = Arrays.copyOf(days, grow(days.length, size));
+        }
+        setNull(size, value == null);
+        if (value != null) {
+            days[size] = ((LocalDate) value).toEpochDay();
+            maxLength = Math.max(maxLength, 10);
+        }
+        size++;
+    }
+
+    @Override
+    String get(int row) {
+        return isNull(row) ? "NULL" : LocalDate.ofEpochDay(days[row]).toString();
+    }
+
+    @Override
+    void dropFirst(int count) {
+        dropFirstNulls(count);
+        System.arraycopy(days, count, days, 0, size - count);
+        size -= count;
+    }
+
+    @Override
+    long estimatedBytes() {
+        return 16 + days.length * 8L + nulls.length * 8L;
+    }
+
+}
+
+// Text columns. Every distinct value is stored once in the dictionary and each
+// row just holds an int code pointing into it. Great for things like airline,
+// origin and destination that repeat thousands of times.
+class DictionaryColumn extends ResultColumn {
+
+    int[] codes = new int[INITIAL_CAPACITY];
+    ArrayList<String> dictionary = new ArrayList<String>();
+    HashMap<String, Integer> codeLookup = new HashMap<String, Integer>();
+
+    @Override
+    void append(ResultSet resultSet, int columnIndex) throws SQLException {
+        appendValue(resultSet.getString(columnIndex));
+    }
+
+    @Override
+    void appendValue(Object object) {
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, grow(codes.length, size));
+        }
+        String value = object == null ? null : object.toString();
+        setNull(size, value == null);
+        if (value != null) {
+            Integer code = codeLookup.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                codeLookup.put(value, code);
+                maxLength = Math.max(maxLength, value.length());
+            }
+            codes[size] = code;
+        }
+        size++;
+    }
+
+    @Override
+    String get(int row) {
+        return isNull(row) ? "NULL" : dictionary.get(codes[row]);
+    }
+
+    // True if this column has enough distinct values that a plain StringColumn
+    // would use less memory
+    boolean tooManyDistinctValues() {
+        return size >= DICTIONARY_CHECK_ROWS && dictionary.size() > size / 2;
+    }
+
+    // Copies this column into a plain StringColumn
+    StringColumn toStringColumn() {
+        StringColumn column = new StringColumn();
+        column.values = new String[codes.length];
+        for (int i = 0; i < size; i++) {
+            column.values[i] = isNull(i) ? null : dictionary.get(codes[i]);
+        }
+        column.nulls = nulls;
+        column.size = size;
+        column.maxLength = maxLength;
+        return column;
+    }
+
+    @Override
+    void dropFirst(int count) {
+        dropFirstNulls(count);
+        System.arraycopy(codes, count, codes, 0, size - count);
+        size -= count;
+    }
+
+    @Override
+    long estimatedBytes() {
+        long bytes = 64 + codes.length * 4L + nulls.length * 8L;
+        for (String value : dictionary) {
+            // String + backing array + dictionary slot + hash map entry
+            bytes += 40 + value.length() + 8 + 48;
+        }
+        return bytes;
+    }
+
+}
+
+// Text columns with mostly distinct values (ids, names, emails). Just the strings.
+class StringColumn extends ResultColumn {
+
+    String[] values = new String[INITIAL_CAPACITY];
+
+    @Override
+    void append(ResultSet resultSet, int columnIndex) throws SQLException {
+        appendValue(resultSet.getString(columnIndex));
+    }
+
+    @Override
+    void appendValue(Object object) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, grow(values.length, size));
+        }
+        String value = object == null ? null : object.toString();
+        setNull(size, value == null);
+        values[size] = value;
+        if (value != null) {
+            maxLength = Math.max(maxLength, value.length());
+        }
+        size++;
+    }
+
+    @Override
+    String get(int row) {
+        return values[row] == null ? "NULL" : values[row];
+    }
+
+    @Override
+    void dropFirst(int count) {
+        dropFirstNulls(count);
+        System.arraycopy(values, count, values, 0, size - count);
+        Arrays.fill(values, size - count, size, null);
+        size -= count;
+    }
+
+    @Override
+    long estimatedBytes() {
+        long bytes = 16 + values.length * 4L + nulls.length * 8L;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != null) {
+                bytes += 40 + values[i].length();
+            }
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,454 @@
+// Util imports
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Locale;
+// SQL imports
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/*
+ * Writes a whole result to a file (the [E] on the results screen), a row at a
+ * time, so exporting all of Flights takes no more memory than exporting one
+ * row. Rows come straight off the cursor (a ResultSet read forward only) and
+ * go through a 64 KB buffer into a FileChannel.
+ *
+ * Formats:
+ * - CSV: a header row, then one row per row. NULL is an empty field.
+ * - JSONL: one object per row, numbers as numbers, NULL as null.
+ * - COLUMNAR: typed binary, laid out like a DatabaseSnapshot table file so
+ *   it's small and quick to read back:
+ *     int magic ("338X"), int version
+ *     varint column count, then per column its name and a ValueKind byte
+ *     groups of up to ROWS_PER_GROUP rows: varint row count, then each
+ *       column as DatabaseSnapshot.writeColumn writes it (NULL bitmap, then
+ *       zigzag varints, decimals, or a dictionary and indexes for text)
+ *     a varint 0 where the next group would be, since the row count isn't
+ *       known until the end
+ *   Big-endian, strings are varint length then UTF-8.
+ */
+class ResultExporter {
+
+    enum Format {
+        CSV("csv"), JSONL("jsonl"), COLUMNAR("cols");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    static final int MAGIC = 0x33333858; // "338X"
+    static final int VERSION = 1;
+    static final int ROWS_PER_GROUP = DatabaseSnapshot.ROWS_PER_GROUP;
+
+    static final int BUFFER_BYTES = 64 * 1024;
+
+    // Writes every row of resultSet to path (replacing it) as format. resultSet is
+    // read to the end but not closed.
+    static ExportReport export(ResultSet resultSet, Format format, Path path) throws SQLException, IOException {
+        return export(new ResultSetRows(resultSet), format, path);
+    }
+
+    // Same for results that are already in memory (there's no cursor with --memory)
+    static ExportReport export(QueryResults results, Format format, Path path) throws SQLException, IOException {
+        return export(new QueryResultsRows(results), format, path);
+    }
+
+    private static ExportReport export(ExportRows rows, Format format, Path path) throws SQLException, IOException {
+
+        ExportReport report = new ExportReport(path, format);
+        long start = System.nanoTime();
+
+        try (ChannelOutput out = new ChannelOutput(path)) {
+            switch (format) {
+                case CSV:
+                    report.rows = writeCsv(rows, out);
+                    break;
+                case JSONL:
+                    report.rows = writeJsonLines(rows, out);
+                    break;
+                case COLUMNAR:
+                    report.rows = writeColumnar(rows, out);
+                    break;
+            }
+            out.flush();
+            report.bytes = out.bytesWritten;
+        }
+
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private static long writeCsv(ExportRows rows, ChannelOutput out) throws SQLException, IOException {
+
+        StringBuilder line = new StringBuilder();
+        for (int c = 0; c < rows.names.length; c++) {
+            if (c > 0) {
+                line.append(',');
+            }
+            BatchRunner.appendCsv(line, rows.names[c]);
+        }
+        out.writeText(line.append('\n'));
+
+        long count = 0;
+        while (rows.next()) {
+            line.setLength(0);
+            for (int c = 0; c < rows.names.length; c++) {
+                if (c > 0) {
+                    line.append(',');
+                }
+                Object value = rows.value(c);
+                if (value != null) {
+                    BatchRunner.appendCsv(line, text(value));
+                }
+            }
+            out.writeText(line.append('\n'));
+            count++;
+        }
+        return count;
+    }
+
+    private static long writeJsonLines(ExportRows rows, ChannelOutput out) throws SQLException, IOException {
+
+        // The keys are the same on every line
+        String[] keys = new String[rows.names.length];
+        for (int c = 0; c < keys.length; c++) {
+            keys[c] = (c == 0 ? "{" : ", ") + QueryMetrics.quote(rows.names[c]) + ": ";
+        }
+
+        StringBuilder line = new StringBuilder();
+        long count = 0;
+        while (rows.next()) {
+            line.setLength(0);
+            for (int c = 0; c < keys.length; c++) {
+                line.append(keys[c]);
+                Object value = rows.value(c);
+                if (value == null) {
+                    line.append("null");
+                } else if (value instanceof Long || value instanceof BigDecimal) {
+                    line.append(text(value));
+                } else {
+                    line.append(QueryMetrics.quote(text(value)));
+                }
+            }
+            out.writeText(line.append(keys.length == 0 ? "{}\n" : "}\n"));
+            count++;
+        }
+        return count;
+    }
+
+    private static long writeColumnar(ExportRows rows, ChannelOutput channel) throws SQLException, IOException {
+
+        DataOutputStream out = new DataOutputStream(channel);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        DatabaseSnapshot.writeVarint(out, rows.names.length);
+        for (int c = 0; c < rows.names.length; c++) {
+            DatabaseSnapshot.writeString(out, rows.names[c]);
+            out.writeByte(rows.kinds[c].ordinal());
+        }
+
+        // Only ever one group of rows held at a time
+        ArrayList<Object[]> group = new ArrayList<Object[]>(ROWS_PER_GROUP);
+        long count = 0;
+        while (true) {
+            boolean more = rows.next();
+            if (more) {
+                Object[] row = new Object[rows.names.length];
+                for (int c = 0; c < row.length; c++) {
+                    row[c] = rows.value(c);
+                }
+                group.add(row);
+                count++;
+            }
+            if (group.size() == ROWS_PER_GROUP || (!more && !group.isEmpty())) {
+                DatabaseSnapshot.writeVarint(out, group.size());
+                for (int c = 0; c < rows.names.length; c++) {
+                    DatabaseSnapshot.writeColumn(out, group, c, rows.kinds[c]);
+                }
+                group.clear();
+            }
+            if (!more) {
+                break;
+            }
+        }
+        DatabaseSnapshot.writeVarint(out, 0);
+        out.flush();
+
+        return count;
+    }
+
+    // A value as text for CSV and JSON. Times look like they do on screen.
+    static String text(Object value) {
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        } else if (value instanceof LocalDateTime) {
+            LocalDateTime dateTime = (LocalDateTime) value;
+            String text = String.format(Locale.ROOT, "%s %02d:%02d:%02d", dateTime.toLocalDate(), dateTime.getHour(),
+                    dateTime.getMinute(), dateTime.getSecond());
+            if (dateTime.getNano() != 0) {
+                String fraction = Integer.toString(1_000_000_000 + dateTime.getNano()).substring(1);
+                text += "." + fraction.replaceFirst("0+$", "");
+            }
+            return text;
+        }
+        return value.toString();
+    }
+
+    // How a column of this SQL type is exported (same kinds as the snapshot)
+    static DatabaseSnapshot.ValueKind kindOf(int sqlType) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return DatabaseSnapshot.ValueKind.INTEGER;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DatabaseSnapshot.ValueKind.DECIMAL;
+            case Types.TIMESTAMP:
+                return DatabaseSnapshot.ValueKind.DATE_TIME;
+            case Types.DATE:
+                return DatabaseSnapshot.ValueKind.DATE;
+            default:
+                return DatabaseSnapshot.ValueKind.TEXT;
+        }
+    }
+
+}
+
+// The rows being exported, one at a time. Values are null, or a Long,
+// BigDecimal, LocalDateTime, LocalDate or String depending on the column's kind.
+abstract class ExportRows {
+
+    String[] names;
+    DatabaseSnapshot.ValueKind[] kinds;
+
+    // Moves to the next row, false once there are no more
+    abstract boolean next() throws SQLException;
+
+    // Column c (0-based) of the current row
+    abstract Object value(int c) throws SQLException;
+
+}
+
+// Rows straight off a cursor
+class ResultSetRows extends ExportRows {
+
+    private final ResultSet resultSet;
+
+    ResultSetRows(ResultSet resultSet) throws SQLException {
+        this.resultSet = resultSet;
+
+        ResultSetMetaData metadata = resultSet.getMetaData();
+        names = new String[metadata.getColumnCount()];
+        kinds = new DatabaseSnapshot.ValueKind[names.length];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = metadata.getColumnLabel(c + 1);
+            kinds[c] = ResultExporter.kindOf(metadata.getColumnType(c + 1));
+        }
+    }
+
+    @Override
+    boolean next() throws SQLException {
+        return resultSet.next();
+    }
+
+    @Override
+    Object value(int c) throws SQLException {
+        int column = c + 1;
+        switch (kinds[c]) {
+            case INTEGER: {
+                long value = resultSet.getLong(column);
+                return resultSet.wasNull() ? null : value;
+            }
+            case DECIMAL:
+                return resultSet.getBigDecimal(column);
+            case DATE_TIME: {
+                Timestamp value = resultSet.getTimestamp(column);
+                return value == null ? null : value.toLocalDateTime();
+            }
+            case DATE: {
+                Date value = resultSet.getDate(column);
+                return value == null ? null : value.toLocalDate();
+            }
+            default:
+                return resultSet.getString(column);
+        }
+    }
+
+}
+
+// Rows of results that are already in memory, read back out of their columns
+class QueryResultsRows extends ExportRows {
+
+    private final QueryResults results;
+    private int row = -1; // Index into the stored rows
+
+    QueryResultsRows(QueryResults results) {
+        this.results = results;
+
+        names = new String[results.noColumns];
+        kinds = new DatabaseSnapshot.ValueKind[names.length];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = results.columnNames.get(c + 1); // After rowNum
+            ResultColumn column = results.columns[c];
+            kinds[c] = column instanceof LongColumn ? DatabaseSnapshot.ValueKind.INTEGER
+                    : column instanceof DateTimeColumn ? DatabaseSnapshot.ValueKind.DATE_TIME
+                            : column instanceof DateColumn ? DatabaseSnapshot.ValueKind.DATE
+                                    : DatabaseSnapshot.ValueKind.TEXT;
+        }
+    }
+
+    @Override
+    boolean next() {
+        row++;
+        return row < results.noRows - results.firstStoredRow + 1;
+    }
+
+    @Override
+    Object value(int c) {
+        ResultColumn column = results.columns[c];
+        if (column.isNull(row)) {
+            return null;
+        }
+        switch (kinds[c]) {
+            case INTEGER:
+                return ((LongColumn) column).values[row];
+            case DATE_TIME:
+                return LocalDateTime.ofEpochSecond(((DateTimeColumn) column).seconds[row],
+                        ((DateTimeColumn) column).nanos[row], ZoneOffset.UTC);
+            case DATE:
+                return LocalDate.ofEpochDay(((DateColumn) column).days[row]);
+            default:
+                return column.get(row);
+        }
+    }
+
+}
+
+/*
+ * An OutputStream over a FileChannel, through a direct buffer that's written
+ * out whenever it fills. Text goes straight into the buffer through a UTF-8
+ * encoder rather than via a byte array per line.
+ */
+class ChannelOutput extends OutputStream {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(ResultExporter.BUFFER_BYTES);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    long bytesWritten = 0;
+
+    ChannelOutput(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    void writeText(CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                break;
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+}
+
+// How an export went
+class ExportReport {
+
+    final Path path;
+    final ResultExporter.Format format;
+    long rows = 0;
+    long bytes = 0;
+    long elapsedNanos = 0;
+
+    ExportReport(Path path, ResultExporter.Format format) {
+        this.path = path;
+        this.format = format;
+    }
+
+    String summary() {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        return String.format("Exported %d rows to %s (%s, %.1f KB) in %.2f s, %.0f rows/s, %.1f MB/s", rows, path,
+                format.name(), bytes / 1024.0, seconds, rows / seconds, bytes / seconds / (1024 * 1024));
+    }
+
+}
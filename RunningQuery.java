@@ -0,0 +1,133 @@
+// Util imports
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A query running in the background, so the menu can show how it's going and
+ * let the user cancel it instead of sitting frozen in executeQuery().
+ *
+ * The work (executeQuery() and reading the rows into a QueryResults) runs on a
+ * virtual thread when the JVM has them (Java 21+), or an ordinary daemon thread
+ * otherwise. Virtual threads are looked up by reflection so this still compiles
+ * and runs on the Java 17 we build with.
+ *
+ * cancel() calls Statement.cancel(), which asks the server to stop the query.
+ * The session stays open (the driver just tells the server to abandon the
+ * statement), so the connection can go back to the pool and be used again.
+ */
+class RunningQuery {
+
+    // Runs the query and reads its rows, adding to rowsFetched as it goes
+    interface Work {
+        QueryResults run(AtomicInteger rowsFetched) throws SQLException;
+    }
+
+    // Shared by every query. Each query gets its own thread either way.
+    // virtualThreads is set by newExecutor() if it found them.
+    static boolean virtualThreads = false;
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    final AtomicInteger rowsFetched = new AtomicInteger();
+    final int timeoutSeconds;
+    private final long startNanos = System.nanoTime();
+    private final Statement statement;
+    private final Future<QueryResults> future;
+    private volatile boolean cancelled = false;
+
+    // Starts work straight away. statement is what cancel() cancels.
+    RunningQuery(Statement statement, int timeoutSeconds, Work work) {
+        this.statement = statement;
+        this.timeoutSeconds = timeoutSeconds;
+        this.future = EXECUTOR.submit(() -> work.run(rowsFetched));
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if there is one, otherwise a
+    // thread per query like it would give us, just heavier
+    private static ExecutorService newExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            virtualThreads = true;
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "query");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Waits up to millis for the query to finish. True if it has.
+    boolean await(long millis) {
+        try {
+            future.get(millis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // Picked up by results()
+        }
+        return true;
+    }
+
+    long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    // Asks the server to stop the query. The query's thread then fails with a
+    // SQLException, which results() reports as a cancellation.
+    void cancel() {
+        cancelled = true;
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            // It may have finished in the meantime, results() sorts it out
+        }
+    }
+
+    boolean wasCancelled() {
+        return cancelled;
+    }
+
+    // Whether the query failed because it ran past its timeout (Statement.setQueryTimeout).
+    // Drivers don't all throw SQLTimeoutException for that, so going over the time
+    // counts too.
+    boolean timedOut(SQLException e) {
+        return e instanceof SQLTimeoutException
+                || (timeoutSeconds > 0 && elapsedNanos() >= TimeUnit.SECONDS.toNanos(timeoutSeconds));
+    }
+
+    // The finished query's results (waiting for them if need be), or its
+    // SQLException. Any other exception is passed on as it was.
+    QueryResults results() throws SQLException {
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // Can't leave the query running on the connection, so keep waiting
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+
+// Util imports
+import java.util.HashMap;
+// SQL imports
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Parameter values for running catalog queries without a user to ask, picked
+ * from whatever is in the database so the queries actually find something.
+ * Used when timing queries (index provisioning) and checking them (parity).
+ *
+ * Each query with parameters has a lookup returning one row, with one column
+ * per parameter in order. They're written for SQL Server and translated for
+ * other backends.
+ */
+class SampleParameters {
+
+    private static final HashMap<String, String> LOOKUPS = new HashMap<String, String>();
+
+    static {
+        LOOKUPS.put("1", "SELECT TOP 1 SIN FROM Fly");
+        LOOKUPS.put("2.1", "SELECT TOP 1 destination FROM Flights");
+        LOOKUPS.put("7", "SELECT TOP 1 origin FROM Flights");
+        LOOKUPS.put("8", "SELECT TOP 1 Passenger.phoneNum FROM Luggage JOIN Passenger ON Luggage.passNum = Passenger.passNum");
+        LOOKUPS.put("9", "SELECT TOP 1 airline FROM Planes WHERE airline IS NOT NULL");
+        LOOKUPS.put("10", "SELECT TOP 1 origin FROM Flights");
+        LOOKUPS.put("12", "SELECT TOP 1 Book.flightNum FROM Book JOIN Luggage ON Book.passNum = Luggage.passNum");
+        LOOKUPS.put("13", "SELECT TOP 1 SIN FROM Service");
+        LOOKUPS.put("15", "SELECT TOP 1 origin, destination FROM Flights");
+    }
+
+    // Values for query's parameters (as QueryParameter.parse would give them). Throws
+    // IllegalStateException if a query with parameters has no lookup, and
+    // SQLException if the lookup finds nothing.
+    static Object[] forQuery(QueryDefinition query, Connection connection, Backend backend) throws SQLException {
+
+        Object[] values = new Object[query.parameters.size()];
+        if (values.length == 0) {
+            return values;
+        }
+
+        String lookup = LOOKUPS.get(query.id);
+        if (lookup == null) {
+            throw new IllegalStateException("No sample parameters for query " + query.id);
+        }
+
+        try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(backend.translate(lookup))) {
+            if (!resultSet.next()) {
+                throw new SQLException("No sample parameters for query " + query.id + ", is the database empty?");
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] = query.parameters.get(i).parse(resultSet.getString(i + 1));
+            }
+        }
+
+        return values;
+    }
+
+}
@@ -0,0 +1,300 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+// SQL imports
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Moves the TEXT columns the menu queries filter, join or group on to sized
+ * VARCHARs. SQL Server can't compare or GROUP BY TEXT, so the queries used to
+ * CAST them on every row, which also meant no index could ever be used for
+ * something like looking a passenger up by phone number.
+ *
+ * The sizes are the ones the old CASTs used, so the query results don't change.
+ * populate.sql itself is left alone: rewrite() changes the CREATE TABLEs as
+ * they're read, both when rebuilding and when loading the in-memory database.
+ *
+ * A database built before this can be migrated in place with migrate()
+ * (--migrate-schema), which times the affected queries before (with their old
+ * CASTs) and after.
+ */
+class SchemaMigration {
+
+    // The columns to change, in order
+    static final List<ColumnChange> CHANGES = Arrays.asList(
+            new ColumnChange("Airports", "airportName", "VARCHAR(200)"),
+            new ColumnChange("Airports", "country", "VARCHAR(10)"),
+            new ColumnChange("Planes", "model", "VARCHAR(200)"),
+            new ColumnChange("Planes", "manufacturer", "VARCHAR(200)"),
+            new ColumnChange("Passenger", "citizen", "VARCHAR(10)"),
+            new ColumnChange("Passenger", "first", "VARCHAR(50)"),
+            new ColumnChange("Passenger", "last", "VARCHAR(50)"),
+            new ColumnChange("Passenger", "phoneNum", "VARCHAR(50)"),
+            new ColumnChange("Employee", "first", "VARCHAR(50)"),
+            new ColumnChange("Employee", "last", "VARCHAR(50)"));
+
+    // Runs of each query when timing, the median is reported
+    static final int LATENCY_RUNS = 3;
+
+    // The affected catalog queries as they were on the TEXT columns, for the before
+    // timings
+    static final LinkedHashMap<String, String> LEGACY_SQL = new LinkedHashMap<String, String>();
+
+    static {
+        LEGACY_SQL.put("3", """
+                SELECT CAST(Employee.SIN AS VARCHAR(50)) as SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, COUNT(*) as jobsCompleted
+                FROM Employee JOIN
+                (SELECT Service.SIN FROM Service
+                UNION ALL
+                SELECT Guide.SIN FROM Guide
+                UNION ALL
+                SELECT Fly.SIN FROM Fly
+                UNION ALL
+                SELECT Attend.SIN FROM Attend) temp_table
+                ON Employee.SIN = temp_table.SIN
+                GROUP BY CAST(Employee.SIN AS VARCHAR(50)), CAST(Employee.first AS VARCHAR(50)), CAST(Employee.last AS VARCHAR(50))
+                ORDER BY COUNT(*) DESC, last ASC
+                """);
+        LEGACY_SQL.put("5", """
+                SELECT COUNT(*) AS numPassengersFlyingHome, CAST(Passenger.citizen AS VARCHAR(10)) AS country FROM Passenger
+                JOIN Book ON Passenger.passNum = Book.passNum
+                JOIN Flights ON Book.flightNum = Flights.flightNum
+                JOIN Airports ON Flights.destination = Airports.icao
+                WHERE CAST(Airports.country AS VARCHAR(10)) = CAST(Passenger.citizen AS VARCHAR(10))
+                GROUP BY CAST(Passenger.citizen AS VARCHAR(10))
+                ORDER BY numPassengersFlyingHome DESC
+                """);
+        LEGACY_SQL.put("6", """
+                SELECT CAST(Planes.manufacturer AS VARCHAR(200)) as manufacturer, CAST(Planes.model AS VARCHAR(200)) as model, COUNT(*) as numberOfServices FROM Service
+                JOIN Planes ON Service.tailNum = Planes.tailNum
+                WHERE Planes.model IS NOT NULL
+                GROUP BY CAST(Planes.model AS VARCHAR(200)), CAST(Planes.manufacturer AS VARCHAR(200))
+                ORDER BY numberOfServices DESC
+                """);
+        LEGACY_SQL.put("8", """
+                SELECT Luggage.ID, Luggage.type FROM Passenger
+                JOIN Luggage on Passenger.passNum = Luggage.passNum
+                WHERE CAST(Passenger.phoneNum AS VARCHAR(50)) = ?
+                ORDER BY Luggage.ID ASC
+                """);
+        LEGACY_SQL.put("10", """
+                SELECT Flights.destination as airportCode, CAST(Airports.airportName AS VARCHAR(200)) as airportName, COUNT(*) as numberOfFlights FROM Flights
+                JOIN Airports ON Flights.destination = Airports.icao
+                WHERE Flights.origin = ?
+                GROUP BY Flights.destination, CAST(Airports.airportName AS VARCHAR(200))
+                ORDER BY numberOfFlights DESC
+                """);
+        LEGACY_SQL.put("14.1", """
+                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, Employee.airline FROM Employee
+                JOIN Fly ON Employee.SIN = Fly.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """);
+        LEGACY_SQL.put("14.2", """
+                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) AS last, Employee.icao AS airport FROM Employee
+                JOIN Service ON Employee.SIN = Service.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """);
+        LEGACY_SQL.put("14.3", """
+                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, Employee.icao AS airport FROM Employee
+                JOIN Guide ON Employee.SIN = Guide.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """);
+        LEGACY_SQL.put("14.4", """
+                SELECT DISTINCT Employee.SIN, CAST(Employee.first AS VARCHAR(50)) as first, CAST(Employee.last AS VARCHAR(50)) as last, Employee.airline FROM Employee
+                JOIN Attend ON Employee.SIN = Attend.SIN
+                ORDER BY last, first, Employee.SIN ASC
+                """);
+        LEGACY_SQL.put("14.5", """
+                WITH allEmployees AS (
+                    SELECT 'Pilot' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Fly ON Employee.SIN = Fly.SIN
+                    UNION ALL
+                    SELECT 'Maintenance' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Service ON Employee.SIN = Service.SIN
+                    UNION ALL
+                    SELECT 'ATC' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Guide ON Employee.SIN = Guide.SIN
+                    UNION ALL
+                    SELECT 'Attendant' AS type, Employee.first, Employee.last, Employee.SIN FROM Employee
+                    JOIN Attend ON Employee.SIN = Attend.SIN
+                )
+                SELECT DISTINCT allEmployees.type, CAST(allEmployees.last AS VARCHAR(50)) as last, CAST(allEmployees.first AS VARCHAR(50)) as first, allEmployees.SIN FROM allEmployees
+                ORDER BY last, first, allEmployees.SIN ASC
+                """);
+    }
+
+    // statement with the changed column types, if it's a CREATE TABLE with any of
+    // them. Anything else comes back as it was.
+    static String rewrite(String statement) {
+
+        Matcher create = ScriptSchema.CREATE_TABLE_PATTERN.matcher(statement);
+        if (!create.matches()) {
+            return statement;
+        }
+
+        for (ColumnChange change : CHANGES) {
+            if (change.table.equalsIgnoreCase(create.group(1))) {
+                statement = change.pattern.matcher(statement).replaceFirst("$1" + change.type);
+            }
+        }
+        return statement;
+    }
+
+    private final Connection connection;
+    private final QueryCatalog catalog;
+
+    SchemaMigration(Connection connection, QueryCatalog catalog) {
+        this.connection = connection;
+        this.catalog = catalog;
+    }
+
+    // Changes the columns of the database as it is now, adds the indexes that needed
+    // them, and times the affected queries on either side. Columns already changed
+    // are left alone (and if they all are, nothing is timed).
+    ArrayList<String> migrate() throws SQLException {
+
+        ArrayList<String> report = new ArrayList<String>();
+
+        // Nullability has to be given again in ALTER COLUMN, or it becomes NULL
+        ArrayList<String> alters = new ArrayList<String>();
+        try (PreparedStatement columns = connection.prepareStatement(
+                "SELECT DATA_TYPE, IS_NULLABLE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ? AND COLUMN_NAME = ?")) {
+            for (ColumnChange change : CHANGES) {
+                columns.setString(1, change.table);
+                columns.setString(2, change.column);
+                try (ResultSet resultSet = columns.executeQuery()) {
+                    if (!resultSet.next()) {
+                        throw new SQLException("Column " + change.table + "." + change.column + " doesn't exist");
+                    }
+                    if (resultSet.getString(1).equalsIgnoreCase("text")) {
+                        alters.add("ALTER TABLE " + change.table + " ALTER COLUMN " + change.column + " " + change.type
+                                + (resultSet.getString(2).equals("YES") ? " NULL" : " NOT NULL"));
+                    }
+                }
+            }
+        }
+
+        if (alters.isEmpty()) {
+            report.add("\tThe database already has the typed columns, nothing to do.");
+            return report;
+        }
+
+        LinkedHashMap<String, Long> before = new LinkedHashMap<String, Long>();
+        LinkedHashMap<String, Object[]> values = new LinkedHashMap<String, Object[]>();
+        for (String id : LEGACY_SQL.keySet()) {
+            values.put(id, SampleParameters.forQuery(catalog.get(id), connection, SqlServerBackend.DIALECT));
+            before.put(id, time(catalog.get(id), LEGACY_SQL.get(id), values.get(id)));
+        }
+
+        long start = System.nanoTime();
+        boolean oldAutoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            for (String alter : alters) {
+                statement.execute(alter);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(oldAutoCommit);
+        }
+        report.add(String.format("\t%d columns changed in %.2f s", alters.size(), (System.nanoTime() - start) / 1e9));
+
+        // The indexes on changed columns couldn't have been built before
+        try (Statement statement = connection.createStatement();
+                PreparedStatement exists = connection.prepareStatement(
+                        "SELECT 1 FROM sys.indexes WHERE name = ? AND object_id = OBJECT_ID(?)")) {
+            for (IndexDefinition index : IndexProvisioner.DECLARED) {
+                if (!touchesChange(index)) {
+                    continue;
+                }
+                exists.setString(1, index.name);
+                exists.setString(2, index.table);
+                try (ResultSet resultSet = exists.executeQuery()) {
+                    if (resultSet.next()) {
+                        continue;
+                    }
+                }
+                long indexStart = System.nanoTime();
+                statement.execute(index.createSql());
+                report.add(String.format("\t%s built in %.2f s", index.name, (System.nanoTime() - indexStart) / 1e9));
+            }
+        }
+
+        report.add("");
+        report.add(String.format("\t%-8s %12s %12s %9s", "Query", "Before (ms)", "After (ms)", "Speedup"));
+        for (String id : LEGACY_SQL.keySet()) {
+            long beforeNanos = before.get(id);
+            long afterNanos = time(catalog.get(id), catalog.get(id).sql, values.get(id));
+            report.add(String.format("\t%-8s %12.2f %12.2f %8.1fx", id, beforeNanos / 1e6, afterNanos / 1e6,
+                    beforeNanos / (double) Math.max(afterNanos, 1)));
+        }
+
+        return report;
+    }
+
+    private static boolean touchesChange(IndexDefinition index) {
+        for (ColumnChange change : CHANGES) {
+            if (change.table.equalsIgnoreCase(index.table)) {
+                for (String column : index.columns) {
+                    if (column.equalsIgnoreCase(change.column)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Median time to run sql (with query's parameters) and read all its rows
+    private long time(QueryDefinition query, String sql, Object[] values) throws SQLException {
+
+        long[] times = new long[LATENCY_RUNS];
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            query.bind(statement, values);
+            for (int i = 0; i < LATENCY_RUNS; i++) {
+                long start = System.nanoTime();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                    }
+                }
+                times[i] = System.nanoTime() - start;
+            }
+        }
+
+        Arrays.sort(times);
+        return times[LATENCY_RUNS / 2];
+    }
+
+}
+
+// One TEXT column and the type it becomes
+class ColumnChange {
+
+    final String table;
+    final String column;
+    final String type;
+
+    // The column's definition in a CREATE TABLE, up to the type
+    final Pattern pattern;
+
+    ColumnChange(String table, String column, String type) {
+        this.table = table;
+        this.column = column;
+        this.type = type;
+        this.pattern = Pattern.compile("((?:^|[(,])\\s*" + column + "\\s+)TEXT\\b", Pattern.CASE_INSENSITIVE);
+    }
+
+}
@@ -0,0 +1,229 @@
+
+// Util imports
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * The tables declared by the CREATE TABLE statements in a script, and the
+ * foreign key references between them. Feed it every statement of the script
+ * with addStatement(), anything that isn't a CREATE TABLE is ignored.
+ *
+ * Table names are matched case-insensitively, like SQL Server does.
+ */
+class ScriptSchema {
+
+    static final Pattern CREATE_TABLE_PATTERN = Pattern.compile(
+            "CREATE\\s+TABLE\\s+(\\w+)\\s*\\((.*)\\)\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    static final Pattern REFERENCES_PATTERN = Pattern.compile("REFERENCES\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+    // The parts of a CREATE TABLE body we care about. Anything else (CHECK, UNIQUE,
+    // CONSTRAINT names) is ignored.
+    static final Pattern PRIMARY_KEY_PATTERN = Pattern.compile(
+            "PRIMARY\\s+KEY\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+    static final Pattern FOREIGN_KEY_PATTERN = Pattern.compile(
+            "FOREIGN\\s+KEY\\s*\\(([^)]*)\\)\\s*REFERENCES\\s+(\\w+)\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+    static final Pattern COLUMN_PATTERN = Pattern.compile(
+            "(\\w+)\\s+(\\w+(?:\\s*\\([^)]*\\))?)(.*)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // In the order they were created, keyed by lower case name
+    private final LinkedHashMap<String, TableDefinition> tables = new LinkedHashMap<String, TableDefinition>();
+
+    // Returns true if statement was a CREATE TABLE (and is now part of the schema)
+    boolean addStatement(String statement) {
+
+        Matcher create = CREATE_TABLE_PATTERN.matcher(statement);
+        if (!create.matches()) {
+            return false;
+        }
+
+        TableDefinition table = new TableDefinition(create.group(1), statement);
+
+        Matcher references = REFERENCES_PATTERN.matcher(create.group(2));
+        while (references.find()) {
+            String parent = references.group(1);
+            // A table referencing itself doesn't affect load order
+            if (!parent.equalsIgnoreCase(table.name)) {
+                table.parents.add(parent.toLowerCase());
+            }
+        }
+
+        for (String item : splitTopLevel(create.group(2))) {
+            Matcher primaryKey = PRIMARY_KEY_PATTERN.matcher(item);
+            Matcher foreignKey = FOREIGN_KEY_PATTERN.matcher(item);
+            Matcher column = COLUMN_PATTERN.matcher(item);
+
+            if (foreignKey.lookingAt()) {
+                table.foreignKeys.add(new ForeignKey(splitNames(foreignKey.group(1)), foreignKey.group(2),
+                        splitNames(foreignKey.group(3))));
+            } else if (primaryKey.lookingAt()) {
+                table.primaryKey.addAll(splitNames(primaryKey.group(1)));
+            } else if (item.toUpperCase().startsWith("CONSTRAINT") || item.toUpperCase().startsWith("UNIQUE")
+                    || item.toUpperCase().startsWith("CHECK")) {
+                // Not needed
+            } else if (column.matches()) {
+                String name = column.group(1);
+                table.columns.add(new ColumnDefinition(name, column.group(2).replaceAll("\\s+", "")));
+                // Inline "PRIMARY KEY" after the type
+                if (column.group(3).toUpperCase().matches(".*PRIMARY\\s+KEY.*")) {
+                    table.primaryKey.add(name);
+                }
+            }
+        }
+
+        tables.put(table.name.toLowerCase(), table);
+        return true;
+    }
+
+    // Splits a CREATE TABLE body on the commas that aren't inside brackets
+    private static ArrayList<String> splitTopLevel(String body) {
+        ArrayList<String> items = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(body.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        items.add(body.substring(start).trim());
+        return items;
+    }
+
+    // "flightNum, schedDep" -> [flightNum, schedDep]
+    private static List<String> splitNames(String names) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String name : names.split(",")) {
+            list.add(name.trim());
+        }
+        return list;
+    }
+
+    // The table with this name, or null if the script doesn't create it
+    TableDefinition get(String name) {
+        return tables.get(name.toLowerCase());
+    }
+
+    Collection<TableDefinition> tables() {
+        return tables.values();
+    }
+
+    // Tables that have a foreign key to the named table
+    ArrayList<TableDefinition> children(String name) {
+        ArrayList<TableDefinition> children = new ArrayList<TableDefinition>();
+        for (TableDefinition table : tables.values()) {
+            if (table.parents.contains(name.toLowerCase())) {
+                children.add(table);
+            }
+        }
+        return children;
+    }
+
+}
+
+// One CREATE TABLE from the script
+class TableDefinition {
+
+    final String name;
+    final String ddl;
+
+    // Lower case names of the tables this one has foreign keys to
+    final LinkedHashSet<String> parents = new LinkedHashSet<String>();
+
+    // In declaration order
+    final ArrayList<ColumnDefinition> columns = new ArrayList<ColumnDefinition>();
+    // Column names, empty if the table has no primary key
+    final ArrayList<String> primaryKey = new ArrayList<String>();
+    final ArrayList<ForeignKey> foreignKeys = new ArrayList<ForeignKey>();
+
+    TableDefinition(String name, String ddl) {
+        this.name = name;
+        this.ddl = ddl;
+    }
+
+    // Index of the named column, or -1
+    int columnIndex(String column) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).name.equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
+
+// A column from a CREATE TABLE. type is as written, without spaces ("varchar(200)")
+class ColumnDefinition {
+
+    final String name;
+    final String type;
+    private final String baseType;
+
+    ColumnDefinition(String name, String type) {
+        this.name = name;
+        this.type = type;
+        int bracket = type.indexOf('(');
+        this.baseType = (bracket < 0 ? type : type.substring(0, bracket)).toUpperCase();
+    }
+
+    // The type without its size, upper cased ("VARCHAR")
+    String baseType() {
+        return baseType;
+    }
+
+    // The scale of a NUMERIC(p,s) or DECIMAL(p,s) column, or the fractional digits
+    // of a datetime2(s) column. defaultScale if the type doesn't say.
+    int scale(int defaultScale) {
+        int bracket = type.indexOf('(');
+        if (bracket < 0) {
+            return defaultScale;
+        }
+        String[] sizes = type.substring(bracket + 1, type.length() - 1).split(",");
+        String base = baseType();
+        if (base.equals("NUMERIC") || base.equals("DECIMAL")) {
+            return sizes.length > 1 ? Integer.parseInt(sizes[1].trim()) : defaultScale;
+        } else if (base.equals("DATETIME2")) {
+            return Integer.parseInt(sizes[0].trim());
+        }
+        return defaultScale;
+    }
+
+    // The first size in brackets (the length of a VARCHAR(n), the precision of a
+    // NUMERIC(p,s)), or defaultPrecision if there isn't one (or it's MAX)
+    int precision(int defaultPrecision) {
+        int bracket = type.indexOf('(');
+        if (bracket < 0) {
+            return defaultPrecision;
+        }
+        String size = type.substring(bracket + 1, type.length() - 1).split(",")[0].trim();
+        return size.equalsIgnoreCase("MAX") ? defaultPrecision : Integer.parseInt(size);
+    }
+
+}
+
+// FOREIGN KEY (columns) REFERENCES parent(parentColumns)
+class ForeignKey {
+
+    final List<String> columns;
+    final String parent;
+    final List<String> parentColumns;
+
+    ForeignKey(List<String> columns, String parent, List<String> parentColumns) {
+        this.columns = columns;
+        this.parent = parent;
+        this.parentColumns = parentColumns;
+    }
+
+}
@@ -0,0 +1,278 @@
+// Util imports
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+// SQL imports
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/*
+ * Every catalog query that takes longer than slowQueryMs (auth.cfg) gets a
+ * line in the slow query log: when, which query, the parameters it was run
+ * with, its timings (same as QueryMetrics), rows and bytes, and whether it
+ * finished, was cancelled or timed out. One JSON object per line, so it can
+ * be grepped or fed to jq.
+ *
+ * With slowQueryStatistics=io the server's SET STATISTICS IO, TIME messages
+ * for the query go in too, and with slowQueryStatistics=plan also its actual
+ * execution plan (SET STATISTICS XML). The server only sends those if they
+ * were asked for before the query ran, so with either setting every query
+ * pays for two extra SETs; it's off by default.
+ *
+ * The query's thread only hands the entry over. A background thread formats
+ * and writes it, and once the file is past slowQueryLogKB it's moved to
+ * .1 (.1 to .2 and so on, keeping slowQueryLogFiles of them). If the writer
+ * falls too far behind, entries are dropped and counted rather than making
+ * queries wait.
+ */
+class SlowQueryLog implements AutoCloseable {
+
+    enum Statistics {
+        NONE, // Just our own timings
+        IO, // Plus SET STATISTICS IO, TIME
+        PLAN // Plus the actual execution plan
+    }
+
+    // Most entries waiting to be written before new ones get dropped
+    static final int QUEUE_CAPACITY = 1000;
+
+    final long thresholdNanos;
+    final Statistics statistics;
+    private final Path path;
+    private final long maxBytes;
+    private final int keepFiles;
+
+    private final BlockingQueue<SlowQuery> pending = new ArrayBlockingQueue<SlowQuery>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    final AtomicLong written = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    // The last error writing the file, if any. Entries keep being tried.
+    volatile String lastError = null;
+
+    SlowQueryLog(Path path, long thresholdMillis, long maxBytes, int keepFiles, Statistics statistics) {
+        this.path = path;
+        this.thresholdNanos = thresholdMillis * 1_000_000L;
+        this.maxBytes = maxBytes;
+        this.keepFiles = keepFiles;
+        this.statistics = statistics;
+
+        writer = new Thread(this::writeEntries, "slow-query-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    // Queues entry for writing. Never blocks.
+    void log(SlowQuery entry) {
+        if (closed || !pending.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Writes whatever is still queued and stops the writer
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs on the writer thread. Writes entries in batches, as many as are
+    // waiting, so a burst of slow queries is one write. Never interrupted, since
+    // that would close the file channel under a write.
+    private void writeEntries() {
+
+        ArrayList<SlowQuery> batch = new ArrayList<SlowQuery>();
+
+        while (true) {
+            try {
+                SlowQuery first = pending.poll(200, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+
+            if (!batch.isEmpty()) {
+                StringBuilder lines = new StringBuilder();
+                for (SlowQuery entry : batch) {
+                    lines.append(entry.toJson()).append('\n');
+                }
+                try {
+                    rotateIfFull();
+                    Files.writeString(path, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                    written.addAndGet(batch.size());
+                } catch (IOException e) {
+                    lastError = e.toString();
+                    dropped.addAndGet(batch.size());
+                }
+                batch.clear();
+            }
+
+            if (closed && pending.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    // Moves the log to .1 (and .1 to .2 and so on) once it's over maxBytes
+    private void rotateIfFull() throws IOException {
+
+        if (!Files.exists(path) || Files.size(path) < maxBytes) {
+            return;
+        }
+
+        if (keepFiles < 1) {
+            Files.delete(path);
+            return;
+        }
+        Files.deleteIfExists(rotated(keepFiles));
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rotated(int n) {
+        return path.resolveSibling(path.getFileName() + "." + n);
+    }
+
+    // Turns the server statistics on or off for connection's session, if they're
+    // wanted at all
+    void serverStatistics(Connection connection, boolean on) throws SQLException {
+
+        if (statistics == Statistics.NONE) {
+            return;
+        }
+
+        String onOff = on ? " ON" : " OFF";
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET STATISTICS IO" + onOff + "; SET STATISTICS TIME" + onOff
+                    + (statistics == Statistics.PLAN ? "; SET STATISTICS XML" + onOff : ""));
+        }
+    }
+
+    // Reads what the server sent back for statement besides its rows, once the rows
+    // have been read: the statistics messages (they come as warnings) and, after
+    // them, the plan (an extra result set)
+    void readServerStatistics(Statement statement, SlowQuery entry) throws SQLException {
+
+        if (statistics == Statistics.NONE) {
+            return;
+        }
+
+        if (statistics == Statistics.PLAN) {
+            // The plan is the next result, but there can be update counts first
+            while (statement.getMoreResults() || statement.getUpdateCount() != -1) {
+                ResultSet plan = statement.getResultSet();
+                if (plan != null) {
+                    try (plan) {
+                        if (plan.next()) {
+                            entry.plan = plan.getString(1);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (SQLWarning warning = statement.getWarnings(); warning != null; warning = warning.getNextWarning()) {
+            entry.serverMessages.add(warning.getMessage().strip());
+        }
+        statement.clearWarnings();
+    }
+
+}
+
+// One entry of the slow query log
+class SlowQuery {
+
+    final Instant at = Instant.now();
+    final QueryDefinition query;
+    final Object[] values;
+
+    String outcome = "completed"; // Or "cancelled", "timed out"
+    String source = "server"; // Or "memory"
+
+    // Same as QueryMetrics, -1 if it didn't happen
+    long prepareNanos = -1;
+    long executeNanos = -1;
+    long firstRowNanos = -1;
+    long fetchNanos = -1;
+    long totalNanos = -1;
+    long rows = 0;
+    long bytes = 0;
+
+    // Only with SlowQueryLog.statistics
+    final List<String> serverMessages = new ArrayList<String>();
+    String plan = null;
+
+    SlowQuery(QueryDefinition query, Object[] values) {
+        this.query = query;
+        this.values = values;
+    }
+
+    String toJson() {
+
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"at\": ").append(QueryMetrics.quote(at.toString()));
+        json.append(", \"query\": ").append(QueryMetrics.quote(query.id));
+        json.append(", \"title\": ").append(QueryMetrics.quote(query.title));
+        json.append(", \"parameters\": {");
+        for (int i = 0; i < values.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(QueryMetrics.quote(query.parameters.get(i).name)).append(": ");
+            json.append(values[i] instanceof Integer ? values[i].toString()
+                    : QueryMetrics.quote(String.valueOf(values[i])));
+        }
+        json.append("}");
+        json.append(", \"outcome\": ").append(QueryMetrics.quote(outcome));
+        json.append(", \"source\": ").append(QueryMetrics.quote(source));
+        json.append(String.format(Locale.ROOT, ", \"prepareMs\": %s, \"executeMs\": %s, \"firstRowMs\": %s, \"fetchMs\": %s,"
+                + " \"totalMs\": %s", millis(prepareNanos), millis(executeNanos), millis(firstRowNanos),
+                millis(fetchNanos), millis(totalNanos)));
+        json.append(", \"rows\": ").append(rows);
+        json.append(", \"bytes\": ").append(bytes);
+        if (!serverMessages.isEmpty()) {
+            json.append(", \"serverMessages\": [");
+            for (int i = 0; i < serverMessages.size(); i++) {
+                json.append(i == 0 ? "" : ", ").append(QueryMetrics.quote(serverMessages.get(i)));
+            }
+            json.append("]");
+        }
+        if (plan != null) {
+            json.append(", \"plan\": ").append(QueryMetrics.quote(plan));
+        }
+        return json.append("}").toString();
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "null" : String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+}
@@ -0,0 +1,115 @@
+
+// Util imports
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+// SQL imports
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/*
+ * Times restoring the database from the binary snapshot against running the
+ * text script. Started with --bench-snapshot (add --memory to skip the SQL
+ * server). Writes the snapshot first if there isn't one.
+ *
+ * In memory it's MemoryDatabase.load against MemoryDatabase.loadSnapshot. On
+ * the server it's a full (coalesced) rebuild against a snapshot restore, both
+ * without the index phase since that's the same for both. The server ends up
+ * restored from the snapshot with its indexes, the same as a normal rebuild.
+ */
+class SnapshotBenchmark {
+
+    // Runs of each timing, the median is reported
+    static final int RUNS = 5;
+    static final int WARMUP_RUNS = 2;
+
+    // Rebuilds on the server take seconds each, so fewer of them
+    static final int SERVER_RUNS = 3;
+
+    private final Path script;
+    private final Path snapshot;
+    private final Connection connection;
+    private final ConnectionFactory connectionFactory;
+
+    int loadConnections = 4;
+
+    // connection can be null, then only the in-memory timings are run
+    SnapshotBenchmark(Path script, Path snapshot, Connection connection, ConnectionFactory connectionFactory) {
+        this.script = script;
+        this.snapshot = snapshot;
+        this.connection = connection;
+        this.connectionFactory = connectionFactory;
+    }
+
+    ArrayList<String> run() throws IOException, SQLException {
+
+        ArrayList<String> report = new ArrayList<String>();
+
+        if (!Files.exists(snapshot.resolve(DatabaseSnapshot.MANIFEST_FILE_NAME))) {
+            long start = System.nanoTime();
+            DatabaseSnapshot.write(MemoryDatabase.load(script), snapshot);
+            report.add(String.format("\tNo snapshot yet, wrote one in %.2f s", (System.nanoTime() - start) / 1e9));
+        }
+
+        long scriptBytes = Files.size(script);
+        long snapshotBytes = DatabaseSnapshot.readManifest(snapshot).bytes();
+        report.add(String.format("\t%-40s %,12d bytes", script.toString(), scriptBytes));
+        report.add(String.format("\t%-40s %,12d bytes (%.1fx smaller)", snapshot.toString(), snapshotBytes,
+                scriptBytes / (double) Math.max(snapshotBytes, 1)));
+
+        long scriptNanos = median(RUNS, WARMUP_RUNS, () -> MemoryDatabase.load(script).loadNanos);
+        long snapshotNanos = median(RUNS, WARMUP_RUNS, () -> MemoryDatabase.loadSnapshot(snapshot).loadNanos);
+
+        report.add("");
+        report.add("\tInto memory");
+        report.add(String.format("\t  %-38s %10.1f ms", "Parse the script", scriptNanos / 1e6));
+        report.add(String.format("\t  %-38s %10.1f ms  (%.1fx faster)", "Read the snapshot", snapshotNanos / 1e6,
+                scriptNanos / (double) Math.max(snapshotNanos, 1)));
+
+        if (connection == null) {
+            return report;
+        }
+
+        long rebuildNanos = median(SERVER_RUNS, 0, () -> rebuilder(null, false).rebuild().elapsedNanos);
+        long restoreNanos = median(SERVER_RUNS, 0, () -> rebuilder(snapshot, false).rebuild().elapsedNanos);
+
+        report.add("");
+        report.add("\tOn the SQL server (without building indexes)");
+        report.add(String.format("\t  %-38s %10.1f ms", "Rebuild from the script", rebuildNanos / 1e6));
+        report.add(String.format("\t  %-38s %10.1f ms  (%.1fx faster)", "Restore the snapshot", restoreNanos / 1e6,
+                rebuildNanos / (double) Math.max(restoreNanos, 1)));
+
+        // Leave the database as a normal rebuild would
+        rebuilder(snapshot, true).rebuild();
+        return report;
+    }
+
+    private DatabaseRebuilder rebuilder(Path snapshotPath, boolean provisionIndexes) {
+        DatabaseRebuilder rebuilder = new DatabaseRebuilder(connection, connectionFactory, script);
+        rebuilder.loadConnections = loadConnections;
+        rebuilder.snapshotPath = snapshotPath;
+        rebuilder.provisionIndexes = provisionIndexes;
+        return rebuilder;
+    }
+
+    private interface TimedTask {
+        // Runs once, returns how long the part worth timing took
+        long run() throws IOException, SQLException;
+    }
+
+    // Median of runs timings, after warmups untimed runs
+    private static long median(int runs, int warmups, TimedTask task) throws IOException, SQLException {
+        for (int i = 0; i < warmups; i++) {
+            task.run();
+        }
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            times[i] = task.run();
+        }
+        Arrays.sort(times);
+        return times[runs / 2];
+    }
+
+}
@@ -0,0 +1,160 @@
+
+// Util imports
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Splits a SQL script (like populate.sql) into statements in one pass.
+ *
+ * The file is memory mapped and scanned byte by byte. A statement ends at a
+ * semicolon that isn't inside a string literal ('...'), a quoted identifier
+ * ("..." or [...]), a -- line comment or a block comment. Each statement is
+ * decoded straight out of the mapped file, so there's no building strings up
+ * line by line. Comments and whitespace before a statement are skipped, empty
+ * statements are dropped, and the trailing semicolon isn't included.
+ *
+ * All the delimiters we care about are ASCII, so scanning the raw UTF-8 bytes is
+ * safe (bytes of multi-byte characters are never below 0x80).
+ */
+class SqlScriptReader implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer script;
+    private final int length;
+    private int position = 0;
+
+    // Reused when copying a statement's bytes out of the mapped file
+    private byte[] statementBytes = new byte[4096];
+
+    // Number of statements handed out so far
+    int statementsRead = 0;
+
+    SqlScriptReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Script is too large to map: " + path);
+        }
+        length = (int) channel.size();
+        script = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+
+    // Returns the next statement in the script, or null when there are none left.
+    String nextStatement() {
+
+        while (true) {
+            skipWhitespaceAndComments();
+            if (position >= length) {
+                return null;
+            }
+
+            int start = position;
+            int end = findStatementEnd();
+
+            // Skip past the semicolon (if there was one, the last statement might not
+            // have one)
+            position = end < length ? end + 1 : end;
+
+            // Trim trailing whitespace
+            while (end > start && isWhitespace(script.get(end - 1))) {
+                end--;
+            }
+
+            if (end > start) {
+                statementsRead++;
+                return decode(start, end);
+            }
+            // Just a stray semicolon, keep going
+        }
+    }
+
+    // Scans from position to the semicolon that ends this statement. Returns its
+    // index, or length if the script ends first.
+    private int findStatementEnd() {
+
+        int i = position;
+
+        while (i < length) {
+            byte b = script.get(i);
+
+            if (b == ';') {
+                return i;
+            } else if (b == '\'' || b == '"') {
+                // String literal or quoted identifier. A doubled quote ('') is an escaped
+                // quote, which works out the same as closing and re-opening the string.
+                i = skipPast(i + 1, b);
+            } else if (b == '[') {
+                i = skipPast(i + 1, (byte) ']');
+            } else if (b == '-' && i + 1 < length && script.get(i + 1) == '-') {
+                i = skipLineComment(i + 2);
+            } else if (b == '/' && i + 1 < length && script.get(i + 1) == '*') {
+                i = skipBlockComment(i + 2);
+            } else {
+                i++;
+            }
+        }
+
+        return length;
+    }
+
+    private void skipWhitespaceAndComments() {
+
+        while (position < length) {
+            byte b = script.get(position);
+
+            if (isWhitespace(b)) {
+                position++;
+            } else if (b == '-' && position + 1 < length && script.get(position + 1) == '-') {
+                position = skipLineComment(position + 2);
+            } else if (b == '/' && position + 1 < length && script.get(position + 1) == '*') {
+                position = skipBlockComment(position + 2);
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Returns the index just after the next occurrence of close, starting at i
+    private int skipPast(int i, byte close) {
+        while (i < length && script.get(i) != close) {
+            i++;
+        }
+        return Math.min(i + 1, length);
+    }
+
+    // Returns the index of the start of the next line
+    private int skipLineComment(int i) {
+        return skipPast(i, (byte) '\n');
+    }
+
+    // Returns the index just after the closing */
+    private int skipBlockComment(int i) {
+        while (i + 1 < length && !(script.get(i) == '*' && script.get(i + 1) == '/')) {
+            i++;
+        }
+        return Math.min(i + 2, length);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f';
+    }
+
+    private String decode(int start, int end) {
+        int size = end - start;
+        if (size > statementBytes.length) {
+            statementBytes = new byte[Math.max(size, statementBytes.length * 2)];
+        }
+        script.get(start, statementBytes, 0, size);
+        return new String(statementBytes, 0, size, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,530 @@
+// Util imports
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Pages through a raw table (option 16) on the server, one page per query,
+ * using keyset pagination on the table's primary key as declared in the
+ * script.
+ *
+ * Rather than reading the table from the start and skipping rows, each page
+ * carries on from the key of the last row shown:
+ *
+ *   SELECT TOP 16 * FROM Fly
+ *   WHERE flightNum >= ? AND (flightNum > ? OR (flightNum = ? AND schedDep > ?) OR ...)
+ *   ORDER BY flightNum, schedDep, SIN
+ *
+ * so the server seeks straight to it in the primary key's index. Going back a
+ * page is the same thing with the comparisons and the order flipped. One row more
+ * than a page is asked for, to find out if there's another page without a
+ * COUNT(*). The leading >= is redundant but lets the server seek on the first
+ * key column even though the rest is an OR.
+ *
+ * Pages are fetched on a background thread, and kept in a small cache: the
+ * page before the one being shown (so [B] is instant) and up to readAhead pages
+ * after it, which are fetched while the user is reading the current one. The
+ * cache is also bounded by an estimate of the memory its pages use, so a table
+ * with wide rows just reads ahead less. Pages outside that window are dropped,
+ * so memory stays the same however big the table is.
+ *
+ * Every query on the connection goes through the one fetch thread, even the
+ * ones the user is waiting for, so the connection is only ever used by one
+ * thread at a time. With a readAhead of 0 there's no thread and each page is
+ * fetched when it's asked for.
+ */
+class TablePager implements AutoCloseable {
+
+    final TableDefinition table;
+    final int pageSize;
+    final int readAhead;
+    final long maxCachedBytes;
+
+    private final Connection connection;
+    private final Backend backend;
+
+    // Queries for the first page, the page after a key and the page before a key
+    private final String firstSql;
+    private final String nextSql;
+    private final String previousSql;
+
+    // Where each primary key column is in a row, found on the first page
+    private int[] keyColumns;
+
+    // From the first page, used to set up every page's QueryResults
+    private final ArrayList<String> columnNames = new ArrayList<String>();
+    private int[] columnTypes;
+    private int[] columnScales;
+
+    // The page being shown. Only changed by the caller's thread.
+    private Page current;
+
+    // Fetched pages by first row number (the current one included), and roughly how
+    // many bytes they take up. Guarded by this, since the fetch thread adds to them.
+    private final TreeMap<Integer, Page> pages = new TreeMap<Integer, Page>();
+    private long cachedBytes = 0;
+
+    // Runs every query on the connection, null when readAhead is 0
+    private final ExecutorService fetcher;
+    // True while a read-ahead fetch is queued or running. Guarded by this.
+    private boolean readingAhead = false;
+
+    // For the status line
+    volatile int pagesFetched = 0;
+    volatile int cacheHits = 0;
+    volatile long lastFetchNanos = 0;
+
+    // One page of rows, as they came back from the driver so the key values can be
+    // bound straight back into the next query
+    private static class Page {
+        final int firstRow;
+        final List<Object[]> rows;
+        final boolean hasNext;
+        final long bytes;
+
+        Page(int firstRow, List<Object[]> rows, boolean hasNext) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.hasNext = hasNext;
+            this.bytes = estimateBytes(rows);
+        }
+
+        // First row of the page after this one
+        int nextRow() {
+            return firstRow + rows.size();
+        }
+    }
+
+    // table must have a primary key (see canPage). Reads up to readAhead pages ahead
+    // of the one shown, as long as the cached pages stay under maxCachedBytes.
+    TablePager(Connection connection, Backend backend, TableDefinition table, int pageSize, int readAhead,
+            long maxCachedBytes) {
+
+        this.connection = connection;
+        this.backend = backend;
+        this.table = table;
+        this.pageSize = pageSize;
+        this.readAhead = readAhead;
+        this.maxCachedBytes = maxCachedBytes;
+        this.fetcher = readAhead > 0 ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "page-fetch");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+
+        List<String> key = table.primaryKey;
+        String ascending = String.join(", ", key);
+        String descending = String.join(" DESC, ", key) + " DESC";
+
+        firstSql = "SELECT TOP " + (pageSize + 1) + " * FROM " + table.name + " ORDER BY " + ascending;
+        nextSql = "SELECT TOP " + (pageSize + 1) + " * FROM " + table.name + " WHERE " + keyCondition(key, ">")
+                + " ORDER BY " + ascending;
+        previousSql = "SELECT TOP " + (pageSize + 1) + " * FROM " + table.name + " WHERE " + keyCondition(key, "<")
+                + " ORDER BY " + descending;
+    }
+
+    // Whether TablePager can page through table (it needs a primary key)
+    static boolean canPage(TableDefinition table) {
+        return table != null && !table.primaryKey.isEmpty();
+    }
+
+    // Reads just the CREATE TABLEs from the start of script (they all come before
+    // the first INSERT), so we know each table's primary key without parsing the
+    // rows too.
+    static ScriptSchema readSchema(Path script) throws IOException {
+
+        ScriptSchema schema = new ScriptSchema();
+        try (SqlScriptReader reader = new SqlScriptReader(script)) {
+            String statement;
+            while ((statement = reader.nextStatement()) != null) {
+                if (statement.regionMatches(true, 0, "INSERT", 0, 6)) {
+                    break;
+                }
+                schema.addStatement(statement);
+            }
+        }
+        return schema;
+    }
+
+    // "(k1, k2, k3) op (?, ?, ?)" written out longhand, since SQL Server doesn't do
+    // row value comparisons:
+    // k1 op= ? AND (k1 op ? OR (k1 = ? AND k2 op ?) OR (k1 = ? AND k2 = ? AND k3 op ?))
+    private static String keyCondition(List<String> key, String op) {
+
+        StringBuilder condition = new StringBuilder();
+        condition.append(key.get(0)).append(' ').append(op).append("= ? AND (");
+        for (int i = 0; i < key.size(); i++) {
+            if (i > 0) {
+                condition.append(" OR ");
+            }
+            condition.append('(');
+            for (int j = 0; j < i; j++) {
+                condition.append(key.get(j)).append(" = ? AND ");
+            }
+            condition.append(key.get(i)).append(' ').append(op).append(" ?)");
+        }
+        return condition.append(')').toString();
+    }
+
+    // The first page of the table
+    QueryResults first() throws SQLException {
+        show(fetchNow(() -> fetch(firstSql, null, 1, false)));
+        return toResults(current);
+    }
+
+    // The page after the current one (the current one again if it's the last)
+    QueryResults next() throws SQLException {
+
+        if (!current.hasNext) {
+            return toResults(current);
+        }
+
+        Page from = current;
+        Page page = cached(from.nextRow());
+        if (page != null) {
+            cacheHits++;
+        } else {
+            // Read-ahead may be fetching it right now, in which case it's cached by the
+            // time this gets to run
+            page = fetchNow(() -> {
+                Page fetched = cached(from.nextRow());
+                return fetched != null ? fetched : fetchAfter(from);
+            });
+        }
+
+        show(page);
+        return toResults(current);
+    }
+
+    // The page before the current one (the current one again if it's the first)
+    QueryResults previous() throws SQLException {
+
+        if (current.firstRow == 1) {
+            return toResults(current);
+        }
+
+        Page from = current;
+        Page page = cached(from.firstRow - pageSize);
+        if (page != null) {
+            cacheHits++;
+        } else {
+            page = fetchNow(() -> {
+                Object[] key = keyOf(from.rows.get(0));
+                Page fetched = fetch(previousSql, key, from.firstRow - pageSize, true);
+                // Rows could have been added since we went past them, so just start over if
+                // we've somehow ended up before the start
+                if (fetched.rows.size() < pageSize || fetched.firstRow < 1) {
+                    fetched = fetch(firstSql, null, 1, false);
+                }
+                return fetched;
+            });
+        }
+
+        show(page);
+        return toResults(current);
+    }
+
+    // True if there's at least one more page after the current one
+    boolean hasNext() {
+        return current != null && current.hasNext;
+    }
+
+    // For the status line: pages cached and roughly how many bytes they use
+    synchronized int cachedPages() {
+        return pages.size();
+    }
+
+    synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    // Stops reading ahead and waits for any fetch still using the connection. The
+    // connection itself belongs to the caller.
+    @Override
+    public void close() {
+
+        if (fetcher == null) {
+            return;
+        }
+        fetcher.shutdownNow();
+        try {
+            while (!fetcher.awaitTermination(1, TimeUnit.SECONDS)) {
+                // A query can't be interrupted, so it just has to finish
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Fetch {
+        Page run() throws SQLException;
+    }
+
+    // Runs fetch on the fetch thread (after whatever it's doing now) and waits for
+    // it, or just runs it if there's no fetch thread
+    private Page fetchNow(Fetch fetch) throws SQLException {
+
+        if (fetcher == null) {
+            return fetch.run();
+        }
+
+        Future<Page> future = fetcher.submit(fetch::run);
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                // The fetch thread is using the connection, so we can't leave without it
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private synchronized Page cached(int firstRow) {
+        return pages.get(firstRow);
+    }
+
+    // Makes page the current one, drops the pages that are now outside the window
+    // and starts reading ahead from it
+    private synchronized void show(Page page) {
+        current = page;
+        add(page);
+        evict();
+        readAhead();
+    }
+
+    // Adds page to the cache. Must hold the lock.
+    private void add(Page page) {
+        Page old = pages.put(page.firstRow, page);
+        if (old != null) {
+            cachedBytes -= old.bytes;
+        }
+        cachedBytes += page.bytes;
+    }
+
+    // Drops pages outside the window (the page before current to readAhead pages
+    // after it), then the furthest ahead until we're under maxCachedBytes. The
+    // current page is always kept. Must hold the lock.
+    private void evict() {
+
+        int first = current.firstRow - pageSize;
+        int last = current.firstRow + readAhead * pageSize;
+        Iterator<Page> cachedPages = pages.values().iterator();
+        while (cachedPages.hasNext()) {
+            Page page = cachedPages.next();
+            if (page != current && (page.firstRow < first || page.firstRow > last)) {
+                cachedPages.remove();
+                cachedBytes -= page.bytes;
+            }
+        }
+
+        while (cachedBytes > maxCachedBytes && pages.size() > 1) {
+            Map.Entry<Integer, Page> furthest = pages.lastEntry().getValue() != current ? pages.lastEntry()
+                    : pages.firstEntry();
+            pages.remove(furthest.getKey());
+            cachedBytes -= furthest.getValue().bytes;
+        }
+    }
+
+    // Queues a fetch of the first page after current that isn't cached yet, if it's
+    // within readAhead pages and there's room for it. Each read-ahead fetch queues
+    // the next one when it's done, so there's only ever one waiting in front of a
+    // page the user asks for.
+    private synchronized void readAhead() {
+
+        if (fetcher == null || readingAhead || cachedBytes + current.bytes > maxCachedBytes) {
+            return;
+        }
+
+        Page page = current;
+        for (int i = 0; i < readAhead && page.hasNext; i++) {
+            Page next = pages.get(page.nextRow());
+            if (next == null) {
+                Page from = page;
+                readingAhead = true;
+                try {
+                    fetcher.execute(() -> readAheadFrom(from));
+                } catch (RejectedExecutionException e) {
+                    readingAhead = false; // Closed
+                }
+                return;
+            }
+            page = next;
+        }
+    }
+
+    // Runs on the fetch thread
+    private void readAheadFrom(Page from) {
+
+        Page page = null;
+        try {
+            page = fetchAfter(from);
+        } catch (SQLException e) {
+            // Leave it, it'll be fetched again (and the error shown) if the user gets there
+        }
+
+        synchronized (this) {
+            readingAhead = false;
+            // Only keep it if the user hasn't moved away in the meantime
+            if (page != null && page.firstRow > current.firstRow
+                    && page.firstRow <= current.firstRow + readAhead * pageSize) {
+                add(page);
+                evict();
+                readAhead();
+            }
+        }
+    }
+
+    private Page fetchAfter(Page page) throws SQLException {
+        Object[] key = keyOf(page.rows.get(page.rows.size() - 1));
+        return fetch(nextSql, key, page.nextRow(), false);
+    }
+
+    // Rough heap size of a page's rows: the arrays, plus each value (strings by
+    // length, everything else about the size of a boxed number or timestamp)
+    private static long estimateBytes(List<Object[]> rows) {
+        long bytes = 0;
+        for (Object[] row : rows) {
+            bytes += 16 + 8L * row.length;
+            for (Object value : row) {
+                if (value instanceof String) {
+                    bytes += 40 + 2L * ((String) value).length();
+                } else if (value != null) {
+                    bytes += 24;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // Runs one page query. key is bound (the way keyCondition wants it) if it isn't
+    // null. reversed pages come back last row first and get flipped round.
+    private Page fetch(String sql, Object[] key, int firstRow, boolean reversed) throws SQLException {
+
+        long start = System.nanoTime();
+        ArrayList<Object[]> rows = new ArrayList<Object[]>(pageSize + 1);
+
+        try (PreparedStatement statement = connection.prepareStatement(backend.translate(sql))) {
+            statement.setQueryTimeout(QueryCatalog.DEFAULT_TIMEOUT_SECONDS);
+            if (key != null) {
+                int parameter = 1;
+                statement.setObject(parameter++, key[0]);
+                for (int i = 0; i < key.length; i++) {
+                    for (int j = 0; j <= i; j++) {
+                        statement.setObject(parameter++, key[j]);
+                    }
+                }
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (keyColumns == null) {
+                    readColumns(resultSet.getMetaData());
+                }
+                while (resultSet.next()) {
+                    Object[] row = new Object[columnTypes.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = resultSet.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+
+        // The extra row just tells us there's more that way
+        boolean more = rows.size() > pageSize;
+        if (more) {
+            rows.remove(rows.size() - 1);
+        }
+        if (reversed) {
+            Collections.reverse(rows);
+        }
+
+        pagesFetched++;
+        lastFetchNanos = System.nanoTime() - start;
+        return new Page(firstRow, rows, reversed || more);
+    }
+
+    // Works out where the key columns are and how to store each column
+    private void readColumns(ResultSetMetaData metadata) throws SQLException {
+
+        int count = metadata.getColumnCount();
+        columnTypes = new int[count];
+        columnScales = new int[count];
+        for (int i = 1; i <= count; i++) {
+            columnNames.add(metadata.getColumnName(i));
+            columnTypes[i - 1] = metadata.getColumnType(i);
+            columnScales[i - 1] = metadata.getScale(i);
+        }
+
+        keyColumns = new int[table.primaryKey.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = -1;
+            for (int j = 0; j < count; j++) {
+                if (columnNames.get(j).equalsIgnoreCase(table.primaryKey.get(i))) {
+                    keyColumns[i] = j;
+                }
+            }
+            if (keyColumns[i] < 0) {
+                throw new SQLException("Primary key column " + table.primaryKey.get(i) + " of " + table.name
+                        + " isn't in the table");
+            }
+        }
+    }
+
+    private Object[] keyOf(Object[] row) {
+        Object[] key = new Object[keyColumns.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = row[keyColumns[i]];
+        }
+        return key;
+    }
+
+    // Turns a page into QueryResults numbered from the page's first row
+    private QueryResults toResults(Page page) {
+
+        ResultColumn[] columns = new ResultColumn[columnTypes.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = ResultColumn.forType(columnTypes[i], columnScales[i]);
+        }
+
+        // appendValue wants java.time values for the date columns
+        ArrayList<Object[]> values = new ArrayList<Object[]>(page.rows.size());
+        for (Object[] row : page.rows) {
+            Object[] converted = row.clone();
+            for (int i = 0; i < converted.length; i++) {
+                if (converted[i] instanceof Timestamp) {
+                    converted[i] = ((Timestamp) converted[i]).toLocalDateTime();
+                } else if (converted[i] instanceof Date) {
+                    converted[i] = ((Date) converted[i]).toLocalDate();
+                }
+            }
+            values.add(converted);
+        }
+
+        QueryResults results = new QueryResults(columnNames, columns, values);
+        results.numberFrom(page.firstRow);
+        return results;
+    }
+
+}
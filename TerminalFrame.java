@@ -0,0 +1,153 @@
+
+// Util imports
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/*
+ * Buffers everything printed for one screen (banner, table, prompt) and writes
+ * it to the terminal in a single call when flush() is called. Printing straight
+ * to System.out does a write (and a flush) for every few characters, which is
+ * very slow over SSH.
+ *
+ * The buffer and the byte buffer it gets encoded into are reused between
+ * frames, so drawing a page doesn't allocate much.
+ */
+class TerminalFrame {
+
+    // The real terminal. Everything in the program prints through this.
+    static final TerminalFrame STDOUT = new TerminalFrame(new FileOutputStream(FileDescriptor.out));
+
+    // ANSI escape codes to clear the screen and move the cursor to the top left
+    static final String CLEAR_SCREEN = "\033[H\033[2J";
+
+    static final String BANNER = """
+
+            \t┌──────────────────────────────────────┐
+            \t│ COMP 3380 Project Group 25 Interface │
+            \t│ Aviation Statistics Database         │
+            \t├──────────────────────────────────────┤
+            \t│ Brenlee Grant                        │
+            \t│ Jorja Prokopich                      │
+            \t│ Jascha Petersen                      │
+            \t└──────────────────────────────────────┘
+
+            """;
+
+    // Long runs of padding/border characters. Appending a slice of these is much
+    // cheaper than appending one character at a time.
+    private static final int RUN_LENGTH = 256;
+    private static final String SPACES = " ".repeat(RUN_LENGTH);
+    private static final String HORIZONTAL_LINES = "─".repeat(RUN_LENGTH);
+
+    private final OutputStream out;
+    private final StringBuilder buffer = new StringBuilder(16 * 1024);
+    private final CharsetEncoder encoder;
+    private ByteBuffer bytes = ByteBuffer.allocate(32 * 1024);
+
+    // Counters, for measuring how much we're actually writing
+    long framesWritten = 0;
+    long bytesWritten = 0;
+
+    TerminalFrame(OutputStream out) {
+        this.out = out;
+
+        // Encode the same way System.out would
+        String encoding = System.getProperty("sun.stdout.encoding");
+        Charset charset = encoding != null && Charset.isSupported(encoding) ? Charset.forName(encoding)
+                : Charset.defaultCharset();
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // Starts a new screen: clears the terminal and draws the banner. Anything still
+    // buffered from before is kept, so nothing gets lost.
+    TerminalFrame clear() {
+        buffer.append(CLEAR_SCREEN).append(BANNER);
+        return this;
+    }
+
+    TerminalFrame print(String text) {
+        buffer.append(text);
+        return this;
+    }
+
+    TerminalFrame print(char c) {
+        buffer.append(c);
+        return this;
+    }
+
+    TerminalFrame println(String text) {
+        buffer.append(text).append('\n');
+        return this;
+    }
+
+    TerminalFrame println() {
+        buffer.append('\n');
+        return this;
+    }
+
+    // Appends count spaces
+    TerminalFrame pad(int count) {
+        return appendRun(SPACES, count);
+    }
+
+    // Appends count box drawing horizontal lines
+    TerminalFrame horizontalLine(int count) {
+        return appendRun(HORIZONTAL_LINES, count);
+    }
+
+    private TerminalFrame appendRun(String run, int count) {
+        while (count > 0) {
+            int n = Math.min(count, RUN_LENGTH);
+            buffer.append(run, 0, n);
+            count -= n;
+        }
+        return this;
+    }
+
+    // Encodes the whole frame and writes it to the terminal in one go
+    void flush() {
+
+        if (buffer.length() == 0) {
+            return;
+        }
+
+        encoder.reset();
+        bytes.clear();
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if (result.isOverflow()) {
+                // Frame bigger than anything we've seen before, grow and keep going
+                ByteBuffer bigger = ByteBuffer.allocate(bytes.capacity() * 2);
+                bytes.flip();
+                bigger.put(bytes);
+                bytes = bigger;
+            } else {
+                break;
+            }
+        }
+        encoder.flush(bytes);
+        buffer.setLength(0);
+
+        try {
+            out.write(bytes.array(), 0, bytes.position());
+            out.flush();
+        } catch (IOException e) {
+            // Terminal went away, nothing sensible to do about it.
+        }
+
+        framesWritten++;
+        bytesWritten += bytes.position();
+    }
+
+}
@@ -0,0 +1,93 @@
+// Util imports
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+// SQL imports
+import java.sql.DriverManager;
+
+/*
+ * The operations the JMH benchmarks (bench/benchmarks) time, set up and ready
+ * to call.
+ *
+ * JMH won't run benchmarks that aren't in a package, and classes in a package
+ * can't see ours (they're all in the default package), so the benchmarks load
+ * this class by name and only ever see the Callables it returns. Everything
+ * that isn't being measured (making the fake rows, building the results to
+ * render, mapping the script) happens here, before the Callable is handed out.
+ */
+class BenchHooks {
+
+    // QueryResults built from a SyntheticResultSet of rows rows, the way
+    // displayQuery() reads a finished query
+    static Callable<Object> queryResults(int rows) {
+        int[] types = SyntheticResultSet.typicalColumns();
+        return () -> new QueryResults(new SyntheticResultSet(types, rows).resultSet);
+    }
+
+    // One 15 row page of a columns column result drawn into a frame and written
+    // out, like the scroll loop does for every [N]. Each field is columnWidth
+    // characters. The output goes nowhere, so it's just our side being timed.
+    static Callable<Object> renderPage(int columns, int columnWidth) {
+
+        ArrayList<String> names = new ArrayList<String>();
+        ResultColumn[] resultColumns = new ResultColumn[columns];
+        for (int i = 0; i < columns; i++) {
+            names.add("column" + (i + 1));
+            resultColumns[i] = new StringColumn();
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        for (int row = 0; row < 1000; row++) {
+            Object[] values = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                String value = Integer.toString(row * 31 + i, 36);
+                values[i] = (value + "x".repeat(columnWidth)).substring(0, columnWidth);
+            }
+            rows.add(values);
+        }
+
+        QueryResults results = new QueryResults(names, resultColumns, rows);
+        TerminalFrame frame = new TerminalFrame(OutputStream.nullOutputStream());
+        int[] page = { 0 };
+
+        return () -> {
+            // Walk through the pages so it isn't the same rows every time
+            int firstRow = 1 + (page[0]++ % 60) * 15;
+            frame.clear();
+            results.printFields(frame, firstRow, 15);
+            frame.flush();
+            return frame;
+        };
+    }
+
+    // Splits script into statements, which is the first thing every rebuild does
+    static Callable<Object> splitStatements(Path script) {
+        return () -> {
+            int statements = 0;
+            try (SqlScriptReader reader = new SqlScriptReader(script)) {
+                while (reader.nextStatement() != null) {
+                    statements++;
+                }
+            }
+            return statements;
+        };
+    }
+
+    // A whole coalesced rebuild from script against the fake driver, so the time is
+    // the parsing, fingerprinting and building of the multi-row INSERTs. No indexes
+    // and no shadow tables, the fake driver can't check them.
+    static Callable<Object> rebuild(Path script) throws Exception {
+
+        FakeDriver.register();
+        ConnectionFactory connections = () -> DriverManager.getConnection(FakeDriver.URL_PREFIX + "bench");
+
+        return () -> {
+            DatabaseRebuilder rebuilder = new DatabaseRebuilder(connections.open(), connections, script);
+            rebuilder.provisionIndexes = false;
+            rebuilder.shadow = false;
+            return rebuilder.rebuild();
+        };
+    }
+
+}
@@ -0,0 +1,233 @@
+// Util imports
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.logging.Logger;
+// SQL imports
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/*
+ * An in-process JDBC driver for the benchmarks, so nothing needs a server.
+ * Registered for "jdbc:fake:" URLs.
+ *
+ * Connections and statements are proxies that accept anything: updates say
+ * they changed one row, batches that they ran, and queries come back empty.
+ * That's enough for DatabaseRebuilder to run a whole rebuild against it, so
+ * what's timed is just our side (parsing, coalescing, building the INSERTs).
+ */
+class FakeDriver implements Driver {
+
+    static final String URL_PREFIX = "jdbc:fake:";
+
+    private static boolean registered = false;
+
+    static synchronized void register() throws SQLException {
+        if (!registered) {
+            DriverManager.registerDriver(new FakeDriver());
+            registered = true;
+        }
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) {
+        return acceptsURL(url) ? (Connection) proxy(Connection.class) : null;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() {
+        return Logger.getGlobal();
+    }
+
+    // Everything the driver hands out is one of these
+    private static Object proxy(Class<?> type) {
+        return Proxy.newProxyInstance(FakeDriver.class.getClassLoader(), new Class<?>[] { type }, FakeDriver::invoke);
+    }
+
+    private static Object invoke(Object proxy, Method method, Object[] args) {
+
+        switch (method.getName()) {
+            case "createStatement":
+            case "prepareStatement":
+                return proxy(method.getName().equals("createStatement") ? Statement.class
+                        : java.sql.PreparedStatement.class);
+            case "executeQuery":
+            case "getResultSet":
+                return new SyntheticResultSet(new int[0], 0).resultSet;
+            case "executeUpdate":
+            case "getUpdateCount":
+                return 1;
+            case "executeBatch":
+                return new int[0];
+            case "getAutoCommit":
+            case "isValid":
+                return true;
+            case "toString":
+                return "FakeDriver " + method.getDeclaringClass().getSimpleName();
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+        }
+
+        // Anything else does nothing
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+            return false;
+        } else if (returnType == int.class) {
+            return 0;
+        } else if (returnType == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+}
+
+/*
+ * A ResultSet over made-up rows, for timing QueryResults without a driver in
+ * the way. Each column is one of INTEGER, VARCHAR, TIMESTAMP or DATE, and row r
+ * always has the same values, so runs are comparable. The strings come from a
+ * fixed pool (like codes and names do in the real tables) rather than being
+ * built on every get.
+ *
+ * It's a proxy too, but the methods QueryResults calls are picked out by
+ * identity rather than by name, so it costs about what a real driver's
+ * in-memory row access would.
+ */
+class SyntheticResultSet implements InvocationHandler {
+
+    // Distinct strings per VARCHAR column
+    static final int DISTINCT_STRINGS = 4096;
+
+    final ResultSet resultSet;
+    private final ResultSetMetaData metadata;
+
+    private final int[] types;
+    private final int rowCount;
+    private final String[] strings;
+    private int row = 0;
+    private boolean lastWasNull = false;
+
+    private static final Method NEXT;
+    private static final Method GET_LONG;
+    private static final Method GET_STRING;
+    private static final Method GET_TIMESTAMP;
+    private static final Method GET_DATE;
+    private static final Method WAS_NULL;
+    private static final Method GET_METADATA;
+
+    static {
+        try {
+            NEXT = ResultSet.class.getMethod("next");
+            GET_LONG = ResultSet.class.getMethod("getLong", int.class);
+            GET_STRING = ResultSet.class.getMethod("getString", int.class);
+            GET_TIMESTAMP = ResultSet.class.getMethod("getTimestamp", int.class);
+            GET_DATE = ResultSet.class.getMethod("getDate", int.class);
+            WAS_NULL = ResultSet.class.getMethod("wasNull");
+            GET_METADATA = ResultSet.class.getMethod("getMetaData");
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // types are java.sql.Types values, one per column
+    SyntheticResultSet(int[] types, int rowCount) {
+        this.types = types;
+        this.rowCount = rowCount;
+
+        strings = new String[DISTINCT_STRINGS];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = "VALUE-" + Integer.toString(i * 7919, 36).toUpperCase();
+        }
+
+        resultSet = (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ResultSet.class }, this);
+        metadata = (ResultSetMetaData) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return types.length;
+                        case "getColumnName":
+                        case "getColumnLabel":
+                            return "column" + args[0];
+                        case "getColumnType":
+                            return types[(Integer) args[0] - 1];
+                        default:
+                            return method.getReturnType() == int.class ? 0 : null;
+                    }
+                });
+    }
+
+    // The shape of a typical wide-ish result: a code, a name, a count, a time and a date
+    static int[] typicalColumns() {
+        return new int[] { Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.TIMESTAMP, Types.DATE };
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+
+        if (method.equals(NEXT)) {
+            return ++row <= rowCount;
+        } else if (method.equals(WAS_NULL)) {
+            return lastWasNull;
+        } else if (method.equals(GET_METADATA)) {
+            return metadata;
+        }
+
+        int column = args != null && args.length == 1 && args[0] instanceof Integer ? (Integer) args[0] : 0;
+        // Every 50th row has a NULL in its last column, so the null handling is timed too
+        lastWasNull = column == types.length && row % 50 == 0;
+
+        if (method.equals(GET_LONG)) {
+            return lastWasNull ? 0L : (long) row * column;
+        } else if (method.equals(GET_STRING)) {
+            return lastWasNull ? null : strings[(row * 31 + column) % DISTINCT_STRINGS];
+        } else if (method.equals(GET_TIMESTAMP)) {
+            return lastWasNull ? null : new Timestamp(1719792000000L + row * 60_000L);
+        } else if (method.equals(GET_DATE)) {
+            return lastWasNull ? null : new Date(1719792000000L + (row % 365) * 86_400_000L);
+        } else if (method.getName().equals("close") || method.getName().equals("getStatement")) {
+            return null;
+        } else if (method.getName().equals("isClosed")) {
+            return row > rowCount;
+        }
+        throw new UnsupportedOperationException("SyntheticResultSet doesn't do " + method.getName());
+    }
+
+}
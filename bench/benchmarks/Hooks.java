@@ -0,0 +1,24 @@
+package benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/*
+ * Gets a Callable from BenchHooks (in the default package, next to the rest of
+ * the program). See BenchHooks for why it's done by name.
+ */
+final class Hooks {
+
+    private Hooks() {
+    }
+
+    // BenchHooks and its methods are package-private like the rest of the program,
+    // hence setAccessible
+    @SuppressWarnings("unchecked")
+    static Callable<Object> get(String name, Class<?>[] types, Object... args) throws Exception {
+        Method hook = Class.forName("BenchHooks").getDeclaredMethod(name, types);
+        hook.setAccessible(true);
+        return (Callable<Object>) hook.invoke(null, args);
+    }
+
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Reading a finished query into QueryResults, from a synthetic ResultSet with
+ * five columns (two text, an integer, a timestamp and a date).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryResultsBenchmark {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int rows;
+
+    private Callable<Object> build;
+
+    @Setup
+    public void setup() throws Exception {
+        build = Hooks.get("queryResults", new Class<?>[] { int.class }, rows);
+    }
+
+    @Benchmark
+    public Object build() throws Exception {
+        return build.call();
+    }
+
+}
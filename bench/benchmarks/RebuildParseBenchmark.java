@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The client side of a rebuild over populate.sql: just splitting it into
+ * statements, and a whole coalesced rebuild against the fake driver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RebuildParseBenchmark {
+
+    // Run from the project folder, like the program itself
+    @Param({ "populate.sql" })
+    public String script;
+
+    private Callable<Object> split;
+    private Callable<Object> rebuild;
+
+    @Setup
+    public void setup() throws Exception {
+        split = Hooks.get("splitStatements", new Class<?>[] { Path.class }, Path.of(script));
+        rebuild = Hooks.get("rebuild", new Class<?>[] { Path.class }, Path.of(script));
+    }
+
+    @Benchmark
+    public Object splitStatements() throws Exception {
+        return split.call();
+    }
+
+    @Benchmark
+    public Object rebuildAgainstFakeDriver() throws Exception {
+        return rebuild.call();
+    }
+
+}
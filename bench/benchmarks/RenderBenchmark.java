@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Drawing one 15 row page with printFields and writing it out (to nowhere),
+ * for narrow to wide columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({ "4", "8" })
+    public int columns;
+
+    @Param({ "8", "32", "128" })
+    public int columnWidth;
+
+    private Callable<Object> render;
+
+    @Setup
+    public void setup() throws Exception {
+        render = Hooks.get("renderPage", new Class<?>[] { int.class, int.class }, columns, columnWidth);
+    }
+
+    @Benchmark
+    public Object renderPage() throws Exception {
+        return render.call();
+    }
+
+}